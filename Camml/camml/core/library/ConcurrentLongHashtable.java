@@ -0,0 +1,163 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Thread safe open addressing hash table using primitive long keys.
+//
+
+// File: ConcurrentLongHashtable.java
+
+package camml.core.library;
+
+import java.util.ArrayList;
+
+/** 
+ * Thread safe version of LongHashtable.  Keys are split between a number of segments, each an 
+ * independently locked LongHashtable, so threads using different segments do not contend.
+ */
+public class ConcurrentLongHashtable<V> extends LongHashtable<V> {
+    
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -6026357402186290147L;
+    
+    /** Number of segments, must be a power of 2 */
+    protected static final int numSegments = 16;
+    
+    /** Independently locked segments.  Entries are not stored in the superclass. */
+    protected final LongHashtable<V>[] segment;
+    
+    /** Create a table with default capacity. */
+    public ConcurrentLongHashtable() { this(16 * numSegments); }
+    
+    /** Create a table which can hold initialCapacity entries before resizing. */
+    public ConcurrentLongHashtable( int initialCapacity ) {
+        super(1);
+        // Generic arrays cannot be created directly, every element is a LongHashtable<V>
+        @SuppressWarnings("unchecked")
+        LongHashtable<V>[] segment = (LongHashtable<V>[])new LongHashtable<?>[numSegments];
+        this.segment = segment;
+        for ( int i = 0; i < numSegments; i++ ) {
+            segment[i] = new LongHashtable<V>( (initialCapacity + numSegments - 1) / numSegments );
+        }
+    }
+    
+    /** Return the segment containing k.  High bits of the hash are used as the segments use
+     *  the low bits. */
+    protected LongHashtable<V> segmentFor( long k ) {
+        return segment[ (hash(k) >>> 28) & (numSegments - 1) ];
+    }
+    
+    public V get( long k ) {
+        LongHashtable<V> s = segmentFor(k);
+        synchronized ( s ) { return s.get(k); }
+    }
+    
+    public boolean containsKey( long k ) {
+        LongHashtable<V> s = segmentFor(k);
+        synchronized ( s ) { return s.containsKey(k); }
+    }
+    
+    public V put( long k, V v ) {
+        LongHashtable<V> s = segmentFor(k);
+        synchronized ( s ) { return s.put(k,v); }
+    }
+    
+    public V putIfAbsent( long k, V v ) {
+        LongHashtable<V> s = segmentFor(k);
+        synchronized ( s ) { return s.putIfAbsent(k,v); }
+    }
+    
+    public void clear() {
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { s.clear(); } }
+    }
+    
+    public int size() {
+        int size = 0;
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { size += s.size(); } }
+        return size;
+    }
+    
+    public int capacity() {
+        int capacity = 0;
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { capacity += s.capacity(); } }
+        return capacity;
+    }
+    
+    /** Return all keys in the table.  Entries added concurrently may be missed. */
+    public long[] keys() {
+        long[][] keys = new long[numSegments][];
+        int n = 0;
+        for ( int i = 0; i < numSegments; i++ ) {
+            synchronized ( segment[i] ) { keys[i] = segment[i].keys(); }
+            n += keys[i].length;
+        }
+        long[] all = new long[n];
+        n = 0;
+        for ( int i = 0; i < numSegments; i++ ) {
+            System.arraycopy( keys[i], 0, all, n, keys[i].length );
+            n += keys[i].length;
+        }
+        return all;
+    }
+    
+    /** Return all values in the table.  Entries added concurrently may be missed. */
+    public ArrayList<V> values() {
+        ArrayList<V> values = new ArrayList<V>();
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { values.addAll( s.values() ); } }
+        return values;
+    }
+    
+    public long getLookups() {
+        long n = 0;
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { n += s.getLookups(); } }
+        return n;
+    }
+    
+    public long getProbes() {
+        long n = 0;
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { n += s.getProbes(); } }
+        return n;
+    }
+    
+    public int getMaxProbes() {
+        int n = 0;
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { n = Math.max( n, s.getMaxProbes() ); } }
+        return n;
+    }
+    
+    public double getMeanProbes() { 
+        long lookups = getLookups();
+        return lookups == 0 ? 0 : getProbes() / (double)lookups; 
+    }
+    
+    public void resetStats() {
+        for ( LongHashtable<V> s : segment ) { synchronized ( s ) { s.resetStats(); } }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Binary max-heap of integer ids keyed by double priorities.
+//
+
+// File: IndexedHeap.java
+
+package camml.core.library;
+
+/**
+ * Binary max-heap over the ids 0..n-1 where each id present has a double priority. The
+ * position of each id is tracked so priorities may be changed or ids removed in O(log n). <br>
+ * Ties are broken in favour of the smaller id, so results match a linear scan which keeps the
+ * first maximum found.  NaN priorities are treated as smaller than any other value.
+ */
+public class IndexedHeap
+{
+    /** heap[i] = id at position i */
+    protected final int[] heap;
+    
+    /** pos[id] = position of id in heap, or -1 if id is not present */
+    protected final int[] pos;
+    
+    /** priority[id] = priority of id */
+    protected final double[] priority;
+    
+    /** number of ids in heap */
+    protected int size = 0;
+    
+    /** Create an empty heap which may hold ids 0..n-1 */
+    public IndexedHeap( int n ) {
+        heap = new int[n];
+        pos = new int[n];
+        priority = new double[n];
+        java.util.Arrays.fill( pos, -1 );
+    }
+    
+    /** Number of ids in heap */
+    public int size() { return size; }
+    
+    /** Is the heap empty? */
+    public boolean isEmpty() { return size == 0; }
+    
+    /** Is id in the heap? */
+    public boolean contains( int id ) { return pos[id] != -1; }
+    
+    /** Return the priority of id, id must be in the heap. */
+    public double getPriority( int id ) { 
+        if ( pos[id] == -1 ) { throw new RuntimeException("id " + id + " not in heap"); }
+        return priority[id]; 
+    }
+    
+    /** Return the id with the highest priority, or -1 if the heap is empty. */
+    public int top() { return size == 0 ? -1 : heap[0]; }
+    
+    /** Add id to the heap, or change its priority if already present. */
+    public void set( int id, double p ) {
+        if ( pos[id] == -1 ) {
+            heap[size] = id;
+            pos[id] = size;
+            priority[id] = p;
+            size++;
+            siftUp( size - 1 );
+        }
+        else {
+            priority[id] = p;
+            siftUp( pos[id] );
+            siftDown( pos[id] );
+        }
+    }
+    
+    /** Remove id from the heap if present. */
+    public void remove( int id ) {
+        int i = pos[id];
+        if ( i == -1 ) { return; }
+        size--;
+        pos[id] = -1;
+        if ( i != size ) {
+            int moved = heap[size];
+            heap[i] = moved;
+            pos[moved] = i;
+            siftUp( i );
+            siftDown( pos[moved] );
+        }
+    }
+    
+    /** Should id a be above id b in the heap? */
+    protected boolean above( int a, int b ) {
+        double pa = priority[a], pb = priority[b];
+        if ( pa > pb || (Double.isNaN(pb) && !Double.isNaN(pa)) ) { return true; }
+        if ( pa < pb || Double.isNaN(pa) != Double.isNaN(pb) ) { return false; }
+        return a < b;
+    }
+    
+    /** Swap the ids at positions i and j */
+    protected void swap( int i, int j ) {
+        int temp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = temp;
+        pos[heap[i]] = i;
+        pos[heap[j]] = j;
+    }
+    
+    /** Move the id at position i up until the heap property holds. */
+    protected void siftUp( int i ) {
+        while ( i > 0 ) {
+            int parent = (i - 1) / 2;
+            if ( !above( heap[i], heap[parent] ) ) { break; }
+            swap( i, parent );
+            i = parent;
+        }
+    }
+    
+    /** Move the id at position i down until the heap property holds. */
+    protected void siftDown( int i ) {
+        while ( true ) {
+            int best = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if ( left < size && above( heap[left], heap[best] ) ) { best = left; }
+            if ( right < size && above( heap[right], heap[best] ) ) { best = right; }
+            if ( best == i ) { break; }
+            swap( i, best );
+            i = best;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Open addressing hash table using primitive long keys.
+//
+
+// File: LongHashtable.java
+
+package camml.core.library;
+
+import java.util.ArrayList;
+
+/** 
+ * Hash table mapping primitive long keys to values using open addressing with linear probing.
+ * Unlike Hashtable no key object is needed and lookups do not allocate or lock.  Not thread
+ * safe, see ConcurrentLongHashtable. <br>
+ * The number of lookups and slots probed are recorded to monitor the quality of the hash. 
+ */
+public class LongHashtable<V> implements java.io.Serializable {
+    
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = 2838810365461519741L;
+    
+    /** Keys of entries.  Only meaningful where value[i] != null */
+    protected long[] key;
+    
+    /** Values of entries. null for empty slots. */
+    protected Object[] value;
+    
+    /** Number of entries in table. */
+    protected int size = 0;
+    
+    /** Total number of lookups */
+    protected long lookups = 0;
+    
+    /** Total number of slots probed by all lookups. */
+    protected long probes = 0;
+    
+    /** Longest probe sequence of any lookup. */
+    protected int maxProbes = 0;
+    
+    /** Create a table with default capacity. */
+    public LongHashtable() { this(16); }
+    
+    /** Create a table which can hold initialCapacity entries before resizing. */
+    public LongHashtable( int initialCapacity ) {
+        int capacity = 4;
+        while ( capacity < initialCapacity * 2 ) { capacity *= 2; }
+        key = new long[capacity];
+        value = new Object[capacity];
+    }
+    
+    /** Spread bits of key so nearby keys do not cluster. */
+    protected static int hash( long key ) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+    
+    /** Return slot containing k, or the empty slot where it would be inserted. */
+    protected int slot( long k ) {
+        int mask = key.length - 1;
+        int i = hash(k) & mask;
+        int n = 1;
+        while ( value[i] != null && key[i] != k ) { i = (i + 1) & mask; n++; }
+        lookups++;
+        probes += n;
+        if ( n > maxProbes ) { maxProbes = n; }
+        return i;
+    }
+    
+    /** Return the value with key k, or null if none present. */
+    @SuppressWarnings("unchecked")
+    public V get( long k ) { return (V)value[slot(k)]; }
+    
+    /** Does the table contain key k? */
+    public boolean containsKey( long k ) { return value[slot(k)] != null; }
+    
+    /** Set the value of key k.  Return the previous value, or null if none present. */
+    @SuppressWarnings("unchecked")
+    public V put( long k, V v ) {
+        if ( v == null ) { throw new NullPointerException("null values not allowed"); }
+        int i = slot(k);
+        V old = (V)value[i];
+        key[i] = k;
+        value[i] = v;
+        if ( old == null ) {
+            size++;
+            if ( size * 2 > key.length ) { resize( key.length * 2 ); }
+        }
+        return old;
+    }
+    
+    /** Set the value of key k if no value is present.  Return the value in the table. */
+    public V putIfAbsent( long k, V v ) {
+        V old = get(k);
+        if ( old != null ) { return old; }
+        put(k,v);
+        return v;
+    }
+    
+    /** Rehash all entries into a table with the given number of slots. */
+    protected void resize( int capacity ) {
+        long[] oldKey = key;
+        Object[] oldValue = value;
+        key = new long[capacity];
+        value = new Object[capacity];
+        int mask = capacity - 1;
+        for ( int j = 0; j < oldKey.length; j++ ) {
+            if ( oldValue[j] != null ) {
+                int i = hash(oldKey[j]) & mask;
+                while ( value[i] != null ) { i = (i + 1) & mask; }
+                key[i] = oldKey[j];
+                value[i] = oldValue[j];
+            }
+        }
+    }
+    
+    /** Remove all entries.  Capacity is unchanged. */
+    public void clear() {
+        java.util.Arrays.fill( value, null );
+        size = 0;
+    }
+    
+    /** Number of entries in the table. */
+    public int size() { return size; }
+    
+    /** Number of slots in the table. */
+    public int capacity() { return key.length; }
+    
+    /** Return all keys in the table. */
+    public long[] keys() {
+        long[] keys = new long[size];
+        int n = 0;
+        for ( int i = 0; i < key.length; i++ ) {
+            if ( value[i] != null ) { keys[n++] = key[i]; }
+        }
+        return keys;
+    }
+    
+    /** Return all values in the table, in the same order as keys() */
+    @SuppressWarnings("unchecked")
+    public ArrayList<V> values() {
+        ArrayList<V> values = new ArrayList<V>( size );
+        for ( int i = 0; i < value.length; i++ ) {
+            if ( value[i] != null ) { values.add( (V)value[i] ); }
+        }
+        return values;
+    }
+    
+    /** Total number of lookups since creation or the last resetStats() */
+    public long getLookups() { return lookups; }
+    
+    /** Total number of slots probed since creation or the last resetStats() */
+    public long getProbes() { return probes; }
+    
+    /** Longest probe sequence since creation or the last resetStats() */
+    public int getMaxProbes() { return maxProbes; }
+    
+    /** Mean number of slots probed per lookup. */
+    public double getMeanProbes() { return lookups == 0 ? 0 : probes / (double)lookups; }
+    
+    /** Reset lookup and probe counts. */
+    public void resetStats() { lookups = 0; probes = 0; maxProbes = 0; }
+    
+    public String toString() {
+        return "size = " + size() + ", capacity = " + capacity() + 
+            ", lookups = " + getLookups() + ", mean probes = " + getMeanProbes() + 
+            ", max probes = " + getMaxProbes();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Compact column based storage for discrete datasets.
+//
+
+// File: PackedDiscreteVector.java
+
+package camml.core.library;
+
+import cdms.core.*;
+
+/**
+ * PackedDiscreteVector stores a multi column vector of discrete data one column at a time.
+ * Binary columns use a single bit per value, columns with 3 or 4 states use 2 bits and other
+ * columns (up to 256 states) use a byte.  This is 4-32 times smaller than the int[] used by
+ * VectorFN.FastDiscreteVector, so scans over the data stay in cache much longer. <br>
+ * 
+ * Columns are returned by cmpnt(i) as PackedDiscreteVector.Column.  Hot loops (such as
+ * CPT.getSufficientArray1) may check for this class and use the bulk accessors addTo() and
+ * getValues() instead of calling intAt() once per row. <br>
+ * 
+ * Columns which cannot be packed (continuous data, or more than 256 states) are stored as
+ * they were.  Data weights are copied from the original vector.
+ */
+public class PackedDiscreteVector extends Value.Vector {
+
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -1658069417233720817L;
+
+    /** Columns of data, (un)packed. */
+    protected final Value.Vector[] column;
+    
+    /** Number of rows. */
+    protected final int length;
+    
+    /** Weight of each row, or null if all weights are 1. */
+    protected final double[] weight;
+    
+    /**
+     * Return data as a PackedDiscreteVector. If data is already packed, has no columns that
+     * could be packed, or has a packable column containing values which are not S_PROPER
+     * (eg. missing or intervention values), data is returned unchanged.
+     */
+    public static Value.Vector pack( Value.Vector data ) {
+        if ( data instanceof PackedDiscreteVector ) { return data; }
+        int numCols = SelectedVector.getNumCmpnts( (Type.Vector)data.t );
+        if ( numCols == -1 ) { return data; }
+        
+        Type.Structured eltType = (Type.Structured)((Type.Vector)data.t).elt;
+        boolean packable = false;
+        for ( int i = 0; i < numCols; i++ ) {
+            if ( Column.canPack(eltType.cmpnts[i]) ) { 
+                if ( !allProper(data.cmpnt(i)) ) { return data; }
+                packable = true;
+            }
+        }
+        return packable ? new PackedDiscreteVector( data ) : data;
+    }
+    
+    /** Is the status of every value in x S_PROPER?  Packed columns cannot store status. */
+    public static boolean allProper( Value.Vector x ) {
+        for ( int i = 0; i < x.length(); i++ ) {
+            if ( x.elt(i).status() != Value.S_PROPER ) { return false; }
+        }
+        return true;
+    }
+    
+    /** Create a packed copy of data.  data must be a vector of structured values. */
+    public PackedDiscreteVector( Value.Vector data ) {
+        super( (Type.Vector)data.t );
+        this.length = data.length();
+        
+        Type.Structured eltType = (Type.Structured)((Type.Vector)data.t).elt;
+        column = new Value.Vector[eltType.cmpnts.length];
+        for ( int i = 0; i < column.length; i++ ) {
+            Value.Vector original = data.cmpnt(i);
+            column[i] = original;
+            if ( Column.canPack(eltType.cmpnts[i]) ) {
+                // Columns containing values outside their type's bounds or values which are
+                // not S_PROPER are left unpacked.
+                try { column[i] = new Column(original); }
+                catch ( IllegalArgumentException e ) { }
+            }
+        }
+        
+        // Only store weights if they are not all 1.
+        double[] weight = null;
+        for ( int i = 0; i < length; i++ ) {
+            double w = data.weight(i);
+            if ( w != 1 && weight == null ) {
+                weight = new double[length];
+                java.util.Arrays.fill( weight, 0, i, 1.0 );
+            }
+            if ( weight != null ) { weight[i] = w; }
+        }
+        this.weight = weight;
+    }
+    
+    /** return number of rows. */
+    public int length() { return length; }
+
+    /** return weight of row i */
+    public double weight( int i ) { return (weight == null) ? 1.0 : weight[i]; }
+    
+    /** return column i */
+    public Value.Vector cmpnt( int i ) { return column[i]; }
+    
+    /** return row i */
+    public Value elt( int i ) { return new Row( i ); }
+
+    /** Row of a PackedDiscreteVector, values are read from the columns as required. */
+    protected class Row extends Value.Structured {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 4021467713853813590L;
+
+        /** Index of this row in the vector. */
+        protected final int index;
+        
+        protected Row( int index ) {
+            super( (Type.Structured)((Type.Vector)PackedDiscreteVector.this.t).elt );
+            this.index = index;
+        }
+        
+        public Value cmpnt( int i ) { return column[i].elt(index); }
+        
+        public int length() { return column.length; }
+        
+        public int intCmpnt( int i ) { return column[i].intAt(index); }
+        
+        public double doubleCmpnt( int i ) { return column[i].doubleAt(index); }
+    }
+    
+    /**
+     * A single column of discrete data using 1, 2 or 8 bits per value.  Values are stored
+     * relative to the lower bound of the column's type.
+     */
+    public static class Column extends Value.Vector {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = -5112522081858718519L;
+
+        /** Number of values. */
+        protected final int length;
+        
+        /** Lower bound of values stored. */
+        protected final int lwb;
+        
+        /** Bits used per value, 1, 2 or 8 */
+        protected final int bits;
+        
+        /** Packed values. */
+        protected final byte[] data;
+        
+        /** Type of each value in this column. */
+        protected final Type.Discrete eltType;
+        
+        /** Can columns of type t be packed? */
+        public static boolean canPack( Type t ) {
+            if ( !(t instanceof Type.Discrete) ) { return false; }
+            Type.Discrete dType = (Type.Discrete)t;
+            return dType.LWB > Integer.MIN_VALUE && dType.UPB - dType.LWB < 256;
+        }
+        
+        /** Pack a column of discrete values, all values must have status S_PROPER */
+        public Column( Value.Vector original ) {
+            super( (Type.Vector)original.t );
+            eltType = (Type.Discrete)((Type.Vector)t).elt;
+            if ( !canPack(eltType) ) {
+                throw new IllegalArgumentException( "Cannot pack vector of type " + t );
+            }
+            
+            length = original.length();
+            lwb = (int)eltType.LWB;
+            int arity = (int)eltType.UPB - lwb + 1;
+            if ( arity <= 2 ) { bits = 1; }
+            else if ( arity <= 4 ) { bits = 2; }
+            else { bits = 8; }
+            
+            if ( !allProper(original) ) {
+                throw new IllegalArgumentException( "Cannot pack values with status other than " +
+                                                    Value.S_PROPER );
+            }
+            
+            data = new byte[(int)(((long)length * bits + 7) / 8)];
+            for ( int i = 0; i < length; i++ ) {
+                int x = original.intAt(i) - lwb;
+                if ( x < 0 || x >= arity ) {
+                    throw new IllegalArgumentException( "Value " + original.intAt(i) + 
+                                                        " out of range for " + eltType );
+                }
+                if ( bits == 1 ) { data[i >> 3] |= x << (i & 7); }
+                else if ( bits == 2 ) { data[i >> 2] |= x << ((i & 3) << 1); }
+                else { data[i] = (byte)x; }
+            }
+        }
+        
+        /** return number of values */
+        public int length() { return length; }
+        
+        /** return value i */
+        public int intAt( int i ) {
+            if ( bits == 1 ) { return lwb + ((data[i >> 3] >> (i & 7)) & 1); }
+            else if ( bits == 2 ) { return lwb + ((data[i >> 2] >> ((i & 3) << 1)) & 3); }
+            else { return lwb + (data[i] & 0xFF); }
+        }
+        
+        /** return value i */
+        public double doubleAt( int i ) { return intAt(i); }
+        
+        /** return value i */
+        public Value elt( int i ) { return new Value.Discrete( eltType, intAt(i) ); }
+        
+        /** return lower bound of values in this column. */
+        public int getLWB() { return lwb; }
+        
+        /** return number of bits used to store each value. */
+        public int getBits() { return bits; }
+        
+        /** 
+         * index[i] += multiplier * (intAt(i) - lwb) for all rows.  This is the inner loop of
+         * CPT.decodeParentVector.
+         */
+        public void addTo( int[] index, int multiplier, int lwb ) {
+            int offset = this.lwb - lwb;
+            if ( bits == 8 ) {
+                for ( int i = 0; i < length; i++ ) { 
+                    index[i] += multiplier * ((data[i] & 0xFF) + offset); 
+                }
+                return;
+            }
+
+            // Unpack a byte at a time.
+            int mask = (1 << bits) - 1;
+            int perByte = 8 / bits;
+            int i = 0;
+            for ( int j = 0; j < data.length; j++ ) {
+                int b = data[j];
+                int end = Math.min( i + perByte, length );
+                for ( ; i < end; i++ ) {
+                    index[i] += multiplier * ((b & mask) + offset);
+                    b >>= bits;
+                }
+            }
+        }
+        
+        /** Copy all values into values[].  values[i] = intAt(i) */
+        public void getValues( int[] values ) {
+            for ( int i = 0; i < values.length; i++ ) { values[i] = 0; }
+            addTo( values, 1, 0 );
+        }
+    }
+}
@@ -191,6 +191,92 @@ public class WallaceRandom extends java.util.Random
         setSeed( new int[] {(int)(seed >> 32), (int)(seed & 0xFFFFFFFF)} );
     }
 
+    /** 
+     * Fill x with doubles on the interval (0,1).  This gives the same values and leaves the 
+     * generator in the same state as x.length calls to nextDouble(), without the per call 
+     * overhead.
+     */
+    public void nextDoubles( double[] x )
+    {
+        if ( verbose ) {
+            for ( int i = 0; i < x.length; i++ ) { x[i] = nextDouble(); }
+            return;
+        }
+        
+        // c7rand() with the seed held in local variables.
+        int it = seed[0], leh = seed[1];
+        for ( int i = 0; i < x.length; i++ ) {
+            it = ((it >> 7) & 0x01FFFFFF) + (it << 25);
+            if (it >= 0) it = it ^ MASK;
+            leh = leh * mt[it & 127] + it;
+            x[i] = SCALE * (((leh < 0) ? ~leh : leh) | 1);
+        }
+        seed[0] = it;    seed[1] = leh;
+        numCalls += x.length;
+    }
+    
+    /**
+     * Advance the generator n steps, as if nextDouble() were called n times. <br>
+     * NOTE: The multiplier used at each step depends on the whole sequence of the first seed 
+     *       value, so there is no shortcut and this takes time proportional to n.  Use split() 
+     *       to create independent streams.
+     */
+    public void jump( long n )
+    {
+        int it = seed[0], leh = seed[1];
+        for ( long i = 0; i < n; i++ ) {
+            it = ((it >> 7) & 0x01FFFFFF) + (it << 25);
+            if (it >= 0) it = it ^ MASK;
+            leh = leh * mt[it & 127] + it;
+        }
+        seed[0] = it;    seed[1] = leh;
+        numCalls += n;
+    }
+    
+    /** Number of streams created by split() */
+    protected long numSplits = 0;
+    
+    /**
+     * Return a new generator for the next stream derived from the current seed.  The values
+     * returned by this generator are unaffected, so splitting (eg. to give each thread its own
+     * stream) does not change the sequence seen by the caller.  Repeated calls give different 
+     * streams.
+     */
+    public WallaceRandom split()
+    {
+        return split( numSplits++ );
+    }
+    
+    /**
+     * Return a new generator for stream number index derived from the current seed, without
+     * changing the state of this generator.  Parallel workers may each create their own stream
+     * in any order and get the same results. <br>
+     * Seeds are scrambled with the SplitMix64 finaliser so streams from nearby seeds or indices 
+     * start from unrelated points of the sequence.
+     */
+    public WallaceRandom split( long index )
+    {
+        long z = ((long)seed[0] << 32) ^ (seed[1] & 0xFFFFFFFFL);
+        z = mix64( z + (index + 1) * GOLDEN_GAMMA );
+        long z2 = mix64( z + GOLDEN_GAMMA );
+        
+        int[] newSeed = new int[] { (int)(z >>> 32), (int)z2 };
+        // A first seed value of -1 is never changed by c7rand()
+        if ( newSeed[0] == -1 ) { newSeed[0] = (int)z2 == -1 ? 0 : (int)z2; }
+        return new WallaceRandom( newSeed );
+    }
+    
+    /** SplitMix64 finaliser, a bijective scramble of the bits of z. */
+    private static long mix64( long z )
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+    
+    /** Odd constant (2^64 / golden ratio) used to space out streams. */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
 
     /////////////////////////////////////////////////////////////////////////////////////////////
     //                   Functions taken directly from original code.                          //
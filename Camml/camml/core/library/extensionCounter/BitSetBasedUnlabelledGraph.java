@@ -171,7 +171,7 @@ public class BitSetBasedUnlabelledGraph extends UnlabelledGraph {
      *  number of connecteions and by ordering. This will not always produce ideal results.*/
     public long getCanonicalHash() {
         
-        return getCanonicalHash4();
+        return getCanonicalHash(getCanonicalOrder());
 
     }
 
@@ -235,7 +235,8 @@ public class BitSetBasedUnlabelledGraph extends UnlabelledGraph {
         sort(index,left,end,false);
     }
     
-    private long getCanonicalHash4() {
+    /** Return the node ordering used by getCanonicalHash() */
+    public int[] getCanonicalOrder() {
 
         // Create initial node ordering.
         int[] nodeOrder = new int[numNodes];
@@ -284,16 +285,7 @@ public class BitSetBasedUnlabelledGraph extends UnlabelledGraph {
         min = 0;
         while (min < clique.length && clique[min] == -1) {min++;}
 
-        long hash = 0;            
-        for (int i = 0; i < numNodes; i++) {
-            for (int j = 0; j < numNodes; j++ ) {
-                if (parentList[nodeOrder[i]].get(nodeOrder[j])) {
-                    hash += nodeHash[i][j];
-                }
-            }
-        }
-        
-        return hash;            
+        return nodeOrder;
     }
     
     /** Add arc to arcMatrix. Updates rootNodes, leafNodes, connected, parentList
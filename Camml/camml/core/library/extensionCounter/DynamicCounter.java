@@ -29,8 +29,6 @@
 
 package camml.core.library.extensionCounter;
 
-import java.util.Hashtable;
-
 /** Dynamic programming approach to Extension Counting. 
  *  Various operations are used in an attempt to reduce the branching factor of the
  *  algorithm and a cache of partial results is kept in an attempt to speed up the calculation*/
@@ -52,8 +50,11 @@ public class DynamicCounter {
         return ret;
     }
 
-    /** Hash table mapping from Long(hash) -> Long(numExtensions)*/
-    /*protected*/ public Hashtable<Long,Double> dagHash = new Hashtable<Long,Double>();
+    /** Approximate maximum memory used by dagHash */
+    public static final long maxDAGHashBytes = 64L << 20;
+    
+    /** Cache mapping from DAG -> numExtensions, verified by canonical form. */
+    /*protected*/ public final ExtensionCountCache dagHash = new ExtensionCountCache(maxDAGHashBytes);
     
             
     /** perms is recursively called to calculate permutations.
@@ -182,15 +183,25 @@ public class DynamicCounter {
         dCounterCalls[numNodes]++;
 
         // Lookup dag in hashtable.
-        Long hash = null;
+        long hash = 0;
+        long[] form = null;
         if (numNodes < maxHashableSize) {
-            if ((operations & opCheckDAGHash) != 0) { hash = new Long(g.getHash());    }
-            else if ((operations & opCheckCanonicalDAGHash) != 0) {    hash = new Long(g.getCanonicalHash()); }
+            int[] order = null;
+            if ((operations & opCheckDAGHash) != 0) { 
+                order = new int[numNodes];
+                for (int i = 0; i < numNodes; i++) { order[i] = i; }
+                hash = g.getHash();
+            }
+            else if ((operations & opCheckCanonicalDAGHash) != 0) {    
+                order = g.getCanonicalOrder();
+                hash = g.getCanonicalHash(order); 
+            }
+            if (order != null) { form = g.getCanonicalForm(order); }
         }
         
-        if (hash != null) {
-            Double ext = dagHash.get(hash);
-            if (ext != null) { return ext.doubleValue(); }
+        if (form != null) {
+            double ext = dagHash.get(hash,form);
+            if (ext != -1) { return ext; }
         }
         
 
@@ -231,9 +242,8 @@ public class DynamicCounter {
         
             
         // put value in hashtable for later use.
-        if ((operations & (opCheckDAGHash|opCheckCanonicalDAGHash)) != 0 &&
-            (numNodes < maxHashableSize) ) {
-            dagHash.put(hash,new Double(total));            
+        if (form != null) {
+            dagHash.put(hash,form,total);            
             
             dHashEntries[0]++;
             dHashEntries[numNodes]++;
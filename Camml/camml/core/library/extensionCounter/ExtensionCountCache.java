@@ -0,0 +1,196 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Thread safe, bounded cache of linear extension counts.
+//
+
+// File: ExtensionCountCache.java
+
+package camml.core.library.extensionCounter;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache mapping DAGs to their number of linear extensions.  Entries are keyed by 
+ * UnlabelledGraph.getCanonicalHash() and store UnlabelledGraph.getCanonicalForm() so a hash
+ * collision can never return the count of a different DAG. <br>
+ * 
+ * The cache is split into independently synchronized segments so it may be shared by 
+ * searches running in parallel.  Each segment may use approximately maxBytes/numSegments
+ * bytes, the least recently used entries are discarded when a segment is full.
+ */
+public class ExtensionCountCache
+{
+    /** Number of independently locked segments, must be a power of 2. */
+    protected static final int numSegments = 16;
+    
+    /** Cached count along with the canonical form used to verify matches */
+    protected static class CachedCount {
+        final long[] form;
+        final double count;
+        CachedCount( long[] form, double count ) { this.form = form; this.count = count; }
+        
+        /** Approximate memory used by entry and its map node. */
+        long bytes() { return 8L * form.length + 96; }
+    }
+    
+    /** LRU map from canonical hash to CachedCount */
+    protected static class Segment extends LinkedHashMap<Long,CachedCount> {
+        /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+        private static final long serialVersionUID = 5103577357207434651L;
+        
+        final long maxBytes;
+        
+        /** Approximate memory used by entries. */
+        long bytes;
+        
+        /** Lookup statistics, guarded by the segment's lock. */
+        long hits, misses, collisions;
+        
+        Segment( long maxBytes ) { super( 16, 0.75f, true ); this.maxBytes = maxBytes; }
+        
+        /** Add entry then discard least recently used entries until within maxBytes. */
+        void add( long hash, CachedCount e ) {
+            CachedCount old = put( hash, e );
+            if ( old != null ) { bytes -= old.bytes(); }
+            bytes += e.bytes();
+            Iterator<Map.Entry<Long,CachedCount>> it = entrySet().iterator();
+            while ( bytes > maxBytes && size() > 1 ) {
+                bytes -= it.next().getValue().bytes();
+                it.remove();
+            }
+        }
+        
+        public void clear() { super.clear(); bytes = 0; }
+    }
+    
+    /** Segments of cache */
+    protected final Segment[] segment;
+    
+    /** Create a cache using up to (approximately) maxBytes of memory */
+    public ExtensionCountCache( long maxBytes ) {
+        segment = new Segment[numSegments];
+        for ( int i = 0; i < segment.length; i++ ) {
+            segment[i] = new Segment( maxBytes / numSegments );
+        }
+    }
+    
+    /** Return segment used to store hash */
+    protected Segment getSegment( long hash ) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return segment[(int)(h >>> 60) & (numSegments-1)];
+    }
+    
+    /** Return the count of the DAG with the given canonical hash and form, or -1 if unknown. */
+    public double get( long hash, long[] form ) {
+        Segment s = getSegment(hash);
+        synchronized ( s ) {
+            CachedCount e = s.get(hash);
+            if ( e == null ) { s.misses++; return -1; }
+            if ( !Arrays.equals(e.form, form) ) { s.collisions++; return -1; }
+            s.hits++;
+            return e.count;
+        }
+    }
+    
+    /** Store the count of the DAG with the given canonical hash and form. */
+    public void put( long hash, long[] form, double count ) {
+        Segment s = getSegment(hash);
+        synchronized ( s ) { s.add( hash, new CachedCount(form,count) ); }
+    }
+    
+    /** Return the count for g, or -1 if unknown. */
+    public double get( UnlabelledGraph g ) {
+        int[] order = g.getCanonicalOrder();
+        return get( g.getCanonicalHash(order), g.getCanonicalForm(order) );
+    }
+    
+    /** Store the count for g */
+    public void put( UnlabelledGraph g, double count ) {
+        int[] order = g.getCanonicalOrder();
+        put( g.getCanonicalHash(order), g.getCanonicalForm(order), count );
+    }
+    
+    /** Remove all entries */
+    public void clear() {
+        for ( int i = 0; i < segment.length; i++ ) {
+            synchronized ( segment[i] ) { segment[i].clear(); }
+        }
+    }
+    
+    /** Approximate memory used by entries in cache */
+    public long getBytes() {
+        long bytes = 0;
+        for ( int i = 0; i < segment.length; i++ ) {
+            synchronized ( segment[i] ) { bytes += segment[i].bytes; }
+        }
+        return bytes;
+    }
+    
+    /** Number of entries in cache */
+    public int size() {
+        int size = 0;
+        for ( int i = 0; i < segment.length; i++ ) {
+            synchronized ( segment[i] ) { size += segment[i].size(); }
+        }
+        return size;
+    }
+    
+    /** Number of lookups which found a matching DAG */
+    public long getHits() { 
+        long total = 0;
+        for ( int i = 0; i < segment.length; i++ ) {
+            synchronized ( segment[i] ) { total += segment[i].hits; }
+        }
+        return total;
+    }
+    
+    /** Number of lookups which found no entry */
+    public long getMisses() { 
+        long total = 0;
+        for ( int i = 0; i < segment.length; i++ ) {
+            synchronized ( segment[i] ) { total += segment[i].misses; }
+        }
+        return total;
+    }
+    
+    /** Number of lookups which found an entry for a different DAG with the same hash */
+    public long getCollisions() { 
+        long total = 0;
+        for ( int i = 0; i < segment.length; i++ ) {
+            synchronized ( segment[i] ) { total += segment[i].collisions; }
+        }
+        return total;
+    }
+}
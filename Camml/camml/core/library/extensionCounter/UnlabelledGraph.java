@@ -56,10 +56,11 @@ public abstract class UnlabelledGraph {
     }
         
     
-    protected static long[][] nodeHash;
+    protected static volatile long[][] nodeHash;
     protected static Random rand = new Random(123);
-    /** Initialise random n*n array of longs used to hash DAGs */
-    protected static void initHash( int n )
+    /** Initialise random n*n array of longs used to hash DAGs.  Synchronized as graphs may
+     *  be created by several searches at once. */
+    protected static synchronized void initHash( int n )
     {
         if (nodeHash == null) { nodeHash = new long[0][0]; }
         if (n <= nodeHash.length) { return; }
@@ -114,6 +115,42 @@ public abstract class UnlabelledGraph {
 
     public abstract long getCanonicalHash();
 
+    /** Return the node ordering used by getCanonicalHash() */
+    public abstract int[] getCanonicalOrder();
+    
+    /** Return a hash of this DAG with node i relabelled as order[i]. */
+    public long getCanonicalHash( int[] order ) {
+        long[][] nodeHash = UnlabelledGraph.nodeHash;
+        long hash = 0;            
+        for (int i = 0; i < numNodes; i++) {
+            for (int j = 0; j < numNodes; j++ ) {
+                if (isDirectedArc(order[j],order[i])) {
+                    hash += nodeHash[i][j];
+                }
+            }
+        }
+        return hash;
+    }
+    
+    /** 
+     * Return the adjacency matrix of this DAG with node i relabelled as order[i], packed
+     * into longs with the number of nodes in element 0.  Graphs with equal forms are
+     * isomorphic, so this may be used to verify a match found by getCanonicalHash().
+     */
+    public long[] getCanonicalForm( int[] order ) {
+        long[] form = new long[1 + (numNodes*numNodes + 63) / 64];
+        form[0] = numNodes;
+        for (int i = 0; i < numNodes; i++) {
+            for (int j = 0; j < numNodes; j++ ) {
+                if (isDirectedArc(order[j],order[i])) {
+                    int bit = i*numNodes + j;
+                    form[1 + bit/64] |= 1L << (bit%64);
+                }
+            }
+        }
+        return form;
+    }
+
     public abstract void addArc(int parent, int child, boolean addImpliedLinks);
     public abstract UnlabelledGraph removeNode(int node, boolean overwrite);
 
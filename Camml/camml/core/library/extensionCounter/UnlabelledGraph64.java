@@ -157,7 +157,7 @@ public class UnlabelledGraph64 extends UnlabelledGraph {
      *  number of connecteions and by ordering. This will not always produce ideal results.*/
     public long getCanonicalHash() {
         
-        return getCanonicalHash4();
+        return getCanonicalHash(getCanonicalOrder());
 
     }
 
@@ -221,7 +221,8 @@ public class UnlabelledGraph64 extends UnlabelledGraph {
         sort(index,left,end,false);
     }
     
-    private long getCanonicalHash4() {
+    /** Return the node ordering used by getCanonicalHash() */
+    public int[] getCanonicalOrder() {
 
         // Create initial node ordering.
         int[] nodeOrder = new int[numNodes];
@@ -279,33 +280,7 @@ public class UnlabelledGraph64 extends UnlabelledGraph {
           }*/
         
         
-        long hash = 0;            
-        for (int i = 0; i < numNodes; i++) {
-            for (int j = 0; j < numNodes; j++ ) {
-                if ((parentList[nodeOrder[i]] & nodeMask[nodeOrder[j]]) != 0) {
-                    hash += nodeHash[i][j];
-                }
-            }
-        }
-        
-        // Repeat hash with arcs reversed 
-        // (A graph with all arcs reversed should have the same number of extensions
-        //  as the original graph so we hash them to the same value.)
-        /*
-          sort(nodeOrder,0,nodeOrder.length-1,true);
-        
-          long hash2 = 0;            
-          for (int i = 0; i < numNodes; i++) {
-          for (int j = 0; j < numNodes; j++ ) {
-          if ((parentList[nodeOrder[i]] & nodeMask[nodeOrder[j]]) != 0) {
-          hash2 += nodeHash[i][j];
-          }
-          }
-          }
-        
-          if (hash2 < hash) {return hash2;}
-        */            
-        return hash;            
+        return nodeOrder;
     }
     
     /** Add arc to arcMatrix. Updates rootNodes, leafNodes, connected, parentList
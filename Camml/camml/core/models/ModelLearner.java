@@ -211,6 +211,18 @@ public interface ModelLearner extends java.io.Serializable
     public interface GetNumParams {
         public int getNumParams( Value params );
     }
+
+    /**
+     * A ModelLearner implementing TallyCoster can cost a discrete leaf directly from an array
+     * of (possibly weighted) counts.  tally[x][i] is the count of state x in column i, this is
+     * the layout returned by CPT.getSufficientArray1 so CPTLearner can cost each parent
+     * combination without wrapping counts in Value objects. <br>
+     * tallyCost(tally,i) must return the same value as sParameterizeAndCost would given the
+     * same counts.
+     */
+    public interface TallyCoster {
+        public double tallyCost( double[][] tally, int i );
+    }
     
 }
 
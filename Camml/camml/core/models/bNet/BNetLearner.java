@@ -144,6 +144,12 @@ public class BNetLearner extends ModelLearner.DefaultImplementation
         if ( searchType.equals("Metropolis") ) {
             s = new MetropolisSearch( rand, x, mlLearner, mmlLearner );
         }
+        else if ( searchType.equals("MultiChainMetropolis") ) {
+            s = new MultiChainMetropolisSearch( rand, x, mlLearner, mmlLearner );
+        }
+        else if ( searchType.equals("ReplicaExchangeMetropolis") ) {
+            s = new ReplicaExchangeMetropolisSearch( rand, x, mlLearner, mmlLearner );
+        }
         else if ( searchType.equals("Anneal") ) {
             s = new AnnealSearch( rand, x, mlLearner, mmlLearner ) ;
         }
@@ -235,7 +241,8 @@ public class BNetLearner extends ModelLearner.DefaultImplementation
      *    <b>mmlLearner</b> -- Learner used to represent local structure. 
      *                          Default {@link CPTLearner#mmlAdaptiveCPTLearner} <br>
      *    <b>mix</b>        -- Should a mixture model be returned? <br>
-     *    <b>searchType</b> -- "Metropolis" or "Anneal" <br>
+     *    <b>searchType</b> -- "Metropolis", "MultiChainMetropolis", "ReplicaExchangeMetropolis"
+     *                          or "Anneal" <br>
      *  <b>fullResults</b>-- Instead of returning a (m,s,y) structure a (m,s,y,f) structure
      *                is returned where f is a full heirachy of MMLECs, SECs & DAGs along
      *                with values for MML, ML, posterior, relative prior, etc. <br>
@@ -303,7 +310,8 @@ public class BNetLearner extends ModelLearner.DefaultImplementation
                 "mlLearner  -- Used to create maximum likelyhood scores for SEC testing",
                 "mmlLearner -- Learner used for each subModel.  Default is AdaptiveCode",
                 "mix        -- Should a mixture model be returned?",
-                "searchType -- \"Metropolis\" or \"Anneal\"",
+                "searchType -- \"Metropolis\", \"MultiChainMetropolis\", " +
+                "\"ReplicaExchangeMetropolis\" or \"Anneal\"",
                 " Extra options may be passed to Metropolis and Anneal searches including.",
                 "arcProb    -- Fix_bnt_output the probability of arc existance at a value",
                 "temperature -- Fix_bnt_output temperature at a set value",
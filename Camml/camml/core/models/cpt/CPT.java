@@ -39,6 +39,7 @@ package camml.core.models.cpt;
 import java.util.Random;
 
 import cdms.core.*;
+import camml.core.library.PackedDiscreteVector;
 import camml.core.library.SelectedVector;
 import camml.core.models.ModelLearner.GetNumParams;
 import camml.core.models.multinomial.MultinomialLearner.Multinomial2;
@@ -199,13 +200,16 @@ public class CPT extends Value.Model
             vectorArray[i] = z.cmpnt(i);
         }
         
-        // Loop through vectors decoding values.
-        for (int i = 0; i < decodedArray.length; i++) {
-            int retVal = 0;
-            for (int j = 0; j < multipliers.length; j++) {
-                retVal += multipliers[j] * (vectorArray[ j ].intAt(i) - parentlwbs[j]);
+        // Loop through vectors decoding values.  Packed columns are decoded in bulk.
+        for (int j = 0; j < multipliers.length; j++) {
+            if ( vectorArray[j] instanceof PackedDiscreteVector.Column ) {
+                ((PackedDiscreteVector.Column)vectorArray[j]).addTo( decodedArray, multipliers[j], 
+                                                                     parentlwbs[j] );
+                continue;
+            }
+            for (int i = 0; i < decodedArray.length; i++) {
+                decodedArray[i] += multipliers[j] * (vectorArray[ j ].intAt(i) - parentlwbs[j]);
             }
-            decodedArray[i] = retVal;
         }
         return decodedArray;
     }        
@@ -516,7 +520,8 @@ public class CPT extends Value.Model
     
     /**
      * Returns sufficient statistics (in double) in an array.  This array may seem backwards, but it is
-     * done this way for east compatibility with getSufficient.
+     * done this way for east compatibility with getSufficient. <br>
+     * The array returned may be shared with CountTableCache and must not be modified.
      */
     //(dependentVector(data), parentView(data))
 //    public int[][] getSufficientArray( Value.Vector x, Value.Vector z ) 
@@ -527,6 +532,42 @@ public class CPT extends Value.Model
             throw new RuntimeException("Vector lengths do not match in CPT.getSufficient.");
         }
         
+        // If x and z are columns of a known dataset, attempt to find the table in the 
+        // CountTableCache (possibly by marginalising a table with an extra parent).
+        Value.Vector data = CountTableCache.getBaseVector( z );
+        int[] parents = (data == null) ? null : ((SelectedVector)z).getColumns();
+        int child = (parents == null) ? -1 : CountTableCache.findColumn( data, x );
+        if ( child != -1 && isSorted(parents) ) {
+            int childArity = (int)((Type.Discrete)((Type.Model)t).dataSpace).UPB - 
+                (int)((Type.Discrete)((Type.Model)t).dataSpace).LWB + 1;
+            int[] parentArity = new int[parentlwbs.length];
+            for ( int i = 0; i < parentArity.length; i++ ) { 
+                parentArity[i] = parentupbs[i] - parentlwbs[i] + 1;
+            }
+            
+            CountTableCache cache = CountTableCache.getCache( data );
+            double[][] tally = cache.getTally( child, parents, childArity, parentArity );
+            if ( tally == null ) {
+                tally = tallyArray1( x, z );
+                cache.putTally( child, parents, childArity, parentArity, tally );
+            }
+            return tally;
+        }
+        
+        return tallyArray1( x, z );
+    }
+    
+    /** Return true if array is in ascending order. */
+    private static boolean isSorted( int[] array ) {
+        for ( int i = 1; i < array.length; i++ ) {
+            if ( array[i-1] >= array[i] ) { return false; }
+        }
+        return true;
+    }
+    
+    /** Tally sufficient statistics directly from the data.  Used by getSufficientArray1 */
+    private double[][] tallyArray1( Value.Vector x, Value.Vector z ) 
+    {
         // Split up all data points relative to their parents.
         // decodedParant[i] == decodeParent( z.elt(i) )
         // [0, 2, 1, 2, 2, 3, 2, 2, 0]
@@ -539,6 +580,15 @@ public class CPT extends Value.Model
         
         // Tally up each occurance.
         double[][] tally = new double[arity][numCombinations];    
+        if ( x instanceof PackedDiscreteVector.Column ) {
+            int[] xArray = new int[decodedParent.length];
+            ((PackedDiscreteVector.Column)x).getValues( xArray );
+            SelectedVector zVec = (SelectedVector)z;
+            for ( int i = 0; i < decodedParent.length; i++ ) {
+                tally[lwb + xArray[i]][ decodedParent[i] ] += zVec.getOriginalWeight(i);
+            }
+            return tally;
+        }
         for ( int i = 0; i < decodedParent.length; i++ ) {
         	tally[lwb + x.intAt(i)][ decodedParent[i] ] += ((SelectedVector) z).getOriginalWeight(i);
 //        	tally[lwb + x.intAt(i)][ decodedParent[i] ] += ((SelectedVector) z).weight(i);
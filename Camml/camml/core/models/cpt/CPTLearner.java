@@ -36,6 +36,10 @@
 
 package camml.core.models.cpt;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import cdms.core.*;
 import camml.core.models.*;
 import camml.core.models.multinomial.*;
@@ -251,10 +255,18 @@ public class CPTLearner extends ModelLearner.DefaultImplementation
         int[] lwbArray = bounds[0];
         int[] upbArray = bounds[1];                    
         
-        // Create child model used in CPT cells.
-        Value.Model childModel = getChildModel(x,leafModelLearner);
-                    
         try {
+            // Discrete leaf learners are costed directly from the table of counts.
+            if ( leafModelLearner instanceof TallyCoster ) {
+                Type.Discrete xType = (Type.Discrete)((Type.Vector)x.t).elt;
+                CPT cptModel = new CPT( MultinomialLearner.getMultinomialModel(xType), 
+                                        lwbArray, upbArray );
+                return tallyCost( cptModel.getSufficientArray1(x,z) );
+            }
+            
+            // Create child model used in CPT cells.
+            Value.Model childModel = getChildModel(x,leafModelLearner);
+            
             CPT cptModel = new CPT( childModel, lwbArray, upbArray );
             Value sufficientStats = cptModel.getSufficient(x,z);
             return sParameterizeAndCost( cptModel, sufficientStats );
@@ -282,6 +294,53 @@ public class CPTLearner extends ModelLearner.DefaultImplementation
         return totalCost;    
     }
 
+    /** 
+     * Return true if costs depend on the data only through (weighted) counts of each child 
+     * state for each parent combination.  This is the case when leafModelLearner is a
+     * TallyCoster.
+     */
+    public boolean isCountBased() { return leafModelLearner instanceof TallyCoster; }
+    
+    /** 
+     * Cost a table of counts as returned by CPT.getSufficientArray1.  This gives the same
+     * result as sParameterizeAndCost without creating Value objects for each parent combination.
+     * leafModelLearner must implement TallyCoster, and tally must not be modified afterwards.
+     */
+    public double tallyCost( double[][] tally ) {
+        // Fractional tallies are expensive to cost, so remember the cost of each table.
+        // CountTableCache returns the same (unmodified) table each time a family is requested.
+        // This covers LatentAdaptiveCPTLearner and the mmlLatentAdaptiveCPTLearners, whose
+        // leaves are all LatentAdaptiveCodeLearners.
+        Map<double[][],Double> memo = null;
+        if ( leafModelLearner instanceof LatentAdaptiveCodeLearner ) {
+            synchronized ( this ) {
+                if ( tallyCostMemo == null ) {
+                    tallyCostMemo = 
+                        Collections.synchronizedMap( new WeakHashMap<double[][],Double>() );
+                }
+                memo = tallyCostMemo;
+            }
+            Double cost = memo.get( tally );
+            if ( cost != null ) { return cost.doubleValue(); }
+        }
+        
+        TallyCoster leafCoster = (TallyCoster)leafModelLearner;
+        double totalCost = 0;
+        for (int i = 0; i < tally[0].length; i++ ) {
+            totalCost += leafCoster.tallyCost( tally, i );
+        }
+        
+        if ( memo != null ) { memo.put( tally, totalCost ); }
+        return totalCost;
+    }
+    
+    /** 
+     * Costs of fractional count tables already passed to tallyCost.  Arrays do not override
+     * equals() or hashCode() so tables are matched by identity, and are released when the
+     * table itself is garbage collected.
+     */
+    protected transient Map<double[][],Double> tallyCostMemo;
+
     /** return "CPTLearner(leafModelLearner)"*/
     public String toString() { return "CPTLearner("+leafModelLearner+")"; }
     
@@ -0,0 +1,244 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Cache of CPT count tables allowing subsets to be found by marginalisation.
+//
+
+// File: CountTableCache.java
+
+package camml.core.models.cpt;
+
+import java.lang.ref.SoftReference;
+
+import cdms.core.*;
+import camml.core.library.ArrayIndexedHashTable;
+import camml.core.library.SelectedVector;
+
+/**
+ * CountTableCache stores the count tables (as returned by CPT.getSufficientArray1) of recently
+ * tallied child/parent families of a single dataset. <br>
+ * 
+ * Most proposals made during a search delete a single arc, so the family being costed is
+ * often the family of the current model with one parent removed.  Instead of rescanning every
+ * row of the data, the child's table can be found by summing the cached superset table over
+ * the removed parent.  This is O(arity*numCombinations) instead of O(numRows*numParents). <br>
+ * 
+ * Tables are keyed by [child,parent1,parent2,...] with parents in ascending column order (the
+ * order Node stores them in).  SoftReferences are used (as in SplitVectorCache) so tables are
+ * released when memory runs short.
+ */
+public class CountTableCache extends ArrayIndexedHashTable {
+
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = 5153085867373217730L;
+
+    /** Maximum number of tables stored before the cache is flushed. */
+    public static int maxEntries = 20000;
+    
+    /** Cache for the most recently used dataset. */
+    protected static CountTableCache currentCache = null;
+
+    /** Dataset all tables are tallied from. */
+    protected final Value.Vector data;
+
+    /** Number of columns in data. */
+    protected final int numColumns;
+    
+    /** Number of tables found directly in the cache. */
+    public int hits = 0;
+    
+    /** Number of tables found by marginalising a cached superset. */
+    public int marginalised = 0;
+    
+    /** Number of tables which had to be tallied from the data. */
+    public int misses = 0;
+    
+    /** Cache entry, a table along with the arities used to create it. */
+    protected static class Entry {
+        final int childArity;
+        final int[] parentArity;
+        final double[][] tally;
+        
+        Entry( int childArity, int[] parentArity, double[][] tally ) {
+            this.childArity = childArity;
+            this.parentArity = parentArity;
+            this.tally = tally;
+        }
+        
+        /** Do the arities of this entry match those given? */
+        boolean matches( int childArity, int[] parentArity ) {
+            if ( this.childArity != childArity ) { return false; }
+            for ( int i = 0; i < parentArity.length; i++ ) {
+                if ( this.parentArity[i] != parentArity[i] ) { return false; }
+            }
+            return true;
+        }
+    }
+    
+    /** Constructor, data is only used as an identifier for the cache. */
+    protected CountTableCache( Value.Vector data ) {
+        super();
+        this.data = data;
+        this.numColumns = SelectedVector.getNumCmpnts( (Type.Vector)data.t );
+    }
+    
+    /** Return the cache associated with data, creating a new cache if required. */
+    public static synchronized CountTableCache getCache( Value.Vector data ) {
+        if ( currentCache == null || currentCache.data != data ) {
+            currentCache = new CountTableCache( data );
+        }
+        return currentCache;
+    }
+    
+    /**
+     * Find the underlying dataset of a parent view.  Returns null if z is not a SelectedVector
+     * using every row of some dataset.
+     */
+    public static Value.Vector getBaseVector( Value.Vector z ) {
+        if ( !(z instanceof SelectedVector) || ((SelectedVector)z).getRows() != null ) {
+            return null;
+        }
+        Value.Vector v = ((SelectedVector)z).getOriginalVector();
+        while ( v instanceof SelectedVector && ((SelectedVector)v).getRows() == null &&
+                ((SelectedVector)v).getColumns() == null ) {
+            v = ((SelectedVector)v).getOriginalVector();
+        }
+        return v;
+    }
+
+    /** Return the column of data x was taken from, or -1 if it cannot be found. */
+    public static int findColumn( Value.Vector data, Value.Vector x ) {
+        int numCmpnts = SelectedVector.getNumCmpnts( (Type.Vector)data.t );
+        for ( int i = 0; i < numCmpnts; i++ ) {
+            if ( data.cmpnt(i) == x ) { return i; }
+        }
+        return -1;
+    }
+    
+    /** Make a key of the form [child,parent1,parent2,...] */
+    protected static int[] makeKey( int child, int[] parents ) {
+        int[] key = new int[parents.length+1];
+        key[0] = child;
+        for ( int i = 0; i < parents.length; i++ ) { key[i+1] = parents[i]; }
+        return key;
+    }
+
+    /** Return the Entry stored under key or null if none is present. */
+    protected Entry getEntry( int[] key ) {
+        // Only SoftReference<Entry> values are stored, see putEntry()
+        @SuppressWarnings("unchecked")
+        SoftReference<Entry> ref = (SoftReference<Entry>)get2( key );
+        if ( ref == null ) { return null; }
+        Entry entry = ref.get();
+        if ( entry == null ) { remove2( key ); }
+        return entry;
+    }
+    
+    /**
+     * Return the count table for child given parents.  The table is either taken directly from
+     * the cache or calculated by marginalising a cached table containing a single extra parent.
+     * If neither is available null is returned.  parents must be sorted in ascending order.
+     * The returned table is shared and must not be modified.
+     */
+    public synchronized double[][] getTally( int child, int[] parents, 
+                                             int childArity, int[] parentArity ) {
+        int[] key = makeKey( child, parents );
+        Entry entry = getEntry( key );
+        if ( entry != null && entry.matches(childArity,parentArity) ) {
+            hits++;
+            return entry.tally;
+        }
+        
+        // Look for a table with a single extra parent inserted at position k.
+        int[] superKey = new int[key.length+1];
+        superKey[0] = child;
+        for ( int k = 0; k <= parents.length; k++ ) {
+            int lwb = (k == 0) ? 0 : parents[k-1]+1;
+            int upb = (k == parents.length) ? numColumns-1 : parents[k]-1;
+            
+            for ( int i = 0; i < k; i++ ) { superKey[i+1] = parents[i]; }
+            for ( int i = k; i < parents.length; i++ ) { superKey[i+2] = parents[i]; }
+            
+            for ( int extra = lwb; extra <= upb; extra++ ) {
+                if ( extra == child ) { continue; }
+                superKey[k+1] = extra;
+                Entry superEntry = getEntry( superKey );
+                if ( superEntry == null || superEntry.childArity != childArity ) { continue; }
+                
+                // Check all shared parents have the same arity.
+                boolean match = true;
+                for ( int i = 0; i < parents.length; i++ ) {
+                    int j = (i < k) ? i : i+1;
+                    if ( superEntry.parentArity[j] != parentArity[i] ) { match = false; }
+                }
+                if ( !match ) { continue; }
+                
+                double[][] tally = marginalise( superEntry.tally, superEntry.parentArity, k );
+                marginalised++;
+                putEntry( key, childArity, parentArity, tally );
+                return tally;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /** Store tally in the cache. */
+    public synchronized void putTally( int child, int[] parents, 
+                                       int childArity, int[] parentArity, double[][] tally ) {
+        putEntry( makeKey(child,parents), childArity, parentArity, tally );
+    }
+    
+    /** Store tally under key, flushing the cache if it has grown too large. */
+    protected void putEntry( int[] key, int childArity, int[] parentArity, double[][] tally ) {
+        if ( size() >= maxEntries ) { clear(); }
+        put2( key, new SoftReference<Entry>( new Entry(childArity, parentArity.clone(), tally) ) );
+    }
+    
+    /**
+     * Sum tally over the parent in position k.  Parent combinations are indexed as in
+     * CPT.decodeParents (ie. the first parent changes fastest).
+     */
+    public static double[][] marginalise( double[][] tally, int[] parentArity, int k ) {
+        int multiplier = 1;
+        for ( int i = 0; i < k; i++ ) { multiplier *= parentArity[i]; }
+        int block = multiplier * parentArity[k];
+        
+        double[][] newTally = new double[tally.length][tally[0].length / parentArity[k]];
+        for ( int x = 0; x < tally.length; x++ ) {
+            double[] oldRow = tally[x];
+            double[] newRow = newTally[x];
+            for ( int c = 0; c < oldRow.length; c++ ) {
+                newRow[ c % multiplier + (c / block) * multiplier ] += oldRow[c];
+            }
+        }
+        return newTally;
+    }    
+}
@@ -50,6 +50,7 @@ import cdms.core.FN.LogFactorial;
  *              Add (|x|-1)*log(Pi*e/6)/2 to make it a MML score (as done in CaMML) <br>
  */
 public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.TallyCoster
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = -4679307451046263387L;
@@ -158,6 +159,25 @@ public class AdaptiveCodeLearner extends ModelLearner.DefaultImplementation
             totalTally += tally[i];
         }
         
+        return adaptiveCost( tally, totalTally );
+    }
+
+    /** Cost column i of tally without creating Value objects.  See ModelLearner.TallyCoster */
+    public double tallyCost( double[][] tally, int i )
+    {
+        int[] counts = new int[tally.length];
+        int totalTally = 0;
+        for (int j = 0; j < counts.length; j++) {        
+            counts[j] = (int)tally[j][i];
+            totalTally += counts[j];
+        }
+        
+        return adaptiveCost( counts, totalTally );
+    }
+    
+    /** return cost of adaptive code given tally and totalTally = sum(tally) */
+    protected double adaptiveCost( int[] tally, int totalTally )
+    {
         // adaptive code cost = log( (N+|x|-1)!/((|x|-1)!*product(x_i)) )
         // = log!(N+|x|-1) - log!(|x|-1) - sum log!(x_i)
         // LogFactorial.logFactorial(arity-1)    
@@ -49,6 +49,7 @@ import cdms.plugin.model.Gamma;
  * Cost models using an BDE code.<br>
  */
 public class BDELearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.TallyCoster
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 6038596144648560788L;
@@ -140,6 +141,25 @@ public class BDELearner extends ModelLearner.DefaultImplementation
             totalTally += tally[i];
         }
         
+        return bdeCost( tally, totalTally );
+    }
+    
+    /** Cost column i of tally without creating Value objects.  See ModelLearner.TallyCoster */
+    public double tallyCost( double[][] tally, int i )
+    {
+        int[] counts = new int[tally.length];
+        int totalTally = 0;
+        for (int j = 0; j < counts.length; j++) {        
+            counts[j] = (int)tally[j][i];
+            totalTally += counts[j];
+        }
+        
+        return bdeCost( counts, totalTally );
+    }
+    
+    /** return BDe cost given tally and totalTally = sum(tally) */
+    protected double bdeCost( int[] tally, int totalTally )
+    {
         double cost = Gamma.logGamma(ess+totalTally) - Gamma.logGamma(ess);
         for ( int i = 0; i < tally.length; i++ ) {
             cost += Gamma.logGamma( ess / tally.length ) - 
@@ -52,6 +52,7 @@ import camml.core.models.*;
  * costing models with latent variable
  */
 public class LatentAdaptiveCodeLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.TallyCoster
 {
     /** Adaptive Code Learner parameterized as (n+0.5)/(N+m/2) */
     public static LatentAdaptiveCodeLearner latentAdaptiveCodeLearner = 
@@ -174,26 +175,48 @@ public class LatentAdaptiveCodeLearner extends ModelLearner.DefaultImplementatio
             totalTally += tally[i];
         }
         
+        return adaptiveCost( tally, totalTally );
+    }
+    
+    /** Cost column i of tally without creating Value objects.  See ModelLearner.TallyCoster */
+    public double tallyCost( double[][] tally, int i )
+    {
+        double[] counts = new double[tally.length];
+        double totalTally = 0.0;
+        for (int j = 0; j < counts.length; j++) {        
+            counts[j] = tally[j][i];
+            totalTally += counts[j];
+        }
+        
+        return adaptiveCost( counts, totalTally );
+    }
+    
+    /** return cost of adaptive code given (fractional) tally and totalTally = sum(tally) */
+    protected double adaptiveCost( double[] tally, double totalTally )
+    {
         double cost = 0;
 
         // for testing
         double blue_part = 0.0;
         double orange_part = 0.0;
         /**
-         *  Note that if we use Gamma.logGamma(), we should add 1 for the double value,
-         *  E.g., LogFactorial.logFactorial( 2 ) = Gamma.logGamma(2.0 + 1)
+         *  Note that if we use LogGamma.logGamma(), we should add 1 for the double value,
+         *  E.g., LogFactorial.logFactorial( 2 ) = LogGamma.logGamma(2.0 + 1)
          *  
          * */        
         for (int i = 0; i < tally.length; i++) {        
-            cost -= Gamma.logGamma(tally[i] + 1);
-            orange_part += Gamma.logGamma(tally[i] + 1);
+            double logGamma = LogGamma.logGamma(tally[i] + 1);
+            cost -= logGamma;
+            orange_part += logGamma;
         }
         
-        cost += Gamma.logGamma(totalTally + tally.length);
-        blue_part += Gamma.logGamma(totalTally + tally.length);
+        double logGammaTotal = LogGamma.logGamma(totalTally + tally.length);
+        cost += logGammaTotal;
+        blue_part += logGammaTotal;
         
-        cost -= Gamma.logGamma(tally.length);
-        orange_part += Gamma.logGamma(tally.length);
+        double logGammaArity = LogGamma.logGamma(tally.length);
+        cost -= logGammaArity;
+        orange_part += logGammaArity;
 
         
         if(display)
@@ -49,6 +49,7 @@ import camml.core.models.ModelLearner;
  * standard way. <br>
  */
 public class MLMultinomialLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.TallyCoster
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 377380353677126451L;
@@ -109,6 +110,25 @@ public class MLMultinomialLearner extends ModelLearner.DefaultImplementation
         return sCost( m, stats, (Value.Structured)y );
     }
     
+    /**
+     * Cost column i of tally without creating Value objects.  This gives the same result as
+     * sCost( m, stats, sParameterize(m,stats).cmpnt(2) ).  See ModelLearner.TallyCoster
+     */
+    public double tallyCost( double[][] tally, int i )
+    {
+        double total = 0;
+        for ( int j = 0; j < tally.length; j++ ) { total += tally[j][i]; }
+        
+        double cost = 0;
+        for ( int j = 0; j < tally.length; j++ ) {
+            double count = tally[j][i];
+            if ( count != 0 ) {
+                cost -= java.lang.Math.log( count / total ) * count;
+            }
+        }
+        return cost;
+    }
+    
     /** return cost */
     public double sCost( Value.Model m, Value stats, Value params )
     {
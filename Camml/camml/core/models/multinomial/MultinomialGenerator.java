@@ -40,6 +40,7 @@ import java.util.Random;
 
 import cdms.core.*;
 import camml.core.library.StructureFN.FastContinuousStructure;
+import camml.core.library.WallaceRandom;
 
 
 
@@ -160,7 +161,8 @@ public class MultinomialGenerator extends Value.Model
     {
         // Generate from uniform prior.
         double[] randArray = new double[numStates+1];
-        for ( int i = 0; i < randArray.length; i++ ) { randArray[i] = rand.nextDouble(); }
+        if ( rand instanceof WallaceRandom ) { ((WallaceRandom)rand).nextDoubles( randArray ); }
+        else { for ( int i = 0; i < randArray.length; i++ ) { randArray[i] = rand.nextDouble(); } }
         randArray[0] = 0.0; randArray[randArray.length-1] = 1.0;
         
         java.util.Arrays.sort(randArray);
@@ -49,6 +49,7 @@ import camml.core.models.*;
  * standard way. <br>
  */
 public class MultinomialLearner extends ModelLearner.DefaultImplementation
+    implements ModelLearner.TallyCoster
 {
     /** Serial ID required to evolve class while maintaining serialisation compatibility. */
     private static final long serialVersionUID = 6399666127784362130L;
@@ -132,14 +133,29 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
     /** Parameterise and cost data all in one hit.   */
     public double sParameterizeAndCost( Value.Model m, Value s )
     {
-        // sParameterize
         Value.Structured stats = (Value.Structured)s;
-        
-        double paramArray[] = new double[stats.length()];
+        double counts[] = new double[stats.length()];
+        for (int i = 0; i < counts.length; i++) { counts[i] = stats.doubleCmpnt(i); }
+        return multinomialCost( counts );
+    }
+    
+    /** Cost column i of tally without creating Value objects.  See ModelLearner.TallyCoster */
+    public double tallyCost( double[][] tally, int i )
+    {
+        double counts[] = new double[tally.length];
+        for (int j = 0; j < counts.length; j++) { counts[j] = tally[j][i]; }
+        return multinomialCost( counts );
+    }
+    
+    /** Parameterise and cost a multinomial given the count of each state. */
+    protected double multinomialCost( double[] counts )
+    {
+        // sParameterize
+        double paramArray[] = new double[counts.length];
         double total = (double)paramArray.length * biasVal;
         
         for (int i = 0; i < paramArray.length; i++) {        
-            paramArray[i] = stats.doubleCmpnt(i);
+            paramArray[i] = counts[i];
             total += paramArray[i];
         }
         
@@ -148,12 +164,12 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
             paramArray[i] = (paramArray[i] + biasVal) / total;
         }
         
-        int arity = stats.length();
+        int arity = counts.length;
         double total2 = 0;
         double cost = 0;
         
         for(int i = 0; i < arity; i++) {        
-            total2 += stats.doubleCmpnt(i);
+            total2 += counts[i];
         }
         
         if(total2 > 0) {
@@ -174,7 +190,7 @@ public class MultinomialLearner extends ModelLearner.DefaultImplementation
             double logLH = 0;
             for(int i = 0; i < arity; i++)
                 {
-                    logLH -= stats.doubleCmpnt(i) * Math.log( paramArray[i] );
+                    logLH -= counts[i] * Math.log( paramArray[i] );
                 }
             
             cost += logLH;
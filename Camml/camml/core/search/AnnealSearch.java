@@ -39,6 +39,7 @@ package camml.core.search;
 import cdms.core.*;
 import camml.core.models.ModelLearner;
 import camml.core.newgui.GUIModel;
+import camml.core.library.PackedDiscreteVector;
 import camml.core.library.WallaceRandom;
 
 /**
@@ -53,6 +54,35 @@ import camml.core.library.WallaceRandom;
  * annealing search.
  */
 public class AnnealSearch extends BNetSearch {
+	/** Should the progress bar be printed? */
+	public boolean printProgress = true;
+
+	/**
+	 * Time (as given by System.currentTimeMillis()) by which the search must finish. If
+	 * not set before the first epoch and caseInfo.timeLimit is positive, the deadline is
+	 * caseInfo.timeLimit seconds after the first epoch starts.
+	 */
+	public long deadline = Long.MAX_VALUE;
+
+	/** Set when the search stops early as the deadline has passed. */
+	protected boolean outOfTime = false;
+
+	/** Proportion of the most recent call to doSteps completed before the deadline. */
+	protected double stepsCompleted = 1.0;
+
+	/** Has the search stopped early as the deadline passed? */
+	public boolean isOutOfTime() {
+		return outOfTime;
+	}
+
+	/** Return the proportion of the normal annealing schedule completed. */
+	public double getScheduleCompleted() {
+		if (outOfTime) {
+			return (epoch - 1 + stepsCompleted) / totalEpochs;
+		}
+		return (double) epoch / totalEpochs;
+	}
+
 	/** Calculate the best arcProb to use based on the current best TOM */
 	public double getBestArcProb() {
 		int maxArcs = numNodes * (numNodes - 1) / 2;
@@ -78,6 +108,7 @@ public class AnnealSearch extends BNetSearch {
 
 		epoch = 0;
 		searchDone = false;
+		outOfTime = false;
 
 		setTemperature(1.0);
 		if (!fixedArcProb) {
@@ -92,6 +123,9 @@ public class AnnealSearch extends BNetSearch {
 		bestCost = currentCost;
 	}
 
+	/** Mix of transformations attempted. */
+	public final ProposalMix proposalMix = new ProposalMix();
+
 	/**
 	 * perform a single mutation step. Return true if model is changed. bestTOM,
 	 * bestCost and currentCost are updated.
@@ -102,29 +136,12 @@ public class AnnealSearch extends BNetSearch {
 		// Mutate the network and see check if the resulting network is accepted or
 		// rejected.
 		double rnd = rand.nextDouble();
-		TOMTransformation transform;
-		if (rnd < 0.16667) { // 1/6 chance
-			transform = parentSwapChange;
-		} else if (rnd < 0.33333) { // 1/6 chance
-			transform = doubleSkeletalChange;
-		} else if (rnd < 0.66667) { // 1/3 chance
-			transform = skeletalChange;
-		} else { // 1/3 chance
-			transform = temporalChange;
-		}
+		int type = proposalMix.choose(rnd);
+		TOMTransformation transform = getTransformation(type);
 		accepted = transform.transform(tom, currentCost);
 
 		if (caseInfo.annealLogging) {
-			try {
-				caseInfo.cammlLog.write("STEP : " + stepNum + "\tMMLCost = " + caseInfo.costFormat.format(currentCost)
-						+ "\trand: " + ((WallaceRandom) rand).numCalls + "\n");
-				caseInfo.cammlLog.flush();
-			} catch (Exception e) {
-				for (int ii = 0; ii < 100; ii++) {
-					System.out.println(e);
-				}
-				throw new RuntimeException(e);
-			}
+			caseInfo.getLog().logStep(stepNum, currentCost, ((WallaceRandom) rand).numCalls);
 		}
 
 		// if new model is accepted, update currentCost
@@ -146,7 +163,14 @@ public class AnnealSearch extends BNetSearch {
 	public void doSteps(long numSteps) {
 		// run for n steps
 		currentCost = costNetwork(mmlModelLearner, false);
+		stepsCompleted = 1.0;
 		for (long i = 0; i < numSteps; i++) {
+			// Checking the time is relatively slow, so only check occasionally.
+			if ((i & 255) == 0 && System.currentTimeMillis() > deadline) {
+				outOfTime = true;
+				stepsCompleted = (double) i / numSteps;
+				break;
+			}
 			step(i);
 		}
 
@@ -220,8 +244,11 @@ public class AnnealSearch extends BNetSearch {
 
 		// Set up during initial epoch.
 		if (epoch == 0) {
+			if (deadline == Long.MAX_VALUE && caseInfo.timeLimit > 0) {
+				deadline = System.currentTimeMillis() + (long) (caseInfo.timeLimit * 1000);
+			}
 
-			if (GUIModel.searchLatent == false) {
+			if (GUIModel.searchLatent == false && printProgress) {
 				for (int i = 0; i < totalEpochs; i++) {
 					System.out.print(i % 10);
 				}
@@ -276,9 +303,14 @@ public class AnnealSearch extends BNetSearch {
 		epoch++;
 
 		// If all epochs are finished, flag the search as being completed.
-		if (epoch == totalEpochs) {
-			if (GUIModel.searchLatent == false)
+		if (epoch == totalEpochs || outOfTime) {
+			if (GUIModel.searchLatent == false && printProgress) {
 				System.out.println();
+				if (outOfTime) {
+					System.out.println("Time limit reached with " + (int) (getScheduleCompleted() * 100)
+							+ "% of annealing schedule completed.");
+				}
+			}
 			
 			searchDone = true;
 		}
@@ -303,8 +335,7 @@ public class AnnealSearch extends BNetSearch {
 	/** AnnealSearch constructor, creates caseInfo from data supplies */
 	public AnnealSearch(java.util.Random rand, Value.Vector data, ModelLearner mlModelLearner,
 			ModelLearner mmlModelLearner) {
-		this(rand, new CaseInfo(null, null, data, mmlModelLearner, mlModelLearner, -1,
-				new NodeCache(data, mmlModelLearner, mlModelLearner)));
+		this(rand, makeCaseInfo(PackedDiscreteVector.pack(data), mlModelLearner, mmlModelLearner, -1));
 		caseInfo.nodeCache.caseInfo = caseInfo;
 
 		// Create temporary RNG so regression is not thrown out.
@@ -41,6 +41,10 @@ import java.io.StringReader;
 import cdms.core.*;
 import cdms.plugin.search.*;
 
+import camml.core.library.Library;
+import camml.core.library.PackedDiscreteVector;
+import camml.core.library.WallaceRandom;
+import camml.core.models.cpt.CPTLearner;
 import camml.core.models.ModelLearner;
 import camml.core.models.bNet.BNet;
 import camml.core.models.bNet.BNetStochastic;
@@ -103,13 +107,53 @@ public abstract class BNetSearch implements Search.SearchObject
     public BNetSearch(java.util.Random rand, Value.Vector data,
                       ModelLearner mlModelLearner, ModelLearner mmlModelLearner ) 
     {
-        this( rand, new CaseInfo( null, null, data, mmlModelLearner, mlModelLearner, 
-                                  Double.POSITIVE_INFINITY,
-                                  new NodeCache( data, mmlModelLearner, mlModelLearner ) ));
+        this( rand, makeCaseInfo( PackedDiscreteVector.pack(data), mlModelLearner, 
+                                  mmlModelLearner, Double.POSITIVE_INFINITY ) );
                	 
         caseInfo.nodeCache.caseInfo = caseInfo;
     }
     
+    /** 
+     * Create CaseInfo (and NodeCache) for data with no hash functions.  Callers normally
+     * pass data through PackedDiscreteVector.pack() first to reduce the cost of scanning it.
+     * The NodeCache costs nodes with makeCostingData(data), see caseInfo.compressCostingData
+     */
+    protected static CaseInfo makeCaseInfo( Value.Vector data, ModelLearner mlModelLearner, 
+                                            ModelLearner mmlModelLearner, double referenceWeight ) {
+        Value.Vector costingData = makeCostingData( data, mlModelLearner, mmlModelLearner );
+        return new CaseInfo( null, null, data, mmlModelLearner, mlModelLearner, referenceWeight,
+                             new NodeCache( costingData, mmlModelLearner, mlModelLearner ) );
+    }
+    
+    /**
+     * Return the data NodeCache should cost nodes with.  If both learners only use (weighted)
+     * counts and data is discrete with integer weights, identical rows are merged into a single
+     * row weighted by the number of times it occurs.  Costing time then scales with the number
+     * of distinct rows, and MML costs are unchanged as all counts are exact.
+     */
+    public static Value.Vector makeCostingData( Value.Vector data, ModelLearner mlModelLearner,
+                                                ModelLearner mmlModelLearner ) {
+        if ( !(mlModelLearner instanceof CPTLearner) || 
+             !((CPTLearner)mlModelLearner).isCountBased() || 
+             !(mmlModelLearner instanceof CPTLearner) || 
+             !((CPTLearner)mmlModelLearner).isCountBased() ) {
+            return data;
+        }
+        
+        Type.Structured eltType = (Type.Structured)((Type.Vector)data.t).elt;
+        for ( int i = 0; i < eltType.cmpnts.length; i++ ) {
+            if ( !(eltType.cmpnts[i] instanceof Type.Discrete) ) { return data; }
+        }
+        for ( int i = 0; i < data.length(); i++ ) {
+            double weight = data.weight(i);
+            if ( weight != Math.floor(weight) ) { return data; }
+        }
+        
+        Value.Vector summary = Library.makeWeightedSummaryVec( data );
+        if ( summary.length() == data.length() ) { return data; }
+        return PackedDiscreteVector.pack( summary );
+    }
+    
     /** recalculate bestCost and currentCost, usually done after updating arcProb */
     public void recalculateCosts() {
         this.bestCost = bestTOM.getCost();
@@ -179,6 +223,16 @@ public abstract class BNetSearch implements Search.SearchObject
     /** Random number generator */
     protected final java.util.Random rand;
     
+    /**
+     * Return a random number generator for a worker thread.  When rand is a WallaceRandom
+     * each call splits a new independent stream from it (see WallaceRandom.split()), 
+     * otherwise the new generator is seeded from rand.
+     */
+    protected WallaceRandom makeThreadRandom() {
+        if ( rand instanceof WallaceRandom ) { return ((WallaceRandom)rand).split(); }
+        return new WallaceRandom( new int[] { rand.nextInt(), rand.nextInt() } );
+    }
+    
     /** Learner to find MML estimates of node costs and parameters */
     protected final ModelLearner mmlModelLearner;
     
@@ -229,6 +283,28 @@ public abstract class BNetSearch implements Search.SearchObject
      *    <b>minTotalPosterior</b> -- Minimal posterior retained post metropolis sampling.
      *                    If more than 'maxSECs' SECs are required, this condition is ignored. 
      *    <b>useNetica</b> -- Return BNetNetica instead of BNetStochastic models.
+     *    <b>annealRestarts</b> -- Number of AnnealSearches run in parallel to initialise 
+     *                    metropolis sampling.  The one finding the lowest cost is used. (default 1)
+     *    <b>compressCostingData</b> -- Cost nodes using a weighted summary of the distinct rows of
+     *                    the data when both learners are count based. Costs are unchanged. (default true)
+     *    <b>speculativeBatch</b> -- Number of metropolis proposals drawn from the current TOM and
+     *                    costed in parallel.  Proposals after the first accepted are discarded.  The
+     *                    chain sampled does not depend on the batch size, a batch of 1 evaluates the
+     *                    same proposals one at a time. (default 0, disabled)
+     *    <b>prefetchThreads</b> -- Number of background threads costing families one arc change from
+     *                    the current TOM during metropolis sampling. (default 0, disabled)
+     *    <b>adaptiveProposals</b> -- Tune the mix of TOM transformations used by metropolis sampling
+     *                    from their acceptance rates and cost changes during a discarded adaptation 
+     *                    segment run before sampling. (default false)
+     *    <b>convergenceTolerance</b> -- Stop metropolis sampling early once the SEC posteriors from the 
+     *                    first and second halves of sampling differ by less than this. (default 0, disabled)
+     *    <b>convergenceCheck</b> -- Epochs before convergence is first checked, doubling after each check.
+     *                    (default 1000)
+     *    <b>convergenceTopSECs</b> -- Number of top SECs compared when checking convergence. (default 20)
+     *    <b>timeLimit</b> -- Wall clock time limit in seconds.  The best results found are returned
+     *                    when it is reached. (default 0, no limit)
+     *    <b>annealTimeFraction</b> -- Proportion of timeLimit metropolis search allows for annealing.
+     *                    (default 0.25)
      */ 
     public boolean setOption( final String option, Value v ) {
         if ( option.equals("arcProb") ) {        
@@ -287,6 +363,61 @@ public abstract class BNetSearch implements Search.SearchObject
             double d = ((Value.Scalar)v).getContinuous();
             caseInfo.searchFactor = d;
         }
+        else if ( option.equals("annealRestarts") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("annealRestarts must be >= 1"); }
+            caseInfo.annealRestarts = x;
+        }
+        else if ( option.equals("compressCostingData") ) {
+            boolean compress = (((Value.Discrete)v).getDiscrete() != 0);
+            // Subclasses (eg. DBN searches) may use their own NodeCache over the full data.
+            if ( compress != caseInfo.compressCostingData && 
+                 caseInfo.nodeCache.getClass() == NodeCache.class ) {
+                Value.Vector costingData = compress ? 
+                    makeCostingData( caseInfo.data, mlModelLearner, mmlModelLearner ) : caseInfo.data;
+                caseInfo.nodeCache = new NodeCache( costingData, mmlModelLearner, mlModelLearner );
+                caseInfo.nodeCache.caseInfo = caseInfo;
+            }
+            caseInfo.compressCostingData = compress;
+        }
+        else if ( option.equals("speculativeBatch") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 0 ) { throw new RuntimeException("speculativeBatch must be >= 0"); }
+            caseInfo.speculativeBatch = x;
+        }
+        else if ( option.equals("prefetchThreads") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 0 ) { throw new RuntimeException("prefetchThreads must be >= 0"); }
+            caseInfo.prefetchThreads = x;
+        }
+        else if ( option.equals("adaptiveProposals") ) {
+            caseInfo.adaptiveProposals = (((Value.Discrete)v).getDiscrete() != 0);
+        }
+        else if ( option.equals("convergenceTolerance") ) {
+            double d = ((Value.Scalar)v).getContinuous();
+            if ( d < 0 ) { throw new RuntimeException("convergenceTolerance must be >= 0"); }
+            caseInfo.convergenceTolerance = d;
+        }
+        else if ( option.equals("convergenceCheck") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("convergenceCheck must be >= 1"); }
+            caseInfo.convergenceCheck = x;
+        }
+        else if ( option.equals("convergenceTopSECs") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("convergenceTopSECs must be >= 1"); }
+            caseInfo.convergenceTopSECs = x;
+        }
+        else if ( option.equals("timeLimit") ) {
+            double d = ((Value.Scalar)v).getContinuous();
+            if ( d < 0 ) { throw new RuntimeException("timeLimit must be >= 0"); }
+            caseInfo.timeLimit = d;
+        }
+        else if ( option.equals("annealTimeFraction") ) {
+            double d = ((Value.Scalar)v).getContinuous();
+            if ( d <= 0 || d >= 1 ) { throw new RuntimeException("annealTimeFraction must be in (0,1)"); }
+            caseInfo.annealTimeFraction = d;
+        }
         else if ( option.equals("maxNumSECs") ) {
             int x = ((Value.Scalar)v).getDiscrete();
             caseInfo.maxNumSECs = x;
@@ -423,6 +554,18 @@ public abstract class BNetSearch implements Search.SearchObject
         updateMutationOperators( arcProb, temperature );
     }
     
+    /** Return the mutation operator of class type (see {@link ProposalMix}) */
+    protected TOMTransformation getTransformation( int type )
+    {
+        switch ( type ) {
+        case ProposalMix.PARENT_SWAP : return parentSwapChange;
+        case ProposalMix.DOUBLE_SKELETAL : return doubleSkeletalChange;
+        case ProposalMix.SKELETAL : return skeletalChange;
+        case ProposalMix.TEMPORAL : return temporalChange;
+        default : throw new RuntimeException("Unknown transformation type " + type);
+        }
+    }
+    
     /** Create new Mutation operators */
     protected void updateMutationOperators( double arcProb, double temperature ) 
     {
@@ -528,6 +671,7 @@ public abstract class BNetSearch implements Search.SearchObject
      * Calculate the cost of stating all CPT's in the network      
      * Only nodes listed in updateNodes[] are reloaded from the cache. <br>
      * Passing null to updateNodes[] loads all nodes from cache. <br>
+     * When clean is true only the listed nodes are recleaned if the TOMCleaner allows it. <br>
      * Function should be called with null the first time it is used (to initialise costs.) <br> 
      * NOTE: Structure cost not included
      */
@@ -551,17 +695,26 @@ public abstract class BNetSearch implements Search.SearchObject
         
         TOM tom2;
         if ( clean ) {         
-            // Ensure cleaning is done properly.
-            updateNodes = null;
             tom2 = cleantom;
-            cleantom.setStructure(tom);
-            cleantom.clean();
+            if ( updateNodes != null && totalCost != -1 && 
+                 caseInfo.tomCleaner instanceof TOMCleaner.StandardTOMCleaner &&
+                 ((TOMCleaner.StandardTOMCleaner)caseInfo.tomCleaner).canCleanIncrementally(cleantom) ) {
+                // Only reclean (and recost) nodes whose parents have changed.
+                TOMCleaner.StandardTOMCleaner cleaner = (TOMCleaner.StandardTOMCleaner)caseInfo.tomCleaner;
+                updateNodes = cleaner.cleanNodes( cleantom, tom, updateNodes );
+            }
+            else {
+                // Ensure cleaning is done properly.
+                updateNodes = null;
+                cleantom.setStructure(tom);
+                cleantom.clean();
+            }
         } else { 
             tom2 = tom; 
         }
         
         // Calculate cost for all nodes.
-        if ( clean || updateNodes == null || totalCost == -1) {
+        if ( updateNodes == null || totalCost == -1) {
             totalCost = 0;
             for ( int i = 0; i < numNodes; i++ ) {
                 Node currentNode = tom2.getNode(i);
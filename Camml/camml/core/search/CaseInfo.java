@@ -44,6 +44,10 @@ import camml.core.models.bNet.BNetStochastic;
 import camml.core.models.*;
 import camml.core.search.SEC.CompactTOM;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -83,6 +87,9 @@ public class CaseInfo implements Serializable {
     /** NodeCache caches values for nodes such as ML and MML scores. */
     public NodeCache nodeCache;
     
+    /** Arena storing the edges and orderings of sampled SECs and TOMs. */
+    public TOMArena tomArena = new TOMArena();
+    
     /** Function used to cost the structure of TOMs. */
     public TOMCoster tomCoster;
     
@@ -122,6 +129,51 @@ public class CaseInfo implements Serializable {
     /** How long should the search go for? 1.0 is default Value, Setting to 0.5 halves search time, 2.0 doubles it, etc.*/
     public double searchFactor = 1.0; //0.00001;
 
+    /** Number of AnnealSearches (with different seeds) run in parallel to initialise Metropolis search. */
+    public int annealRestarts = 1;
+
+    /** 
+     * Should NodeCache cost nodes using a weighted summary of the distinct rows of data where
+     * this leaves costs unchanged?  See BNetSearch.makeCostingData()
+     */
+    public boolean compressCostingData = true;
+
+    /** Number of Metropolis proposals drawn and costed in parallel at a time.  0 disables speculation. */
+    public int speculativeBatch = 0;
+
+    /** 
+     * Number of background threads Metropolis sampling uses to cost the families one arc change
+     * from the current TOM before they are needed.  0 disables prefetching.
+     */
+    public int prefetchThreads = 0;
+
+    /** 
+     * Should Metropolis sampling use a mix of transformations tuned from acceptance rates and
+     * cost changes during its initial AnnealSearch?  The mix is fixed before sampling starts.
+     */
+    public boolean adaptiveProposals = false;
+
+    /** 
+     * Metropolis sampling stops early once the total variation distance between SEC posteriors 
+     * estimated from the first and second halves of sampling falls below this.  0 disables. 
+     */
+    public double convergenceTolerance = 0;
+
+    /** Number of Metropolis epochs before convergence is first checked.  Doubles after each check. */
+    public long convergenceCheck = 1000;
+
+    /** Number of most probable SECs compared when checking convergence.  Other SECs are pooled. */
+    public int convergenceTopSECs = 20;
+
+    /** 
+     * Wall clock time limit in seconds.  Searches return the best results found so far when the
+     * limit is reached.  0 for no limit.
+     */
+    public double timeLimit = 0;
+
+    /** Proportion of timeLimit Metropolis search allows for its initial AnnealSearch. */
+    public double annealTimeFraction = 0.25;
+
     
     ////////////////////
     // SEARCH OPTIONS //
@@ -184,14 +236,22 @@ public class CaseInfo implements Serializable {
     public DecimalFormat costFormat = new DecimalFormat("######0.000000");
     /** Format uses when logging */
     public DecimalFormat posteriorFormat = new DecimalFormat("######0.0000");
-    
-    // Initialise log file if required
-    public java.io.FileWriter cammlLog;
-    {
-        if ( logging || annealLogging || logCleaning ) {
-            try { cammlLog = new java.io.FileWriter("newCamml.log");}
-            catch(Exception e) {cammlLog = null;}
+    /** Write log as CSV instead of text */
+    public boolean logCSV = false;
+    
+    /** Log file, opened by getLog() when first required. */
+    public SearchLog cammlLog;
+    
+    /** Return cammlLog, opening newCamml.log if required. */
+    public synchronized SearchLog getLog() {
+        if ( cammlLog == null ) {
+            try { 
+                cammlLog = new SearchLog( new java.io.FileWriter("newCamml.log"), logCSV,
+                                          costFormat, weightFormat );
+            }
+            catch ( java.io.IOException e ) { throw new RuntimeException(e); }
         }
+        return cammlLog;
     }
     
     
@@ -276,6 +336,65 @@ public class CaseInfo implements Serializable {
             "nodeCache = " + nodeCache;
     }   
     
+    /** 
+     * Return a CaseInfo for a search run in another thread alongside a search using this 
+     * CaseInfo (eg. a chain, replica, annealing restart or speculative proposal).  Data, 
+     * NodeCache, hash functions, the TOM arena and options are shared, the copy gets its own
+     * copy of tomCoster so it may set its own arcProb.  Weights, arc weights and logging start
+     * from scratch.
+     */
+    public CaseInfo copyForThread( TOMCoster tomCoster ) {
+        CaseInfo info = new CaseInfo( null, null, data, mmlModelLearner, mlModelLearner, 
+                                      referenceWeight, nodeCache );
+        info.tomHash = tomHash;
+        info.secHash = secHash;
+        info.bNet = bNet;
+        info.tomArena = tomArena;
+        info.hasLatent = hasLatent;
+        info.allNodesStates = allNodesStates;
+        info.tomCoster = copyTOMCoster( tomCoster );
+        info.tomCleaner = tomCleaner;
+        info.searchFactor = searchFactor;
+        info.annealRestarts = annealRestarts;
+        info.compressCostingData = compressCostingData;
+        info.speculativeBatch = speculativeBatch;
+        info.adaptiveProposals = adaptiveProposals;
+        info.prefetchThreads = prefetchThreads;
+        info.convergenceTolerance = convergenceTolerance;
+        info.convergenceCheck = convergenceCheck;
+        info.convergenceTopSECs = convergenceTopSECs;
+        info.timeLimit = timeLimit;
+        info.annealTimeFraction = annealTimeFraction;
+        info.allowMergeToModelWithMoreArcs = allowMergeToModelWithMoreArcs;
+        info.cklJoinType = cklJoinType;
+        info.joinDAGs = joinDAGs;
+        info.joinSECs = joinSECs;
+        info.useExactKL = useExactKL;
+        info.useNetica = useNetica;
+        info.maxNumSECs = maxNumSECs;
+        info.minTotalPosterior = minTotalPosterior;
+        info.regression = regression;
+        info.tomComparator = tomComparator;
+        info.updateArcWeights = updateArcWeights;
+        return info;
+    }
+    
+    /** Return a deep copy of tomCoster so a search in another thread may set its own arcProb. */
+    protected static TOMCoster copyTOMCoster( TOMCoster tomCoster ) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream( bytes );
+            out.writeObject( tomCoster );
+            out.close();
+            
+            ObjectInputStream in = 
+                new ObjectInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+            return (TOMCoster)in.readObject();
+        } catch ( Exception e ) {
+            throw new RuntimeException( "Could not copy TOMCoster " + tomCoster, e );
+        }
+    }
+    
     /** Set data, as the weighted data may change during the EM learning process*/
     public void setData(Value.Vector data)
     {
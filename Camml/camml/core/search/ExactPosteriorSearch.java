@@ -0,0 +1,458 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Exact TOM posterior for small networks by dynamic programming over subsets.
+//
+
+// File: ExactPosteriorSearch.java
+
+package camml.core.search;
+
+import cdms.core.*;
+import camml.core.models.ModelLearner;
+import camml.core.newgui.GUIModel;
+
+/**
+ * ExactPosteriorSearch calculates the posterior over TOMs exactly for small networks, using 
+ * dynamic programming over subsets of variables in the style of Koivisto and Sood (2004). <br>
+ * <br>
+ * With the uniform TOMCoster the cost of a TOM is a sum of terms for each node which depend
+ * only on its parents and the number of nodes before it in the total ordering.  The MML cost 
+ * of every family with at most maxParents parents is calculated once through the NodeCache. 
+ * Sums (and maxima) of family weights over all parent sets within each subset of variables are 
+ * then found with a subset (zeta) transform, and a forward/backward pass over subsets sums the
+ * weight of every TOM.  This gives exactly: <br>
+ *  - the normalising constant, sum over all TOMs of exp(-cost) <br>
+ *  - the posterior probability of each arc (see getArcPortions()) <br>
+ *  - the MAP TOM, which is used as bestTOM <br>
+ * <br>
+ * Results in the same form as MetropolisSearch.getResults() are made by drawing TOMs 
+ * independently from the exact posterior and grouping them into SECs and MMLECs as
+ * MetropolisSearch does, so each sample costs one pass down the subset lattice instead of a 
+ * chain of correlated proposals. <br>
+ * <br>
+ * Time is O(numNodes^2 2^numNodes) and memory O(numNodes 2^numNodes), so networks are limited
+ * to maxNodes variables.  Only the uniform TOMCoster and fully observed data are supported. 
+ * The posterior is exact for TOMs with at most maxParents parents per node.
+ */
+public class ExactPosteriorSearch extends MetropolisSearch
+{
+    /** Largest number of variables accepted. */
+    public static int maxNodes = 20;
+    
+    /** Largest number of families costed when maxParents is chosen automatically. */
+    public static int maxDefaultFamilies = 100000;
+    
+    /** Maximum number of parents of each node, -1 to choose automatically. */
+    protected int maxParents = -1;
+    
+    /** Number of TOMs drawn from the posterior to form SECs, -1 for the default. */
+    protected long numSamples = -1;
+    
+    /** famMask[v][i] = bitmask of the parents of the i'th family of node v */
+    protected int[][] famMask;
+    
+    /** famCost[v][i] = MML cost of the i'th family of node v (excluding structure cost) */
+    protected double[][] famCost;
+    
+    /** 
+     * logAlpha[v][subsetIndex(v,U)] = log of the sum over parent sets Pa of U of the weight
+     * of node v with parents Pa.  U never contains v.
+     */
+    protected double[][] logAlpha;
+    
+    /** logForward[S] = log total weight of orderings of S with each node's parents before it. */
+    protected double[] logForward;
+    
+    /** logBackward[S] = log total weight of orderings of the nodes not in S placed after S. */
+    protected double[] logBackward;
+    
+    /** log of the sum over all TOMs of exp(-cost) */
+    protected double logZ = Double.NaN;
+    
+    /** arcPosterior[i][j] = posterior probability of the arc j -> i */
+    protected double[][] arcPosterior;
+    
+    /** log(arcProb) - log(1-arcProb) and log(1-arcProb) for the current arcProb */
+    protected double logArcOdds, logNoArc;
+    
+    /** Create an ExactPosteriorSearch, CaseInfo and NodeCache are created automatically. */
+    public ExactPosteriorSearch( java.util.Random rand, Value.Vector data, 
+                                 ModelLearner mlModelLearner, ModelLearner mmlModelLearner )
+    {
+        super( rand, data, mlModelLearner, mmlModelLearner );
+        // Samples are drawn from the posterior itself, so no reweighting is required.
+        setTemperature( 1.0 );
+    }
+    
+    /** Create an ExactPosteriorSearch using an existing caseInfo. */
+    public ExactPosteriorSearch( java.util.Random rand, CaseInfo caseInfo )
+    {
+        super( rand, caseInfo );
+        setTemperature( 1.0 );
+    }
+    
+    /**
+     * Options in addition to those of BNetSearch : <br>
+     *    <b>exactMaxParents</b> -- Maximum number of parents of each node.  By default the 
+     *                    largest value needing at most maxDefaultFamilies families is used. <br>
+     *    <b>exactSamples</b> -- Number of TOMs drawn from the posterior to form SECs.
+     *                    (default 10000 * searchFactor)
+     */
+    public boolean setOption( final String option, Value v ) {
+        if ( option.equals("exactMaxParents") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 0 ) { throw new RuntimeException("exactMaxParents must be >= 0"); }
+            maxParents = x;
+        }
+        else if ( option.equals("exactSamples") ) {
+            int x = ((Value.Scalar)v).getDiscrete();
+            if ( x < 1 ) { throw new RuntimeException("exactSamples must be >= 1"); }
+            numSamples = x;
+        }
+        else { return super.setOption( option, v ); }
+        return true;
+    }
+    
+    /** 
+     * The first epoch costs all families and calculates the posterior, finding arcProb from
+     * the MAP TOM (as AnnealSearch does) unless it is fixed.  Each epoch then draws a TOM from
+     * the posterior and adds it to its SEC.
+     */
+    public double doEpoch()
+    {
+        if ( epoch == 0 ) {
+            if ( caseInfo.hasLatent ) { 
+                throw new RuntimeException("ExactPosteriorSearch does not handle latent variables."); 
+            }
+            if ( caseInfo.tomCoster.getClass() != TOMCoster.UniformTOMCoster.class ) {
+                throw new RuntimeException("ExactPosteriorSearch requires a UniformTOMCoster.");
+            }
+            if ( numNodes > maxNodes ) {
+                throw new RuntimeException("ExactPosteriorSearch is limited to " + maxNodes + 
+                                           " variables, data has " + numNodes);
+            }
+            
+            costFamilies();
+            
+            findMAP();
+            int maxEdges = numNodes * (numNodes - 1) / 2;
+            for ( int i = 0; i < 10 && !fixedArcProb; i++ ) {
+                double p = (bestTOM.getNumEdges() + 0.5) / (maxEdges + 1.0);
+                if ( p == arcProb ) { break; }
+                setArcProb( p );
+                findMAP();
+            }
+            bestCost = bestTOM.getCost();
+            caseInfo.referenceWeight = bestCost;
+            
+            calculatePosterior();
+            
+            max = (numSamples > 0) ? numSamples : Math.max( 1, (long)(10000 * caseInfo.searchFactor) );
+            if ( GUIModel.searchLatent == false && printProgress ) {
+                System.out.println( "arcProb = " + arcProb + "\tMAP cost = " + bestCost + 
+                                    "\tlog normaliser = " + logZ );
+                System.out.println( "Sampling " + max + " TOMs" );
+            }
+        }
+        
+        sampleTOM( tom );
+        updateCosts( null );
+        if ( samplePosterior ) {
+            updatePosterior( getSEC() );
+        }
+        
+        epoch++;
+        if ( epoch >= max ) { searchDone = true; }
+        return currentCost;
+    }
+    
+    /** Return the maximum number of parents of each node used, -1 if not yet chosen. */
+    public int getMaxParents() { return maxParents; }
+    
+    /** Return log of the sum over all TOMs of exp(-cost), NaN if not yet calculated. */
+    public double getLogNormaliser() { return logZ; }
+    
+    /** Return the exact posterior probability of each arc, [i][j] being the arc j -> i */
+    public double[][] getArcPortions() {
+        if ( arcPosterior == null ) { throw new RuntimeException("Posterior not yet calculated."); }
+        double[][] p = new double[numNodes][];
+        for ( int i = 0; i < numNodes; i++ ) { p[i] = arcPosterior[i].clone(); }
+        return p;
+    }
+    
+    /** Index of the subset U (not containing v) of all nodes in arrays over subsets of n-1 nodes. */
+    protected static int subsetIndex( int v, int u ) {
+        return (u & ((1 << v) - 1)) | ((u >>> (v + 1)) << v);
+    }
+    
+    /** Inverse of subsetIndex() */
+    protected static int subsetMask( int v, int index ) {
+        return (index & ((1 << v) - 1)) | ((index >>> v) << (v + 1));
+    }
+    
+    /** Return the parents in mask in ascending order. */
+    protected static int[] parentArray( int mask ) {
+        int[] parent = new int[Integer.bitCount(mask)];
+        for ( int i = 0, j = 0; mask >>> i != 0; i++ ) {
+            if ( (mask & (1 << i)) != 0 ) { parent[j++] = i; }
+        }
+        return parent;
+    }
+    
+    /** Choose maxParents (if required) and cost every family with at most maxParents parents. */
+    protected void costFamilies()
+    {
+        int limit = Math.min( tom.getMaxNumParents(), numNodes - 1 );
+        if ( maxParents < 0 ) {
+            // Number of families with k parents is numNodes * C(numNodes-1,k)
+            long families = numNodes, choose = 1;
+            maxParents = 0;
+            for ( int k = 1; k <= limit; k++ ) {
+                choose = choose * (numNodes - k) / k;
+                families += numNodes * choose;
+                if ( families > maxDefaultFamilies ) { break; }
+                maxParents = k;
+            }
+        }
+        maxParents = Math.min( maxParents, limit );
+        
+        int numSubsets = 1 << (numNodes - 1);
+        famMask = new int[numNodes][];
+        famCost = new double[numNodes][];
+        for ( int v = 0; v < numNodes; v++ ) {
+            int count = 0;
+            for ( int i = 0; i < numSubsets; i++ ) {
+                if ( Integer.bitCount(i) <= maxParents ) { count++; }
+            }
+            famMask[v] = new int[count];
+            famCost[v] = new double[count];
+            count = 0;
+            for ( int i = 0; i < numSubsets; i++ ) {
+                if ( Integer.bitCount(i) <= maxParents ) {
+                    int mask = subsetMask( v, i );
+                    famMask[v][count] = mask;
+                    famCost[v][count] = caseInfo.nodeCache.getMMLCost( new Node(v, parentArray(mask)) );
+                    count++;
+                }
+            }
+        }
+        
+        if ( GUIModel.searchLatent == false && printProgress ) {
+            System.out.println( "Costed " + (numNodes * famMask[0].length) + 
+                                " families with up to " + maxParents + " parents" );
+        }
+    }
+    
+    /** Set logArcOdds and logNoArc from arcProb */
+    protected void updateArcTerms() {
+        logNoArc = Math.log( 1 - arcProb );
+        logArcOdds = Math.log( arcProb ) - logNoArc;
+    }
+    
+    /** Weight of the i'th family of node v, excluding the log(1-arcProb) term of each non arc. */
+    protected double familyLogWeight( int v, int i ) {
+        return -famCost[v][i] + Integer.bitCount(famMask[v][i]) * logArcOdds;
+    }
+    
+    /** log(exp(a) + exp(b)) */
+    protected static double logAdd( double a, double b ) {
+        if ( a < b ) { double temp = a; a = b; b = temp; }
+        if ( b == Double.NEGATIVE_INFINITY ) { return a; }
+        return a + Math.log1p( Math.exp(b - a) );
+    }
+    
+    /** Find the TOM with the lowest cost and copy it into bestTOM */
+    protected void findMAP()
+    {
+        updateArcTerms();
+        int numSubsets = 1 << (numNodes - 1);
+        
+        // best[v][U] = weight of the best family of v with parents in U, arg[v][U] its parents.
+        double[][] best = new double[numNodes][numSubsets];
+        int[][] arg = new int[numNodes][numSubsets];
+        for ( int v = 0; v < numNodes; v++ ) {
+            double[] b = best[v];
+            int[] a = arg[v];
+            java.util.Arrays.fill( b, Double.NEGATIVE_INFINITY );
+            for ( int i = 0; i < famMask[v].length; i++ ) {
+                int index = subsetIndex( v, famMask[v][i] );
+                b[index] = familyLogWeight( v, i );
+                a[index] = famMask[v][i];
+            }
+            for ( int bit = 1; bit < numSubsets; bit <<= 1 ) {
+                for ( int index = 0; index < numSubsets; index++ ) {
+                    if ( (index & bit) != 0 && b[index ^ bit] > b[index] ) {
+                        b[index] = b[index ^ bit];
+                        a[index] = a[index ^ bit];
+                    }
+                }
+            }
+        }
+        
+        // bestWeight[S] = weight of the best TOM over the nodes in S, last[S] its last node.
+        int all = (1 << numNodes) - 1;
+        double[] bestWeight = new double[all + 1];
+        byte[] last = new byte[all + 1];
+        for ( int s = 1; s <= all; s++ ) {
+            double w = Double.NEGATIVE_INFINITY;
+            for ( int v = 0; v < numNodes; v++ ) {
+                if ( (s & (1 << v)) == 0 ) { continue; }
+                int u = s ^ (1 << v);
+                double x = bestWeight[u] + Integer.bitCount(u) * logNoArc + best[v][subsetIndex(v,u)];
+                if ( x > w ) { w = x; last[s] = (byte)v; }
+            }
+            bestWeight[s] = w;
+        }
+        
+        int[] order = new int[numNodes];
+        int[] parents = new int[numNodes];
+        for ( int s = all, pos = numNodes - 1; s != 0; pos-- ) {
+            int v = last[s];
+            s ^= (1 << v);
+            order[pos] = v;
+            parents[v] = arg[v][subsetIndex(v,s)];
+        }
+        setTOM( bestTOM, order, parents );
+    }
+    
+    /** Set t to the total ordering order, with parents[v] the bitmask of the parents of v. */
+    protected static void setTOM( TOM t, int[] order, int[] parents )
+    {
+        t.clearArcs();
+        t.setOrder( order );
+        for ( int v = 0; v < parents.length; v++ ) {
+            for ( int p = 0; parents[v] >>> p != 0; p++ ) {
+                if ( (parents[v] & (1 << p)) != 0 ) { t.addArc( p, v ); }
+            }
+        }
+    }
+    
+    /** Calculate logAlpha, logForward, logBackward, logZ and arcPosterior. */
+    protected void calculatePosterior()
+    {
+        updateArcTerms();
+        int numSubsets = 1 << (numNodes - 1);
+        logAlpha = new double[numNodes][numSubsets];
+        for ( int v = 0; v < numNodes; v++ ) {
+            double[] a = logAlpha[v];
+            java.util.Arrays.fill( a, Double.NEGATIVE_INFINITY );
+            for ( int i = 0; i < famMask[v].length; i++ ) {
+                a[subsetIndex( v, famMask[v][i] )] = familyLogWeight( v, i );
+            }
+            for ( int bit = 1; bit < numSubsets; bit <<= 1 ) {
+                for ( int index = 0; index < numSubsets; index++ ) {
+                    if ( (index & bit) != 0 ) { a[index] = logAdd( a[index], a[index ^ bit] ); }
+                }
+            }
+        }
+        
+        int all = (1 << numNodes) - 1;
+        logForward = new double[all + 1];
+        for ( int s = 1; s <= all; s++ ) {
+            double w = Double.NEGATIVE_INFINITY;
+            for ( int v = 0; v < numNodes; v++ ) {
+                if ( (s & (1 << v)) == 0 ) { continue; }
+                int u = s ^ (1 << v);
+                w = logAdd( w, logForward[u] + Integer.bitCount(u) * logNoArc + 
+                            logAlpha[v][subsetIndex(v,u)] );
+            }
+            logForward[s] = w;
+        }
+        logZ = logForward[all];
+        
+        logBackward = new double[all + 1];
+        for ( int s = all - 1; s >= 0; s-- ) {
+            double w = Double.NEGATIVE_INFINITY;
+            double noArcs = Integer.bitCount(s) * logNoArc;
+            for ( int v = 0; v < numNodes; v++ ) {
+                if ( (s & (1 << v)) != 0 ) { continue; }
+                w = logAdd( w, noArcs + logAlpha[v][subsetIndex(v,s)] + logBackward[s | (1 << v)] );
+            }
+            logBackward[s] = w;
+        }
+        
+        // P(u -> v) sums over the set U of nodes before v, which must contain u, and the parent
+        // sets of v within U containing u, whose weight is alpha_v(U) - alpha_v(U - {u}).
+        arcPosterior = new double[numNodes][numNodes];
+        for ( int v = 0; v < numNodes; v++ ) {
+            double[] a = logAlpha[v];
+            for ( int index = 1; index < numSubsets; index++ ) {
+                int u = subsetMask( v, index );
+                double logWeight = logForward[u] + Integer.bitCount(u) * logNoArc + a[index] + 
+                    logBackward[u | (1 << v)] - logZ;
+                // Contributions below e^-60 are lost in rounding.
+                if ( logWeight < -60 ) { continue; }
+                double weight = Math.exp( logWeight );
+                for ( int bit = 1; bit <= index; bit <<= 1 ) {
+                    if ( (index & bit) == 0 ) { continue; }
+                    double withParent = -Math.expm1( a[index ^ bit] - a[index] );
+                    int parent = Integer.numberOfTrailingZeros( subsetMask(v,bit) );
+                    arcPosterior[v][parent] += weight * withParent;
+                }
+            }
+        }
+    }
+    
+    /** Set t to a TOM drawn from the posterior. */
+    protected void sampleTOM( TOM t )
+    {
+        int[] order = new int[numNodes];
+        int[] parents = new int[numNodes];
+        
+        // Choose the last node of s, then its parents from the nodes before it.
+        for ( int s = (1 << numNodes) - 1, pos = numNodes - 1; s != 0; pos-- ) {
+            double r = rand.nextDouble();
+            double total = 0;
+            int v = -1, u = 0;
+            for ( int x = 0; x < numNodes; x++ ) {
+                if ( (s & (1 << x)) == 0 ) { continue; }
+                v = x;
+                u = s ^ (1 << x);
+                total += Math.exp( logForward[u] + Integer.bitCount(u) * logNoArc + 
+                                   logAlpha[x][subsetIndex(x,u)] - logForward[s] );
+                if ( r < total ) { break; }
+            }
+            order[pos] = v;
+            
+            r = rand.nextDouble();
+            total = 0;
+            double logAlphaU = logAlpha[v][subsetIndex(v,u)];
+            for ( int i = 0; i < famMask[v].length; i++ ) {
+                if ( (famMask[v][i] & ~u) != 0 ) { continue; }
+                parents[v] = famMask[v][i];
+                total += Math.exp( familyLogWeight(v,i) - logAlphaU );
+                if ( r < total ) { break; }
+            }
+            s = u;
+        }
+        setTOM( t, order, parents );
+    }
+}
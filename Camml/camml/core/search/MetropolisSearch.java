@@ -40,15 +40,23 @@ import cdms.core.*;
 import cdms.plugin.search.*;
 
 import camml.core.models.bNet.BNet;
+import camml.core.models.bNet.BNetStochastic;
 import camml.core.models.mixture.Mixture;
 import camml.core.newgui.GUIModel;
 
-import java.util.Hashtable;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import norsys.netica.NeticaException;
 
 import camml.core.models.ModelLearner;
+import camml.core.library.IndexedHeap;
+import camml.core.library.LongHashtable;
 import camml.core.library.WallaceRandom;
 import camml.plugin.augment.AugmentFN3;
 import camml.plugin.netica.BNetNetica;
@@ -69,14 +77,14 @@ import camml.plugin.netica.BNetNetica;
  * Equivelence Classes. These MMLECs attempt to use strict MML to join SECs.
  * <br>
  *
- * To keep track of the various models a Hashtable secHashtable is used. Each
+ * To keep track of the various models a LongHashtable secHashtable is used. Each
  * entry in secHashTable is a SEC, which contains numerous TOMs.
  */
 public class MetropolisSearch extends BNetSearch {
-	/** Hash Table containing the number of times each SEC is visited */
-	protected Hashtable<SECHashKey, SEC> secHashtable;
+	/** Hash Table containing the number of times each SEC is visited, indexed by SEC hash */
+	protected LongHashtable<SEC> secHashtable;
 
-	public Hashtable<SECHashKey, SEC> getSECHashTable() {
+	public LongHashtable<SEC> getSECHashTable() {
 		return secHashtable;
 	}
 
@@ -101,6 +109,98 @@ public class MetropolisSearch extends BNetSearch {
 	 */
 	public boolean doAnnealOnFirstEpoch = true;
 
+	/** Should the progress bar and progress messages be printed? */
+	public boolean printProgress = true;
+
+	/**
+	 * Should visited TOMs be added to secHashtable? Chains used only to explore (such as the
+	 * heated chains of ReplicaExchangeMetropolisSearch) do not need to record samples.
+	 */
+	public boolean samplePosterior = true;
+
+	/**
+	 * Used to evaluate batches of proposals in parallel when caseInfo.speculativeBatch > 0.
+	 * Created on the first transformation, after arcProb and temperature are fixed.
+	 */
+	protected SpeculativeTransformer speculator;
+
+	/**
+	 * Costs families near the current TOM in the background when caseInfo.prefetchThreads > 0.
+	 * Created on the first sampling epoch.
+	 */
+	protected NodePrefetcher prefetcher;
+
+	/**
+	 * Time (as given by System.currentTimeMillis()) by which sampling must finish. Set
+	 * from caseInfo.timeLimit during the first epoch.
+	 */
+	protected long deadline = Long.MAX_VALUE;
+
+	/** Time by which AnnealSearch must finish when run during the first epoch. */
+	protected long annealDeadline = Long.MAX_VALUE;
+
+	/** Number of epochs sampling would run for with no time limit or stopping rule. */
+	protected long nominalMax;
+
+	/** Proportion of the annealing schedule completed before its deadline. */
+	protected double annealScheduleCompleted = 1.0;
+
+	/** Set when sampling stops early as the deadline has passed. */
+	protected boolean outOfTime = false;
+
+	/** Has sampling stopped early as the deadline passed? */
+	public boolean isOutOfTime() {
+		return outOfTime;
+	}
+
+	/** Return the proportion of the normal number of sampling epochs completed. */
+	public double getScheduleCompleted() {
+		if (nominalMax == 0) {
+			return 0;
+		}
+		return Math.min(1.0, Math.max(0, epoch - 1) / (double) nominalMax);
+	}
+
+	/** Return the proportion of the annealing schedule completed before its deadline. */
+	public double getAnnealScheduleCompleted() {
+		return annealScheduleCompleted;
+	}
+
+	/** Epoch at which convergence is next checked, see CaseInfo.convergenceTolerance */
+	protected long nextConvergenceCheck;
+
+	/** SEC weights at the last convergence check, indexed by SEC hash. */
+	protected LongHashtable<Double> convergenceSnapshot;
+
+	/** totalWeight and referenceWeight at the last convergence check. */
+	protected double snapshotTotalWeight, snapshotReferenceWeight;
+
+	/** Distance between halves of the sample at the last convergence check, -1 if none. */
+	protected double convergenceDistance = -1;
+
+	/** Epoch sampling stopped at due to convergence, -1 if sampling has not converged. */
+	protected long convergedEpoch = -1;
+
+	/** Return the distance between halves of the sample at the last convergence check, -1 if none. */
+	public double getConvergenceDistance() {
+		return convergenceDistance;
+	}
+
+	/** Return epoch sampling stopped at due to convergence, -1 if sampling has not converged. */
+	public long getConvergedEpoch() {
+		return convergedEpoch;
+	}
+
+	/** Return the NodePrefetcher used, or null if families are not prefetched. */
+	public NodePrefetcher getNodePrefetcher() {
+		return prefetcher;
+	}
+
+	/** Return the SpeculativeTransformer used, or null if proposals are not evaluated speculatively. */
+	public SpeculativeTransformer getSpeculativeTransformer() {
+		return speculator;
+	}
+
 	/**
 	 * Update currentCost and cleanMLCost.
 	 * 
@@ -122,53 +222,38 @@ public class MetropolisSearch extends BNetSearch {
 		// Start sampling from the best model found.
 		tom.setStructure(bestTOM);
 
+		if (speculator != null) {
+			speculator.shutdown();
+			speculator = null;
+		}
+		if (prefetcher != null) {
+			prefetcher.shutdown();
+			prefetcher = null;
+		}
+
+		// SECs keep a reference to the arena holding their TOMs, so the previous sample is
+		// released once its SECs are no longer used.
 		secHashtable.clear();
+		caseInfo.tomArena = new TOMArena();
 
 		// Initial search conditions
 		epoch = 0;
 		searchDone = false;
+		outOfTime = false;
 
 		// Initialise mml, ml and best costs
 		updateCosts(null);
 		bestCost = currentCost;
 	}
 
-	/**
-	 * Class used as key to secHashTable. This is essentially a long (64 bit) value
-	 * turned into an object so it can be used as a key to a hashtable.
-	 */
-	protected static class SECHashKey implements Cloneable {
-		private long key;
-
-		public SECHashKey(long key) {
-			this.key = key;
-		}
-
-		public int hashCode() {
-			return (int) ((key >> 32) + key);
-		}
-
-		public boolean equals(Object o) {
-			if (((SECHashKey) o).key == this.key)
-				return true;
-			else
-				return false;
-		}
-
-		public Object clone() {
-			return new SECHashKey(key);
-		}
-
-		public void set(long key) {
-			this.key = key;
+	/** Run AnnealSearch to estimate arcProb and set bestModel */
+	protected void runAnnealSearch() {
+		// Restarts use their own random number generators, so are not used for regression.
+		if (caseInfo.annealRestarts > 1 && !caseInfo.regression) {
+			runAnnealRestarts(caseInfo.annealRestarts);
+			return;
 		}
-	}
 
-	/** We allocate a single key to save reallocation for each iteration. */
-	protected SECHashKey tempKey = new SECHashKey(0);
-
-	/** Run AnnealSearch to estimate arcProb and set bestModel */
-	private void runAnnealSearch() {
 		// create AnnealSearch object
 		AnnealSearch annealSearch = new AnnealSearch(rand, caseInfo);
 		Search blockingSearch = new camml.core.library.BlockingSearch(annealSearch);
@@ -180,10 +265,12 @@ public class MetropolisSearch extends BNetSearch {
 			annealSearch.recalculateCosts(); // update bestCost based on new arcProb.
 		}
 		annealSearch.tomCoster = tomCoster;
+		annealSearch.deadline = annealDeadline;
 
 		// run the search. A blocking search is used as we need the result before
 		// metropolis may proceed.
 		blockingSearch.start();
+		annealScheduleCompleted = annealSearch.getScheduleCompleted();
 
 		// Copy required values from AnnealSearch.
 		if (fixedArcProb != true) {
@@ -194,6 +281,177 @@ public class MetropolisSearch extends BNetSearch {
 		caseInfo.referenceWeight = bestCost;
 	}
 
+	/**
+	 * Mix of transformations attempted by doTransform. This must not change once sampling
+	 * has started or detailed balance is lost.
+	 */
+	protected ProposalMix proposalMix = new ProposalMix();
+
+	/** Return the mix of transformations attempted during sampling. */
+	public ProposalMix getProposalMix() {
+		return proposalMix;
+	}
+
+	/** Proportion of the sampling schedule run before sampling to tune proposalMix. */
+	public double adaptationFraction = 0.1;
+
+	/** Acceptance statistics used to tune proposalMix, or null if it was not tuned. */
+	protected ProposalMix proposalStats;
+
+	/** Set while adaptProposalMix is running, doTransform then records into proposalStats. */
+	private boolean adapting = false;
+
+	/** Return the acceptance statistics used to tune the proposal mix, or null if not tuned. */
+	public ProposalMix getProposalStats() {
+		return proposalStats;
+	}
+
+	/**
+	 * If caseInfo.adaptiveProposals is set, run a discarded adaptation segment starting from
+	 * bestTOM at the sampling temperature, then replace proposalMix with one tuned from the
+	 * acceptance statistics of its proposals. TOMs visited are not sampled, and the mix is
+	 * fixed from then on.
+	 */
+	protected void adaptProposalMix() {
+		if (!caseInfo.adaptiveProposals) {
+			return;
+		}
+		boolean updateArcWeights = caseInfo.updateArcWeights;
+		caseInfo.updateArcWeights = false;
+		tom.setStructure(bestTOM);
+		updateCosts(null);
+
+		proposalStats = new ProposalMix();
+		long numEpochs = Math.max(ProposalMix.MIN_PROPOSALS, (long) (max * adaptationFraction));
+		adapting = true;
+		try {
+			for (long i = 0; i < numEpochs; i++) {
+				doTransform();
+			}
+		} finally {
+			adapting = false;
+			caseInfo.updateArcWeights = updateArcWeights;
+		}
+		caseInfo.safeMode = false;
+
+		proposalMix = proposalStats.tune();
+		if (GUIModel.searchLatent == false && printProgress) {
+			System.out.println("Adaptation proposals : " + proposalStats);
+			System.out.println("Tuned proposals      : " + proposalMix);
+		}
+	}
+
+	/** arcProb estimated by each AnnealSearch restart. null if restarts were not used. */
+	protected double[] annealArcProbs;
+
+	/** Best cost found by each AnnealSearch restart. null if restarts were not used. */
+	protected double[] annealCosts;
+
+	/** Return arcProb estimated by each AnnealSearch restart, or null if not used. */
+	public double[] getAnnealArcProbs() {
+		return annealArcProbs;
+	}
+
+	/** Return the best cost found by each AnnealSearch restart, or null if not used. */
+	public double[] getAnnealCosts() {
+		return annealCosts;
+	}
+
+	/**
+	 * Run numRestarts AnnealSearches with different seeds in parallel threads, then
+	 * estimate arcProb and set bestModel from the one finding the lowest cost. Each
+	 * restart has its own CaseInfo and TOMCoster but shares the NodeCache. The spread
+	 * of arcProb estimates is printed as a guide to how reliable the estimate is.
+	 */
+	private void runAnnealRestarts(int numRestarts) {
+		final AnnealSearch[] anneal = new AnnealSearch[numRestarts];
+		for (int i = 0; i < numRestarts; i++) {
+			CaseInfo info = caseInfo.copyForThread(tomCoster);
+			anneal[i] = new AnnealSearch(makeThreadRandom(), info);
+			anneal[i].printProgress = false;
+			anneal[i].deadline = annealDeadline;
+			if (fixedArcProb == true) {
+				anneal[i].setArcProb(arcProb);
+				anneal[i].fixedArcProb = true;
+				anneal[i].recalculateCosts();
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numRestarts, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AnnealRestart");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			Future<?>[] future = new Future<?>[numRestarts];
+			for (int i = 0; i < numRestarts; i++) {
+				final AnnealSearch a = anneal[i];
+				future[i] = executor.submit(new Callable<Object>() {
+					public Object call() {
+						while (!a.isFinished()) {
+							a.doEpoch();
+						}
+						return null;
+					}
+				});
+			}
+
+			for (int i = 0; i < numRestarts; i++) {
+				try {
+					future[i].get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while waiting for AnnealSearch " + i, e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Exception in AnnealSearch " + i, e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// Choose the restart with the lowest cost.
+		annealArcProbs = new double[numRestarts];
+		annealCosts = new double[numRestarts];
+		int best = 0;
+		for (int i = 0; i < numRestarts; i++) {
+			annealArcProbs[i] = anneal[i].getBestArcProb();
+			annealCosts[i] = anneal[i].getBestCost();
+			if (annealCosts[i] < annealCosts[best]) {
+				best = i;
+			}
+		}
+
+		if (GUIModel.searchLatent == false && printProgress) {
+			double lowest = Double.POSITIVE_INFINITY, highest = Double.NEGATIVE_INFINITY, mean = 0;
+			for (int i = 0; i < numRestarts; i++) {
+				lowest = Math.min(lowest, annealArcProbs[i]);
+				highest = Math.max(highest, annealArcProbs[i]);
+				mean += annealArcProbs[i] / numRestarts;
+			}
+			double var = 0;
+			for (int i = 0; i < numRestarts; i++) {
+				var += (annealArcProbs[i] - mean) * (annealArcProbs[i] - mean) / numRestarts;
+			}
+			System.out.println("AnnealSearch restart " + best + " of " + numRestarts + " chosen, cost = "
+					+ caseInfo.costFormat.format(annealCosts[best]));
+			System.out.println("arcProb estimates : mean = " + caseInfo.posteriorFormat.format(mean) + " sd = "
+					+ caseInfo.posteriorFormat.format(Math.sqrt(var)) + " range = ["
+					+ caseInfo.posteriorFormat.format(lowest) + "," + caseInfo.posteriorFormat.format(highest) + "]");
+		}
+
+		// Copy required values from the best AnnealSearch.
+		annealScheduleCompleted = anneal[best].getScheduleCompleted();
+		if (fixedArcProb != true) {
+			setArcProb(anneal[best].getBestArcProb());
+		}
+		bestTOM.setStructure(anneal[best].getBestTOM());
+		bestCost = anneal[best].bestCost;
+		caseInfo.referenceWeight = bestCost;
+	}
+
 	/**
 	 * Update weights so that currentCost has a weight of 1.0 This should be done
 	 * when a new best cost is found.
@@ -229,50 +487,123 @@ public class MetropolisSearch extends BNetSearch {
 			}
 		}
 
-		System.out.println("newReference = " + caseInfo.referenceWeight + "\t" + "totalWeight = " + caseInfo.totalWeight
-				+ "\t" + "multiplier = " + multiplier);
+		if (printProgress) {
+			System.out.println("newReference = " + caseInfo.referenceWeight + "\t" + "totalWeight = "
+					+ caseInfo.totalWeight + "\t" + "multiplier = " + multiplier);
+		}
 	}
 
 	/** Stochastically attempt transform. Return true if TOM changed. */
 	public boolean doTransform() {
+		// Proposals are not evaluated speculatively in regression mode as the
+		// sequence of random numbers used must be reproducible.
+		if (caseInfo.speculativeBatch > 0 && !caseInfo.regression && !adapting) {
+			if (speculator == null) {
+				speculator = new SpeculativeTransformer(this, caseInfo.speculativeBatch);
+			}
+			return speculator.doTransform();
+		}
+
 		// If we always accept the first model we avoid some strange situations where
 		// the optimum MML model is not samples.
 		TOMTransformation transform;
 
 		// Randomly choose class of transformation to attempt.
 		double rnd = rand.nextDouble();
-		if (rnd < 0.16667) { // 1/6 chance
-			transform = parentSwapChange;
-		} else if (rnd < 0.33333) { // 1/6 chance
-			transform = doubleSkeletalChange;
-		} else if (rnd < 0.66667) { // 1/3 chance
-			transform = skeletalChange;
-		} else { // 1/3 chance
-			transform = temporalChange;
-		}
+		int type = proposalMix.choose(rnd);
+		transform = getTransformation(type);
 
 		// was it successful?
+		double oldCost = currentCost;
 		boolean accepted = transform.transform(tom, currentCost);
  
 		// Recalculate the cost of the network if modified.
 		if (accepted == true) {
-			// updateCosts updates dirtytom and cleantom.
-			updateCosts(transform.getNodesChanged());
+			tomChanged(transform.getNodesChanged());
+		}
+
+		if (adapting) {
+			proposalStats.record(type, accepted, oldCost - currentCost);
+		}
 
-			// Reference Weight should be set to the best model cost found so far
-			// this avoids overflow / underflow issues.
-			if (currentCost + 0.001 < bestCost) {
-				updateReferenceWeight(currentCost);
-				bestCost = currentCost;
-				this.bestTOM.setStructure(tom);
+		return accepted;
+	}
+
+	/**
+	 * Set tom to the structure of newTOM, keeping arc weights, costs and the best TOM found
+	 * up to date. Any speculative proposals drawn from the previous TOM are discarded.
+	 * 
+	 * @param nodesChanged:
+	 *            nodes whose parents differ between tom and newTOM, or null if all nodes
+	 *            may differ.
+	 */
+	protected void setCurrentTOM(TOM newTOM, int[] nodesChanged) {
+		// arcWeights[i][j] has totalWeight subtracted when j->i appears and added when it
+		// disappears, see getArcPortions().
+		if (caseInfo.updateArcWeights) {
+			double[][] arcWeights = caseInfo.arcWeights;
+			int numChanged = (nodesChanged == null) ? numNodes : nodesChanged.length;
+			for (int x = 0; x < numChanged; x++) {
+				int i = (nodesChanged == null) ? x : nodesChanged[x];
+				for (int j = 0; j < numNodes; j++) {
+					boolean before = tom.isDirectedArc(j, i);
+					boolean after = newTOM.isDirectedArc(j, i);
+					if (before && !after) {
+						arcWeights[i][j] += caseInfo.totalWeight;
+					} else if (!before && after) {
+						arcWeights[i][j] -= caseInfo.totalWeight;
+					}
+				}
 			}
+		}
 
-			// if currentCost is really bad, only accept positive mutations.
-			// this stops us getting too far away from the good models.
-			caseInfo.safeMode = (currentCost > bestCost + caseInfo.safeCap);
+		tom.setStructure(newTOM);
+		if (speculator != null) {
+			speculator.invalidate();
 		}
+		tomChanged(nodesChanged);
+	}
 
-		return accepted;
+	/**
+	 * Update costs, the best TOM found and safeMode after tom has been modified.
+	 * 
+	 * @param nodesChanged:
+	 *            nodes with parent changes, or null if all nodes may have changed.
+	 */
+	protected void tomChanged(int[] nodesChanged) {
+		// updateCosts updates dirtytom and cleantom.
+		updateCosts(nodesChanged);
+
+		// Reference Weight should be set to the best model cost found so far
+		// this avoids overflow / underflow issues.
+		if (currentCost + 0.001 < bestCost) {
+			updateReferenceWeight(currentCost);
+			bestCost = currentCost;
+			this.bestTOM.setStructure(tom);
+		}
+
+		// if currentCost is really bad, only accept positive mutations.
+		// this stops us getting too far away from the good models.
+		caseInfo.safeMode = (currentCost > bestCost + caseInfo.safeCap);
+	}
+
+	/**
+	 * Calculate the number of epochs to sample and split any time limit between annealing
+	 * and sampling.
+	 */
+	protected void initSchedule() {
+		long temp = numNodes;
+		if (temp < 10) {
+			temp = 10;
+		}
+		max = (long) (temp * temp * temp * 200 * caseInfo.searchFactor);
+		nominalMax = max;
+
+		if (caseInfo.timeLimit > 0) {
+			long start = System.currentTimeMillis();
+			deadline = start + (long) (caseInfo.timeLimit * 1000);
+			annealDeadline = start + (long) (caseInfo.timeLimit * caseInfo.annealTimeFraction * 1000);
+		}
 	}
 
 	/**
@@ -283,14 +614,9 @@ public class MetropolisSearch extends BNetSearch {
 	 */
 	public double doEpoch() {
 		if (epoch == 0 && doAnnealOnFirstEpoch) {
-			// Calculate the number of epochs in the search.
-			long temp = numNodes;
-			if (temp < 10) {
-				temp = 10;
-			}
-			max = (long) (temp * temp * temp * 200 * caseInfo.searchFactor);
+			initSchedule();
 
-			if (GUIModel.searchLatent == false) {
+			if (GUIModel.searchLatent == false && printProgress) {
 				System.out.println("Sampling " + max + " TOMs");
 				System.out.println(fullData.length() + " data points from " + numNodes + " variables.");
 			}
@@ -299,7 +625,7 @@ public class MetropolisSearch extends BNetSearch {
 			// run AnnealSearch to estimate probs and find the best MML model to start
 			// sampling from
 
-			if (GUIModel.searchLatent == false)
+			if (GUIModel.searchLatent == false && printProgress)
 				System.out.println("Estimating arcProb");
 
 			
@@ -319,7 +645,7 @@ public class MetropolisSearch extends BNetSearch {
 			
 			runAnnealSearch();
 
-			if (GUIModel.searchLatent == false)
+			if (GUIModel.searchLatent == false && printProgress)
 				System.out.println("arcProb = " + arcProb);
 
 			// Remove any excess arcs left by AnnealSearch (unlikely to be present.)
@@ -327,6 +653,8 @@ public class MetropolisSearch extends BNetSearch {
 				bestTOM.clean();
 			}
 
+			adaptProposalMix();
+
 			// Turn on arc weight count.
 			tom.clearArcs();
 			caseInfo.updateArcWeights = true;
@@ -336,7 +664,7 @@ public class MetropolisSearch extends BNetSearch {
 			updateCosts(null);
 
 			// print out progress bar header.
-			if (GUIModel.searchLatent == false) {
+			if (GUIModel.searchLatent == false && printProgress) {
 				for (int i = 0; i < 100; i++) {
 					System.out.print(i % 10);
 				}
@@ -346,10 +674,10 @@ public class MetropolisSearch extends BNetSearch {
 		}
 
 		// gradually print progress bar as search runs.
-		if (max < 100 || epoch % (max / 100) == 0) {
+		if (printProgress && (max < 100 || epoch % (max / 100) == 0)) {
 			System.out.print(".");
 		}
-		if (epoch == max - 1 && GUIModel.searchLatent == false) {
+		if (epoch == max - 1 && GUIModel.searchLatent == false && printProgress) {
 			System.out.println();
 		}
 
@@ -362,33 +690,74 @@ public class MetropolisSearch extends BNetSearch {
 
 		if (epoch == 0) { // Never transform on the first epoch.
 			updateCosts(null); // This ensures starting model is sampled at least once.
+			convergenceSnapshot = null;
+			convergenceDistance = -1;
+			convergedEpoch = -1;
+			nextConvergenceCheck = caseInfo.convergenceCheck;
+
+			// Subclasses may cache nodes with extra structure NodePrefetcher does not copy.
+			if (caseInfo.prefetchThreads > 0 && prefetcher == null
+					&& caseInfo.nodeCache.getClass() == NodeCache.class) {
+				prefetcher = new NodePrefetcher(caseInfo.nodeCache, caseInfo.prefetchThreads,
+						2 * caseInfo.prefetchThreads);
+			}
+			if (prefetcher != null) {
+				prefetcher.prefetch(tom);
+			}
 		} else {
-			doTransform();
+			if (doTransform() && prefetcher != null) {
+				prefetcher.prefetch(tom);
+			}
 		}
 
 		// Extract SEC from Hash and update its posterior
-		SEC sec = getSEC();
-		updatePosterior(sec);
+		if (samplePosterior) {
+			SEC sec = getSEC();
+			updatePosterior(sec);
+		}
 
 		// increment the number of epochs completed.
 		epoch++;
 
+		// Stop early if out of time. Checking the time is relatively slow, so only check occasionally.
+		if (samplePosterior && (epoch & 255) == 0 && System.currentTimeMillis() > deadline) {
+			outOfTime = true;
+			if (GUIModel.searchLatent == false && printProgress) {
+				System.out.println();
+				System.out.println("Time limit reached after " + epoch + " of " + max + " epochs ("
+						+ (int) (100.0 * (epoch - 1) / nominalMax) + "% of sampling schedule completed.)");
+			}
+			max = epoch - 1;
+		}
+
+		// Stop early if the posterior has converged.
+		if (caseInfo.convergenceTolerance > 0 && samplePosterior && epoch == nextConvergenceCheck
+				&& checkConvergence()) {
+			convergedEpoch = epoch;
+			if (GUIModel.searchLatent == false && printProgress) {
+				System.out.println();
+				System.out.println("Converged after " + epoch + " of " + max + " epochs, distance = "
+						+ caseInfo.posteriorFormat.format(convergenceDistance));
+			}
+			max = epoch - 1;
+		}
+
 		// If all epoch complete, finish.
 		if (epoch == max + 1) {
 			searchDone = true;
+			if (speculator != null) {
+				speculator.shutdown();
+			}
+			if (prefetcher != null) {
+				prefetcher.shutdown();
+			}
 		}
 
 		// debug logging.
 		if (caseInfo.logging) {
-			try {
-				caseInfo.cammlLog.write("STEP : " + epoch + "\tMMLCost = " + caseInfo.costFormat.format(currentCost)
-						+ "\trand: " + ((WallaceRandom) rand).numCalls + "\n");
-				caseInfo.cammlLog.flush();
-			} catch (Exception e) {
-				for (int ii = 0; ii < 100; ii++) {
-					System.out.println(e);
-				}
-				throw new RuntimeException(e);
+			caseInfo.getLog().logStep(epoch, currentCost, ((WallaceRandom) rand).numCalls);
+			if (searchDone) {
+				caseInfo.getLog().flush();
 			}
 		}
 
@@ -418,15 +787,67 @@ public class MetropolisSearch extends BNetSearch {
 
 			// debug logging.
 			if (caseInfo.logging) {
-				try {
-					caseInfo.cammlLog.write("weight = " + caseInfo.weightFormat.format(weight) + "\ttomWeight = "
-							+ caseInfo.weightFormat.format(0.0) + "\tdiff = " + caseInfo.weightFormat.format(diff)
-							+ "\ttotalWeight = " + caseInfo.weightFormat.format(caseInfo.totalWeight) + "\n");
-					caseInfo.cammlLog.flush();
-				} catch (java.io.IOException e) {
-					/* ignore exception */ }
+				caseInfo.getLog().logWeight(weight, 0.0, diff, caseInfo.totalWeight);
+			}
+		}
+	}
+
+	/**
+	 * Compare the SEC posterior estimated from the samples before the last check with that
+	 * from the samples since, then record a snapshot for the next check (made after twice as
+	 * many epochs.) Only the caseInfo.convergenceTopSECs most probable SECs are compared, other
+	 * SECs and weight ignored are pooled. Return true if the total variation distance between
+	 * the two estimates is less than caseInfo.convergenceTolerance.
+	 */
+	protected boolean checkConvergence() {
+		long[] keys = secHashtable.keys();
+		ArrayList<SEC> secList = secHashtable.values();
+		boolean converged = false;
+
+		if (convergenceSnapshot != null) {
+			// Rescale snapshot to the current reference weight.
+			double multiplier = Math.exp((caseInfo.referenceWeight - snapshotReferenceWeight) * (1.0 - 1.0 / temperature));
+			double firstTotal = snapshotTotalWeight * multiplier;
+			double secondTotal = caseInfo.totalWeight - firstTotal;
+
+			// Find the most probable SECs.
+			double[] weight = new double[secList.size()];
+			for (int i = 0; i < weight.length; i++) {
+				weight[i] = secList.get(i).weight;
+			}
+			int numTop = Math.min(caseInfo.convergenceTopSECs, weight.length);
+			double firstOther = 1, secondOther = 1, distance = 0;
+			for (int k = 0; k < numTop; k++) {
+				int best = 0;
+				for (int i = 1; i < weight.length; i++) {
+					if (weight[i] > weight[best]) {
+						best = i;
+					}
+				}
+				weight[best] = -1;
+
+				Double oldWeight = convergenceSnapshot.get(keys[best]);
+				double first = (oldWeight == null) ? 0 : oldWeight.doubleValue() * multiplier;
+				double second = Math.max(0, secList.get(best).weight - first);
+				first /= firstTotal;
+				second /= secondTotal;
+				distance += Math.abs(first - second);
+				firstOther -= first;
+				secondOther -= second;
 			}
+			convergenceDistance = (distance + Math.abs(firstOther - secondOther)) / 2;
+			converged = convergenceDistance < caseInfo.convergenceTolerance;
+		}
+
+		convergenceSnapshot = new LongHashtable<Double>(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			convergenceSnapshot.put(keys[i], secList.get(i).weight);
 		}
+		snapshotTotalWeight = caseInfo.totalWeight;
+		snapshotReferenceWeight = caseInfo.referenceWeight;
+		nextConvergenceCheck = epoch * 2;
+
+		return converged;
 	}
 
 	/** Extract SEC from hashtable for the cleantom. Create the SEC if required */
@@ -443,14 +864,13 @@ public class MetropolisSearch extends BNetSearch {
 		}
 
 		// Check if current SEC is in secHashtable
-		tempKey.set(hashValue);
-		SEC sec = (SEC) secHashtable.get(tempKey);
+		SEC sec = secHashtable.get(hashValue);
 
 		// If SEC not found and current TOM has a reasonable posterior, add SEC to the
 		// list of SECs.
 		if (sec == null && currentCost < bestCost + ignoreCap) {
 			sec = new SEC(cleantom, currentMLCost, caseInfo);
-			secHashtable.put(new SECHashKey(hashValue), sec);
+			secHashtable.put(hashValue, sec);
 		}
 		return sec;
 	}
@@ -628,70 +1048,10 @@ public class MetropolisSearch extends BNetSearch {
 			mmlec[i] = new MMLEC(secArray[i]);
 		}
 
-		double bestGain = -1;
-		int bestI = -1;
-		int bestJ = -1;
-
-		while (true) {
-
-			// loop through all possible joins to see which has the highest gain.
-			for (int i = 0; i < kl.length; i++) {
-				for (int j = 0; j < kl[i].length; j++) {
-					// ensure mmlec[i] and mmlec[j] each contain at least one SEC
-					if (mmlec[i].length() > 0 && mmlec[j].length() > 0) {
-
-						// extract representative SECs
-						SEC secI = mmlec[i].getSEC(0);
-						SEC secJ = mmlec[j].getSEC(0);
-
-						// extract numArcs from representative SECs
-						int arcsI = secI.getNumArcs();
-						int arcsJ = secJ.getNumArcs();
-
-						if (i != j && (arcsI <= arcsJ || (caseInfo.allowMergeToModelWithMoreArcs == true))) {
-							// extract relative priors from MMLECs
-							double p1 = mmlec[i].relativePrior;
-							double p2 = mmlec[j].relativePrior;
-							double p3 = p1 + p2;
-
-							// Use SMML formula to test if SECs should be merged
-							// double gain = p1 * Math.log( p1 ) + p2 * Math.log( p2 )
-							// - ( p1 + p2 ) * Math.log( p1 + p2 )
-							// + p2 * kl[j][i] * dataLength ;
-							// gain = (-gain) / (p1+p2);
-							double before = -(p1 * Math.log(p1) + p2 * Math.log(p2));
-							double after = -(p3 * Math.log(p3)) + p2 * kl[j][i];
-							double gain = before - after;
-
-							if (gain > bestGain) {
-								bestGain = gain;
-								bestI = i;
-								bestJ = j;
-							}
-						}
-					}
-				}
-			} // end : for ( int i = 0; i < kl.length; i++ ) { ... }
-
-			// if best gain found is positive, join models.
-			// if not, model joining is done.
-			if (bestGain > 0 && GUIModel.searchLatent == false) {
-				System.out.println("Joining model " + bestI + " and " + bestJ + "\t" + "["
-						+ caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior()) + " + "
-						+ caseInfo.posteriorFormat.format(mmlec[bestJ].getPosterior()) + " = "
-						+ caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior() + mmlec[bestJ].getPosterior())
-						+ "]");
-
-				mmlec[bestI].merge(mmlec[bestJ]);
-
-				bestGain = -1;
-				bestI = -1;
-				bestJ = -1;
-			} else {
-				break;
-			}
-
-		} // end while(true) { ... }
+		// Model joining is not done when searching latent variables.
+		if (GUIModel.searchLatent == false) {
+			joinMMLECs(mmlec, kl);
+		}
 
 		// compact all non empty MMLECs and return resuls.
 		int uniqueMMLECs = 0;
@@ -714,6 +1074,108 @@ public class MetropolisSearch extends BNetSearch {
 		return finalMMLECArray;
 	}
 
+	/**
+	 * Repeatedly merge the pair of MMLECs with the highest positive gain until no merge
+	 * gives a positive gain. Merged MMLECs are left empty. <br>
+	 * The best join for each row i is stored in bestJoin[i] and the gain of each row is kept
+	 * in a heap. After mmlec[j] is merged into mmlec[i] only row i and rows whose best join
+	 * involved i or j must be recalculated, other rows need only consider their join with i.
+	 * Ties are broken as a scan through (i,j) in order would, so results are unchanged.
+	 */
+	protected void joinMMLECs(MMLEC[] mmlec, double[][] kl) {
+		int[] bestJoin = new int[mmlec.length];
+		IndexedHeap heap = new IndexedHeap(mmlec.length);
+		for (int i = 0; i < mmlec.length; i++) {
+			updateBestJoin(mmlec, kl, i, bestJoin, heap);
+		}
+
+		while (!heap.isEmpty()) {
+			int bestI = heap.top();
+			int bestJ = bestJoin[bestI];
+
+			// if best gain found is positive, join models.
+			// if not, model joining is done.
+			if (!(heap.getPriority(bestI) > 0)) {
+				break;
+			}
+
+			System.out.println("Joining model " + bestI + " and " + bestJ + "\t" + "["
+					+ caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior()) + " + "
+					+ caseInfo.posteriorFormat.format(mmlec[bestJ].getPosterior()) + " = "
+					+ caseInfo.posteriorFormat.format(mmlec[bestI].getPosterior() + mmlec[bestJ].getPosterior())
+					+ "]");
+
+			mmlec[bestI].merge(mmlec[bestJ]);
+			heap.remove(bestJ);
+			updateBestJoin(mmlec, kl, bestI, bestJoin, heap);
+
+			for (int x = 0; x < mmlec.length; x++) {
+				if (x == bestI || !heap.contains(x)) {
+					continue;
+				}
+				if (bestJoin[x] == bestI || bestJoin[x] == bestJ) {
+					updateBestJoin(mmlec, kl, x, bestJoin, heap);
+				} else {
+					double gain = joinGain(mmlec, kl, x, bestI);
+					if (gain > heap.getPriority(x) || (gain == heap.getPriority(x) && bestI < bestJoin[x])) {
+						bestJoin[x] = bestI;
+						heap.set(x, gain);
+					}
+				}
+			}
+		}
+	}
+
+	/** Recalculate bestJoin[i] and its gain in heap, or remove i if mmlec[i] is empty. */
+	private void updateBestJoin(MMLEC[] mmlec, double[][] kl, int i, int[] bestJoin, IndexedHeap heap) {
+		if (mmlec[i].length() == 0) {
+			heap.remove(i);
+			return;
+		}
+		double bestGain = Double.NEGATIVE_INFINITY;
+		bestJoin[i] = -1;
+		for (int j = 0; j < mmlec.length; j++) {
+			double gain = joinGain(mmlec, kl, i, j);
+			if (gain > bestGain) {
+				bestGain = gain;
+				bestJoin[i] = j;
+			}
+		}
+		heap.set(i, bestGain);
+	}
+
+	/**
+	 * Return the gain from merging mmlec[j] into mmlec[i], or -Infinity if the merge is not
+	 * allowed.
+	 */
+	private double joinGain(MMLEC[] mmlec, double[][] kl, int i, int j) {
+		// ensure mmlec[i] and mmlec[j] each contain at least one SEC
+		if (i == j || mmlec[i].length() == 0 || mmlec[j].length() == 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		// extract numArcs from representative SECs
+		int arcsI = mmlec[i].getSEC(0).getNumArcs();
+		int arcsJ = mmlec[j].getSEC(0).getNumArcs();
+		if (arcsI > arcsJ && caseInfo.allowMergeToModelWithMoreArcs == false) {
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		// extract relative priors from MMLECs
+		double p1 = mmlec[i].relativePrior;
+		double p2 = mmlec[j].relativePrior;
+		double p3 = p1 + p2;
+
+		// Use SMML formula to test if SECs should be merged
+		// double gain = p1 * Math.log( p1 ) + p2 * Math.log( p2 )
+		// - ( p1 + p2 ) * Math.log( p1 + p2 )
+		// + p2 * kl[j][i] * dataLength ;
+		// gain = (-gain) / (p1+p2);
+		double before = -(p1 * Math.log(p1) + p2 * Math.log(p2));
+		double after = -(p3 * Math.log(p3)) + p2 * kl[j][i];
+		return before - after;
+	}
+
 	/**
 	 * Find the KL distance between each SEC and return it as an array of doubles.
 	 *
@@ -758,80 +1220,143 @@ public class MetropolisSearch extends BNetSearch {
 		
 		// Allocate klArray
 		double[][] klArray = new double[secUsed][secUsed];
-		Value.Vector inputVec = new VectorFN.ConstantVector(n, Value.TRIV);
 
-		if (caseInfo.useExactKL) {
-			if (caseInfo.cklJoinType != 0) {
-				throw new RuntimeException("exact CKL Joining not implemented.");
-			}
+		if (caseInfo.useExactKL && caseInfo.cklJoinType != 0) {
+			throw new RuntimeException("exact CKL Joining not implemented.");
+		}
 
-			if (caseInfo.useNetica) {
-				for (int i = 0; i < params.length; i++) {
-					try {
-						System.out.print('X');
-						klArray[i] = BNetNetica.exactKLNetica(bNet, params, i);
-					} catch (NeticaException e) {
-						throw new RuntimeException(e);
-					}
+		if (caseInfo.useExactKL && caseInfo.useNetica) {
+			for (int i = 0; i < params.length; i++) {
+				try {
+					System.out.print('X');
+					klArray[i] = BNetNetica.exactKLNetica(bNet, params, i);
+				} catch (NeticaException e) {
+					throw new RuntimeException(e);
 				}
-			} else {
-				for (int i = 0; i < klArray.length; i++) {
-					System.out.print("X");
+			}
+		}
+		// BNet caches intermediate values so each thread needs its own copy. Only
+		// BNetStochastic is known to be safe to copy this way. In regression mode rand
+		// must be used directly so results are reproducible.
+		else if (bNet.getClass() == BNetStochastic.class && !caseInfo.regression) {
+			klArray = makeKLParallel(params, (BNetStochastic) bNet, n);
+		} else {
+			for (int i = 0; i < params.length; i++) {
+				klArray[i] = makeKLRow(i, params, bNet, rand, n);
+			}
+		}
 
-					for (int j = 0; j < klArray.length; j++) {
-						klArray[i][j] = bNet.kl(params[i], params[j]) * caseInfo.data.length();
-						// klArray[i][j] = bNet.ckl2(params[i],params[j]) * caseInfo.data.length();
-					}
-				}
+		if (GUIModel.searchLatent == false)
+			System.out.println();
+
+		return klArray;
+	}
+
+	/**
+	 * Calculate each row of the KL matrix in parallel. Each row uses its own BNet and a
+	 * random number generator made by makeThreadRandom(), so results do not depend on the
+	 * number of threads used.
+	 */
+	private double[][] makeKLParallel(final Value.Vector[] params, final BNetStochastic bNet, final int n) {
+		final double[][] klArray = new double[params.length][];
+		final java.util.Random[] rowRand = new java.util.Random[params.length];
+		for (int i = 0; i < params.length; i++) {
+			rowRand[i] = makeThreadRandom();
+		}
+
+		int numThreads = Math.min(params.length, Runtime.getRuntime().availableProcessors());
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MakeKL");
+				t.setDaemon(true);
+				return t;
 			}
-		} else { // else use stochastic KL
+		});
+
+		try {
+			Future<?>[] future = new Future<?>[params.length];
 			for (int i = 0; i < params.length; i++) {
-				// print progrsss.
-				System.out.print("X");
-
-				// Test what metric is being joined by
-				Value.Vector augParams[];
-				BNet augBNet = null;
-				// if KL, do nothing.
-				if (caseInfo.cklJoinType == 0) {
-					augParams = params;
-					augBNet = bNet;
-				}
-				// if CKL3, augment all parameters.
-				else if (caseInfo.cklJoinType == 3) {
-					augParams = new Value.Vector[params.length];
-					for (int j = 0; j < params.length; j++) {
-						Value.Structured s = AugmentFN3.augment3.apply(bNet, params[j], params[i]);
-						augParams[j] = (Value.Vector) s.cmpnt(1);
-						if (i == j) {
-							augBNet = (BNet) s.cmpnt(0);
-						}
+				final int row = i;
+				future[i] = executor.submit(new Callable<Object>() {
+					public Object call() {
+						BNet rowBNet = new BNetStochastic(bNet.getDataType(), bNet.numSamples);
+						klArray[row] = makeKLRow(row, params, rowBNet, rowRand[row], n);
+						return null;
 					}
+				});
+			}
+
+			for (int i = 0; i < params.length; i++) {
+				try {
+					future[i].get();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("Interrupted while calculating KL row " + i, e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Exception calculating KL row " + i, e.getCause());
 				}
-				// Other methods not implemented.
-				else {
-					throw new RuntimeException("Unhandled CKL join type.");
-				}
+			}
+		} finally {
+			executor.shutdown();
+		}
 
-				// generate data from current parameter set
-				Value.Vector tempData = augBNet.generate(rand, n, augParams[i], Value.TRIV);
+		return klArray;
+	}
+
+	/**
+	 * Calculate row i of the KL matrix, klArray[i][j] = KL(params[i],params[j]) * data.length().
+	 * The stochastic estimate uses n samples generated from params[i] using rand.
+	 */
+	private double[] makeKLRow(int i, Value.Vector[] params, BNet bNet, java.util.Random rand, int n) {
+		// print progress.
+		System.out.print("X");
 
-				// Calculate cost of stating data with current model
-				double selfCost = -augBNet.logP(tempData, augParams[i], inputVec);
+		double[] klRow = new double[params.length];
+		if (caseInfo.useExactKL) {
+			for (int j = 0; j < params.length; j++) {
+				klRow[j] = bNet.kl(params[i], params[j]) * caseInfo.data.length();
+				// klRow[j] = bNet.ckl2(params[i],params[j]) * caseInfo.data.length();
+			}
+			return klRow;
+		}
 
-				// Loop through all models calculating cost to state data with each.
-				// kl[i][j] = (logP( data|params[i] ) - logP(data|params[j])) / n
-				for (int j = 0; j < augParams.length; j++) {
-					double cost = -augBNet.logP(tempData, augParams[j], inputVec);
-					klArray[i][j] = caseInfo.data.length() * (cost - selfCost) / n;
+		// Test what metric is being joined by
+		Value.Vector augParams[];
+		BNet augBNet = null;
+		// if KL, do nothing.
+		if (caseInfo.cklJoinType == 0) {
+			augParams = params;
+			augBNet = bNet;
+		}
+		// if CKL3, augment all parameters.
+		else if (caseInfo.cklJoinType == 3) {
+			augParams = new Value.Vector[params.length];
+			for (int j = 0; j < params.length; j++) {
+				Value.Structured s = AugmentFN3.augment3.apply(bNet, params[j], params[i]);
+				augParams[j] = (Value.Vector) s.cmpnt(1);
+				if (i == j) {
+					augBNet = (BNet) s.cmpnt(0);
 				}
 			}
 		}
+		// Other methods not implemented.
+		else {
+			throw new RuntimeException("Unhandled CKL join type.");
+		}
 
-		if (GUIModel.searchLatent == false)
-			System.out.println();
+		// generate data from current parameter set
+		Value.Vector inputVec = new VectorFN.ConstantVector(n, Value.TRIV);
+		Value.Vector tempData = augBNet.generate(rand, n, augParams[i], Value.TRIV);
 
-		return klArray;
+		// Calculate cost of stating data with current model
+		double selfCost = -augBNet.logP(tempData, augParams[i], inputVec);
+
+		// Loop through all models calculating cost to state data with each.
+		// kl[i][j] = (logP( data|params[i] ) - logP(data|params[j])) / n
+		for (int j = 0; j < augParams.length; j++) {
+			double cost = -augBNet.logP(tempData, augParams[j], inputVec);
+			klRow[j] = caseInfo.data.length() * (cost - selfCost) / n;
+		}
+		return klRow;
 	}
 
 	/** Using values from getResults() return (m,y) for a mixture model. */
@@ -957,19 +1482,52 @@ public class MetropolisSearch extends BNetSearch {
 		// create hashing functions.
 		caseInfo.tomHash = new TOMHash(rand, numNodes);
 		caseInfo.secHash = new SECHash(rand, numNodes);
+		initMetropolis();
+	}
+
+	/**
+	 * Create a MetropolisSearch using an existing caseInfo. If caseInfo already contains
+	 * hash functions they are kept, so SECs found by several searches sharing hash functions
+	 * may be combined.
+	 */
+	public MetropolisSearch(java.util.Random rand, CaseInfo caseInfo) {
+		super(rand, caseInfo);
+
+		if (caseInfo.tomHash == null) {
+			caseInfo.tomHash = new TOMHash(rand, numNodes);
+		}
+		if (caseInfo.secHash == null) {
+			caseInfo.secHash = new SECHash(rand, numNodes);
+		}
+		initMetropolis();
+	}
+
+	/** Create the table used to store SECs visited. */
+	protected LongHashtable<SEC> makeSECHashtable() {
+		return new LongHashtable<SEC>();
+	}
+
+	/** Initialisation common to all constructors. */
+	private void initMetropolis() {
 		caseInfo.arcWeights = new double[numNodes][numNodes];
 
 		// Initialise SEC hash table
-		secHashtable = new Hashtable<SECHashKey, SEC>();
+		secHashtable = makeSECHashtable();
 
 		// Number of epochs is calculated properly during first epoch.
 		// max must be > 0 or it won't reach the first epoch.
 		max = 1;
 
-		// we have to manually set caseInfo
-		caseInfo.secHash.caseInfo = caseInfo;
-		caseInfo.tomHash.caseInfo = caseInfo;
-		caseInfo.nodeCache.caseInfo = caseInfo;
+		// we have to manually set caseInfo (unless shared with another search.)
+		if (caseInfo.secHash.caseInfo == null) {
+			caseInfo.secHash.caseInfo = caseInfo;
+		}
+		if (caseInfo.tomHash.caseInfo == null) {
+			caseInfo.tomHash.caseInfo = caseInfo;
+		}
+		if (caseInfo.nodeCache.caseInfo == null) {
+			caseInfo.nodeCache.caseInfo = caseInfo;
+		}
 
 		// This is done in the original CaMML.
 		setTemperature(1.8);
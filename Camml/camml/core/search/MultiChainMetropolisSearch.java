@@ -0,0 +1,363 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Metropolis search running several chains in parallel.
+//
+
+// File: MultiChainMetropolisSearch.java
+
+package camml.core.search;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import cdms.core.*;
+
+import camml.core.library.ConcurrentLongHashtable;
+import camml.core.library.LongHashtable;
+import camml.core.models.ModelLearner;
+import camml.core.newgui.GUIModel;
+
+/**
+ * MultiChainMetropolisSearch runs several independently seeded MetropolisSearch chains in 
+ * parallel threads and combines their samples. <br>
+ * <br>
+ * All chains share a single NodeCache (so a node costed by one chain is available to all 
+ * others) and the same TOM and SEC hash functions (so a SEC has the same hash in every chain).
+ * Each chain has its own CaseInfo, TOMs, secHashtable and random number generator, and samples 
+ * 1/numChains of the TOMs a single MetropolisSearch would. <br>
+ * <br>
+ * The whole search is run during the first call to doEpoch().  AnnealSearch is run once to 
+ * estimate arcProb and find a starting model, then every chain samples with that arcProb (so 
+ * all chains sample the same posterior) starting from a random total ordering of the best DAG
+ * found.  When all chains have finished 
+ * their SEC weights are rescaled to a common reference weight and merged into secHashtable, 
+ * after which getResults() proceeds exactly as in MetropolisSearch.  The total variation 
+ * distance between the SEC posteriors of each pair of chains is kept as a convergence 
+ * diagnostic, large distances suggest searchFactor should be increased.
+ */
+public class MultiChainMetropolisSearch extends MetropolisSearch {
+
+    /** Number of chains to run.  Defaults to the number of available processors. */
+    protected int numChains = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+    
+    /** Chains being run.  null until the search is started. */
+    protected MetropolisSearch[] chain;
+    
+    /** Multiplier used to rescale the weights of each chain to caseInfo.referenceWeight */
+    protected double[] chainMultiplier;
+    
+    /** Total variation distance between the SEC posteriors of each pair of chains. */
+    protected double[][] chainDistance;
+    
+    /** Constructor */
+    public MultiChainMetropolisSearch( java.util.Random rand, Value.Vector data, 
+                                       ModelLearner mlModelLearner, ModelLearner mmlModelLearner ) {
+        super( rand, data, mlModelLearner, mmlModelLearner );
+    }
+    
+    /** 
+     * Options are as for MetropolisSearch with the addition of: <br>
+     *  <b>numChains</b>   -- Number of chains to run in parallel. 
+     */
+    public boolean setOption( final String option, Value v ) {
+        if ( option.equals("numChains") ) {
+            setNumChains( ((Value.Scalar)v).getDiscrete() );
+            System.out.println( "Setting numChains = " + numChains );
+            return true;
+        }
+        return super.setOption( option, v );
+    }
+    
+    /** Set the number of chains to run.  Must be called before the search is started. */
+    public void setNumChains( int numChains ) {
+        if ( chain != null ) { 
+            throw new RuntimeException("numChains cannot be changed once search has started."); 
+        }
+        if ( numChains < 1 ) { throw new RuntimeException("numChains must be >= 1"); }
+        this.numChains = numChains;
+    }
+    
+    /** Accessor function */
+    public int getNumChains() { return numChains; }
+    
+    /** Return the chains run, or null if the search has not been run. */
+    public MetropolisSearch[] getChains() { return chain; }
+    
+    /** 
+     * The combined table is shared by all chains' results, so may be read from several 
+     * threads.  Each chain keeps an unsynchronised table of its own.
+     */
+    protected LongHashtable<SEC> makeSECHashtable() {
+        return new ConcurrentLongHashtable<SEC>();
+    }
+    
+    /** Reset the search.  New chains are created when the search is next run. */
+    public void reset() {
+        super.reset();
+        chain = null;
+        chainMultiplier = null;
+        chainDistance = null;
+        results = null;
+    }
+    
+    /** Run AnnealSearch, then run all chains to completion and merge their results. */
+    public double doEpoch() {
+        if ( chain == null ) {
+            initSchedule();
+            if ( doAnnealOnFirstEpoch ) {
+                runAnnealSearch();
+                if ( caseInfo.regression ) { bestTOM.clean(); }
+            }
+            adaptProposalMix();
+            
+            runChains();
+            mergeChains();
+            
+            if ( GUIModel.searchLatent == false ) {
+                System.out.println( "Sampled " + max + " TOMs using " + numChains + " chains." );
+            }
+        }
+        epoch ++;
+        searchDone = true;
+        return bestCost;
+    }
+    
+    /** Proportion of sampling completed, averaged over all chains. */
+    public double getPercentage() {
+        if ( chain == null ) { return searchDone ? 1.0 : 0.0; }
+        double total = 0;
+        for ( int i = 0; i < chain.length; i++ ) { 
+            if ( chain[i] != null ) { total += chain[i].getPercentage(); }
+        }
+        return total / chain.length;
+    }
+    
+    /** 
+     * Create a chain with its own CaseInfo and TOMCoster, but sharing data, NodeCache, hash
+     * functions and search options with this search.  The chain samples with the arcProb found
+     * by AnnealSearch and the proposal mix tuned by adaptProposalMix, starting from bestTOM 
+     * with its total ordering randomised by chainRand.
+     */
+    protected MetropolisSearch makeChain( java.util.Random chainRand ) {
+        CaseInfo info = caseInfo.copyForThread( tomCoster );
+        info.updateArcWeights = true;
+        
+        MetropolisSearch m = new MetropolisSearch( chainRand, info );
+        m.setTemperature( temperature );
+        m.fixedTemperature = fixedTemperature;
+        m.setArcProb( arcProb );
+        m.fixedArcProb = true;
+        m.doAnnealOnFirstEpoch = false;
+        m.proposalMix = proposalMix;
+        m.max = Math.max( 1, max / numChains );
+        m.nominalMax = m.max;
+        m.deadline = deadline;
+        m.printProgress = false;
+        m.tom.setStructure( bestTOM );
+        m.tom.buildOrder( chainRand );
+        info.tomCoster.repairTOM( m.tom );
+        m.bestTOM.setStructure( bestTOM );
+        m.recalculateCosts();
+        m.caseInfo.referenceWeight = caseInfo.referenceWeight;
+        
+        return m;
+    }
+    
+    /** Create all chains and run each to completion in its own thread. */
+    protected void runChains() {
+        chain = new MetropolisSearch[numChains];
+        for ( int i = 0; i < chain.length; i++ ) {
+            chain[i] = makeChain( makeThreadRandom() );
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool( numChains, new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "MetropolisChain" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        
+        try {
+            Future<?>[] future = new Future<?>[numChains];
+            for ( int i = 0; i < numChains; i++ ) {
+                final MetropolisSearch c = chain[i];
+                future[i] = executor.submit( new Callable<Object>() { public Object call() {
+                    while ( !c.isFinished() ) { c.doEpoch(); }
+                    return null;
+                } } );
+            }
+            
+            for ( int i = 0; i < numChains; i++ ) {
+                try { future[i].get(); }
+                catch ( InterruptedException e ) { 
+                    throw new RuntimeException( "Interrupted while waiting for chain " + i, e ); 
+                }
+                catch ( ExecutionException e ) { 
+                    throw new RuntimeException( "Exception in chain " + i, e.getCause() ); 
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    /** 
+     * Combine SECs from all chains into secHashtable.  Weights are rescaled so all chains use
+     * the lowest reference weight of any chain, as if all TOMs were sampled by a single chain.
+     */
+    protected void mergeChains() {
+        // Start from the best TOM found by any chain.
+        int best = 0;
+        for ( int i = 1; i < chain.length; i++ ) {
+            if ( chain[i].bestCost < chain[best].bestCost ) { best = i; }
+        }
+        bestTOM.setStructure( chain[best].bestTOM );
+        tom.setStructure( bestTOM );
+        bestCost = chain[best].bestCost;
+        
+        double referenceWeight = Double.POSITIVE_INFINITY;
+        for ( int i = 0; i < chain.length; i++ ) {
+            if ( chain[i].caseInfo.referenceWeight < referenceWeight ) {
+                referenceWeight = chain[i].caseInfo.referenceWeight;
+            }
+        }
+        caseInfo.referenceWeight = referenceWeight;
+        caseInfo.totalWeight = 0;
+        weightIgnored = 0;
+        secHashtable.clear();
+        max = 0;
+        
+        chainMultiplier = new double[chain.length];
+        for ( int i = 0; i < chain.length; i++ ) {
+            MetropolisSearch m = chain[i];
+            chainMultiplier[i] = Math.exp( (referenceWeight - m.caseInfo.referenceWeight) * 
+                                           (1.0 - 1.0 / m.temperature) );
+            
+            long[] keys = m.secHashtable.keys();
+            for ( int j = 0; j < keys.length; j++ ) {
+                SEC chainSEC = m.secHashtable.get( keys[j] );
+                SEC sec = secHashtable.get( keys[j] );
+                if ( sec == null ) {
+                    sec = new SEC( chainSEC, caseInfo );
+                    secHashtable.put( keys[j], sec );
+                }
+                sec.merge( chainSEC, chainMultiplier[i] );
+            }
+            
+            caseInfo.totalWeight += m.caseInfo.totalWeight * chainMultiplier[i];
+            weightIgnored += m.weightIgnored * chainMultiplier[i];
+            max += m.max;
+        }
+        
+        chainDistance = makeChainDistances();
+    }
+    
+    /** 
+     * Return the total variation distance between the SEC posteriors of each pair of chains. 
+     * Weight ignored by a chain is treated as an extra SEC.
+     */
+    protected double[][] makeChainDistances() {
+        long[] keys = secHashtable.keys();
+        double[][] posterior = new double[chain.length][keys.length + 1];
+        for ( int i = 0; i < chain.length; i++ ) {
+            double totalWeight = chain[i].caseInfo.totalWeight;
+            for ( int j = 0; j < keys.length; j++ ) {
+                SEC sec = chain[i].secHashtable.get( keys[j] );
+                if ( sec != null ) { posterior[i][j] = sec.weight / totalWeight; }
+            }
+            posterior[i][keys.length] = chain[i].weightIgnored / totalWeight;
+        }
+        
+        double[][] distance = new double[chain.length][chain.length];
+        for ( int i = 0; i < chain.length; i++ ) {
+            for ( int j = 0; j < i; j++ ) {
+                double d = 0;
+                for ( int k = 0; k < posterior[i].length; k++ ) {
+                    d += Math.abs( posterior[i][k] - posterior[j][k] );
+                }
+                distance[i][j] = distance[j][i] = d / 2;
+            }
+        }
+        return distance;
+    }
+    
+    /** 
+     * Return the total variation distance between the SEC posteriors of each pair of chains,
+     * or null if the search has not been run.
+     */
+    public double[][] getChainDistances() { return chainDistance; }
+    
+    /** 
+     * Return the largest total variation distance between the SEC posteriors of two chains.
+     * 0 means all chains agree exactly, 1 means no two chains sampled the same SECs.
+     */
+    public double getMaxChainDistance() {
+        if ( chainDistance == null ) { throw new RuntimeException("Search has not been run."); }
+        double maxDistance = 0;
+        for ( int i = 0; i < chainDistance.length; i++ ) {
+            for ( int j = 0; j < i; j++ ) {
+                if ( chainDistance[i][j] > maxDistance ) { maxDistance = chainDistance[i][j]; }
+            }
+        }
+        return maxDistance;
+    }
+    
+    /** As for MetropolisSearch.getResults(), also prints between chain agreement. */
+    public Value.Vector getResults() {
+        if ( results == null && chainDistance != null && GUIModel.searchLatent == false ) {
+            System.out.println( "Maximum SEC posterior distance between chains : " + 
+                                caseInfo.posteriorFormat.format( getMaxChainDistance() ) );
+        }
+        return super.getResults();
+    }
+    
+    /** Arc portions of each chain, weighted by the total weight of each chain. */
+    public double[][] getArcPortions() {
+        if ( chain == null ) { return super.getArcPortions(); }
+        double[][] arcPortions = new double[numNodes][numNodes];
+        for ( int c = 0; c < chain.length; c++ ) {
+            double[][] chainPortions = chain[c].getArcPortions();
+            double w = chain[c].caseInfo.totalWeight * chainMultiplier[c] / caseInfo.totalWeight;
+            for ( int i = 0; i < numNodes; i++ ) {
+                for ( int j = 0; j < numNodes; j++ ) {
+                    arcPortions[i][j] += chainPortions[i][j] * w;
+                }
+            }
+        }
+        return arcPortions;
+    }
+}
@@ -42,6 +42,7 @@ import java.io.Serializable;
 
 import cdms.core.*;
 import camml.core.models.ModelLearner;
+import camml.core.models.cpt.CPTLearner;
 
 /**
  *  NodeCache contains numerous lazy functors dealing with caching the cost of a Node. <br>
@@ -128,6 +129,9 @@ public class NodeCache implements Serializable
     /** Keep track of cache statistics */
     public int totalInfiniteCostings = 0;
     
+    /** Number of nodes costed by prefetchMMLCost() */
+    public long prefetched = 0;
+    
     ////////////////////////
     // Accessor functions //
     ////////////////////////
@@ -242,6 +246,7 @@ public class NodeCache implements Serializable
             System.out.println( "outOfRange =     " + outOfRange );
             System.out.println( "infiniteLearnings = " + totalInfiniteLearnings );
             System.out.println( "infiniteCostings  = " + totalInfiniteCostings );
+            System.out.println( "prefetched =     " + prefetched );
             System.out.println();
             System.out.println( "#parents\tLearn\tCosting" );
             for ( int i = 0; i < learnings.length; i++ ) {
@@ -269,10 +274,8 @@ public class NodeCache implements Serializable
         newHash ++;
     }
     
-    /** Generate an index into the cache */
-    protected int getIndex( Node node ) {
-        getIndexCalled ++;
-        
+    /** Return a 63 bit hash of node's parent[]->child combination. */
+    protected long getNodeHash( Node node ) {
         // if not allocated, create parentHash and childHash
         if ( parentHashArray == null ) {
             java.util.Random rand = new java.util.Random(123);
@@ -293,6 +296,30 @@ public class NodeCache implements Serializable
         }
         // we use a 63 bit value so nodeHash is always positive.
         nodeHash &= 0x7FFFFFFFFFFFFFFFl;
+        return nodeHash;
+    }
+    
+    /** 
+     * Return the index of node's entry, or the first empty entry node could be stored in, 
+     * or -1 if neither is found.  Unlike getIndex, this does not alter the cache or its 
+     * statistics.
+     */
+    protected int findIndex( long nodeHash ) {
+        int nodeIndex = (int)(nodeHash % cacheSize);
+        for ( int i = 0; i < maxCacheAttempts; i++ ) {
+            nodeIndex = (nodeIndex + i) % cacheSize;
+            if ( hashLookup[nodeIndex] == nodeHash || hashLookup[nodeIndex] == -1 ) {
+                return nodeIndex;
+            }
+        }
+        return -1;
+    }
+    
+    /** Generate an index into the cache */
+    protected int getIndex( Node node ) {
+        getIndexCalled ++;
+        
+        long nodeHash = getNodeHash( node );
         
         // Using nodeHash create an index into arrays.
         int nodeIndex = (int)(nodeHash % cacheSize);
@@ -331,40 +358,128 @@ public class NodeCache implements Serializable
         return nodeIndex;
     }
     
-    /** Return unclean ML costs from default dataset */
+    /** 
+     * Return unclean ML costs from default dataset <br>
+     * 
+     * The cache may be shared by several searches running in different threads.  Lookups
+     * and stores are made while holding the lock on this NodeCache, but the (slow) costing
+     * of a node is done without it (see {@link #costNode}).  A cost is only stored if its 
+     * entry has not been given to another node in the meantime.
+     */
     public double getMLCost( Node node )       
     {
-        int hash = getIndex(node);
-        if ( mlCost[hash] == -1 ) {
-            mlCost[hash] = node.cost( mlLearner, data ); 
+        int index;
+        long hash;
+        double cost;
+        synchronized ( this ) {
+            index = getIndex(node);
+            hash = hashLookup[index];
+            cost = mlCost[index];
+        }
+        
+        if ( cost == -1 ) {
+            cost = costNode( node, mlLearner ); 
+            synchronized ( this ) {
+                if ( hashLookup[index] == hash ) { mlCost[index] = cost; }
+            }
         }
-        return mlCost[hash];
+        return cost;
     }
     
     /** Return unclean MML costs from default dataset */
     public double getMMLCost( Node node )      
     { 
-        int index = getIndex(node);
+        int index;
+        long hash;
+        double cost;
+        synchronized ( this ) {
+            index = getIndex(node);
+            hash = hashLookup[index];
+            cost = mmlCost[index];
+            if ( cost != -1 ) {
+                countCosting( node, cost );
+                return cost;
+            }
+        }
         
-        if ( mmlCost[index] == -1 ) {
-            mmlCost[index] = node.cost( mmlLearner, data ); 
+        cost = costNode( node, mmlLearner ); 
+        synchronized ( this ) {
+            if ( hashLookup[index] == hash ) { mmlCost[index] = cost; }
             
             learnings[ node.parent.length ] ++;
             totalLearnings ++;
             
-            if ( Double.isInfinite( mmlCost[index] ) ) {
+            if ( Double.isInfinite( cost ) ) {
                 totalInfiniteLearnings ++;
             }
+            countCosting( node, cost );
+        }
+        
+        return cost;
+    }
+    
+    /** 
+     * Calculate and store the MML cost of node unless it is already cached, returning true if
+     * node was costed.  This is used to cost nodes in the background before a search needs
+     * them (see {@link NodePrefetcher}), so lookups made here are not included in the cache 
+     * statistics, and node is only stored if there is an empty entry for it.  A prefetched
+     * (and possibly never used) node never evicts an entry a search has already costed.
+     */
+    public boolean prefetchMMLCost( Node node )
+    {
+        long hash;
+        synchronized ( this ) {
+            hash = getNodeHash( node );
+            int index = findIndex( hash );
+            if ( index == -1 || mmlCost[index] != -1 ) { return false; }
         }
         
+        double cost = costNode( node, mmlLearner ); 
+        synchronized ( this ) {
+            // Only store cost in node's own entry or an empty one, never evicting another node.
+            int index = findIndex( hash );
+            if ( index != -1 && mmlCost[index] == -1 ) {
+                if ( hashLookup[index] == -1 ) {
+                    hashLookup[index] = hash;
+                    numCacheEntries ++;
+                }
+                mmlCost[index] = cost;
+            }
+            prefetched ++;
+        }
+        return true;
+    }
+    
+    /**
+     * Return true if learner is known to be safe to use from several threads at once.  
+     * Only count based CPTLearners are, as their leaf learners cost each parent combination
+     * using TallyCoster.tallyCost without keeping any state between calls.
+     */
+    public static boolean isThreadSafe( ModelLearner learner )
+    {
+        return learner instanceof CPTLearner && ((CPTLearner)learner).isCountBased();
+    }
+    
+    /** 
+     * Cost node using learner.  Learners which are not known to be thread safe are only 
+     * used by one thread at a time, so searches sharing this cache (and the learner) 
+     * cost nodes one after another.
+     */
+    protected double costNode( Node node, ModelLearner learner )
+    {
+        if ( isThreadSafe( learner ) ) { return node.cost( learner, data ); }
+        synchronized ( learner ) { return node.cost( learner, data ); }
+    }
+    
+    /** Update costing statistics.  Must be called while holding the lock on this NodeCache. */
+    private void countCosting( Node node, double cost )
+    {
         costings[ node.parent.length ]++;
         totalCostings ++;
         
-        if ( Double.isInfinite( mmlCost[index] ) ) {
+        if ( Double.isInfinite( cost ) ) {
             totalInfiniteCostings ++;
         }
-        
-        return mmlCost[index];
     }
         
     /** return cost using a given modelLearner on data. */
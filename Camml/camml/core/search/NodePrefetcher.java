@@ -0,0 +1,207 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Background costing of the neighbour families of a TOM.
+//
+
+// File: NodePrefetcher.java
+
+package camml.core.search;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NodePrefetcher costs families a search is likely to need soon into a NodeCache using 
+ * background threads. <br>
+ * <br>
+ * Once a chain reaches a high posterior region most proposals are single arc changes of the 
+ * current TOM.  Each time {@link #prefetch(TOM)} is called the families produced by adding or 
+ * removing each arc consistent with the total ordering are queued for MML costing, so the 
+ * search thread finds them in the cache instead of stalling to cost them. <br>
+ * <br>
+ * Each call to prefetch() makes the work queued for earlier TOMs stale.  Stale work is 
+ * abandoned when a thread reaches it, and the queue is bounded with the oldest work dropped 
+ * when it is full.  Prefetching only changes which costs are cached, never their values, so
+ * search results are unaffected.
+ */
+public class NodePrefetcher {
+    
+    /** Cache families are costed into. */
+    protected final NodeCache nodeCache;
+    
+    /** Threads used to cost families. */
+    protected final ThreadPoolExecutor executor;
+    
+    /** Number of tasks each TOM is split into. */
+    protected final int numTasks;
+    
+    /** Incremented by each call to prefetch().  Work queued for an older value is stale. */
+    protected final AtomicLong generation = new AtomicLong();
+    
+    /** Number of TOMs submitted. */
+    protected long numSubmitted = 0;
+    
+    /** Number of families costed. */
+    protected final AtomicLong numCosted = new AtomicLong();
+    
+    /** Number of tasks abandoned as stale. */
+    protected final AtomicLong numStale = new AtomicLong();
+    
+    /** Number of tasks dropped from a full queue. */
+    protected final AtomicLong numDropped = new AtomicLong();
+    
+    /** 
+     * Create a NodePrefetcher costing families into nodeCache using numThreads threads with at
+     * most queueSize tasks waiting.
+     */
+    public NodePrefetcher( NodeCache nodeCache, int numThreads, int queueSize ) {
+        if ( numThreads < 1 ) { throw new RuntimeException("numThreads must be >= 1"); }
+        if ( queueSize < 1 ) { throw new RuntimeException("queueSize must be >= 1"); }
+        this.nodeCache = nodeCache;
+        this.numTasks = numThreads;
+        
+        // Replace the oldest queued task when full, as it is the most likely to be stale.
+        RejectedExecutionHandler dropOldest = new RejectedExecutionHandler() {
+                public void rejectedExecution( Runnable r, ThreadPoolExecutor e ) {
+                    if ( e.isShutdown() ) { return; }
+                    if ( e.getQueue().poll() != null ) { numDropped.incrementAndGet(); }
+                    if ( !e.getQueue().offer( r ) ) { numDropped.incrementAndGet(); }
+                }
+            };
+        
+        // Prefetching should not compete with the search thread for a processor.
+        ThreadFactory threadFactory = new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "NodePrefetcher" );
+                    t.setDaemon( true );
+                    t.setPriority( Thread.MIN_PRIORITY );
+                    return t;
+                }
+            };
+        
+        executor = new ThreadPoolExecutor( numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<Runnable>( queueSize ),
+                                           threadFactory, dropOldest );
+    }
+    
+    /** 
+     * Queue costing of the families reachable from tom by a single arc change.  The structure of
+     * tom is copied so it may be modified as soon as prefetch() returns.
+     */
+    public void prefetch( TOM tom ) {
+        int n = tom.getNumNodes();
+        Node[] node = new Node[n];
+        int[] pos = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            node[i] = (Node)tom.getNode(i).clone();
+            pos[i] = tom.getNodePos(i);
+        }
+        
+        long gen = generation.incrementAndGet();
+        numSubmitted++;
+        for ( int i = 0; i < numTasks; i++ ) {
+            executor.execute( new Task( gen, node, pos, tom.getMaxNumParents(), i ) );
+        }
+    }
+    
+    /** Costs the neighbour families of every numTasks'th node of a TOM. */
+    protected class Task implements Runnable {
+        /** Generation this task was created in. */
+        final long gen;
+        
+        /** Copy of each node of the TOM. */
+        final Node[] node;
+        
+        /** pos[i] = position of node i in the total ordering. */
+        final int[] pos;
+        
+        /** Maximum number of parents allowed. */
+        final int maxNumParents;
+        
+        /** First child costed by this task. */
+        final int first;
+        
+        Task( long gen, Node[] node, int[] pos, int maxNumParents, int first ) {
+            this.gen = gen;
+            this.node = node;
+            this.pos = pos;
+            this.maxNumParents = maxNumParents;
+            this.first = first;
+        }
+        
+        public void run() {
+            for ( int child = first; child < node.length; child += numTasks ) {
+                int[] parent = node[child].parent;
+                for ( int p = 0; p < node.length; p++ ) {
+                    if ( pos[p] >= pos[child] ) { continue; }
+                    if ( generation.get() != gen ) { numStale.incrementAndGet(); return; }
+                    
+                    Node family = (Node)node[child].clone();
+                    if ( contains( parent, p ) ) { family.removeParent( p ); }
+                    else if ( parent.length < maxNumParents ) { family.addParent( p ); }
+                    else { continue; }
+                    
+                    if ( nodeCache.prefetchMMLCost( family ) ) { numCosted.incrementAndGet(); }
+                }
+            }
+        }
+    }
+    
+    /** Is x in a? */
+    private static boolean contains( int[] a, int x ) {
+        for ( int i = 0; i < a.length; i++ ) {
+            if ( a[i] == x ) { return true; }
+        }
+        return false;
+    }
+    
+    /** Number of TOMs submitted by prefetch() */
+    public long getNumSubmitted() { return numSubmitted; }
+    
+    /** Number of families costed. */
+    public long getNumCosted() { return numCosted.get(); }
+    
+    /** Number of tasks abandoned because a newer TOM had been submitted. */
+    public long getNumStale() { return numStale.get(); }
+    
+    /** Number of tasks dropped because the queue was full. */
+    public long getNumDropped() { return numDropped.get(); }
+    
+    /** Stop the threads used.  Queued work becomes stale so is abandoned. */
+    public void shutdown() {
+        generation.incrementAndGet();
+        executor.shutdown();
+    }
+}
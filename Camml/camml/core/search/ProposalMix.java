@@ -0,0 +1,243 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Mixture of TOM transformations used by AnnealSearch and MetropolisSearch.
+//
+
+// File: ProposalMix.java
+
+package camml.core.search;
+
+/**
+ * Probabilities with which AnnealSearch and MetropolisSearch attempt each class of 
+ * TOMTransformation, along with acceptance statistics for each class. <br>
+ * 
+ * The default mix (1/6 parentSwap, 1/6 doubleSkeletal, 1/3 skeletal, 1/3 temporal) makes the
+ * same comparisons against the random number as the original hard coded mix, so results are
+ * unchanged when no tuning is done. <br>
+ * 
+ * A tuned mix is created by {@link #tune()} from statistics gathered during a discarded 
+ * adaptation segment run by MetropolisSearch at its sampling temperature.  As each
+ * transformation satisfies detailed balance individually, any fixed mix with every probability
+ * above zero also does.  The mix must therefore not change once sampling has started, and
+ * every probability is limited to [MIN_FACTOR,MAX_FACTOR] times its default so all 
+ * transformations remain possible.
+ */
+public class ProposalMix
+{
+    /** Indices of each class of transformation. */
+    public static final int PARENT_SWAP = 0, DOUBLE_SKELETAL = 1, SKELETAL = 2, TEMPORAL = 3;
+    
+    /** Number of classes of transformation. */
+    public static final int NUM_TYPES = 4;
+    
+    /** Names of each class of transformation. */
+    public static final String[] typeName = 
+        new String[] { "parentSwap", "doubleSkeletal", "skeletal", "temporal" };
+    
+    /** Default probability of each class of transformation. */
+    public static final double[] defaultProb = new double[] { 1/6.0, 1/6.0, 1/3.0, 1/3.0 };
+    
+    /** Smallest multiple of its default probability a tuned probability may take. */
+    public static final double MIN_FACTOR = 0.5;
+    
+    /** Largest multiple of its default probability a tuned probability may take. */
+    public static final double MAX_FACTOR = 2.0;
+    
+    /** Fewer proposals than this are ignored by tune() */
+    public static final long MIN_PROPOSALS = 1000;
+    
+    /** threshold[i] = cumulative probability of transformations 0..i */
+    protected final double[] threshold;
+    
+    /** Number of times each class of transformation was proposed. */
+    protected final long[] proposed = new long[NUM_TYPES];
+    
+    /** Number of times each class of transformation was accepted. */
+    protected final long[] accepted = new long[NUM_TYPES];
+    
+    /** Total cost reduction from accepted transformations of each class. */
+    protected final double[] improvement = new double[NUM_TYPES];
+    
+    /** Total absolute cost change from accepted transformations of each class. */
+    protected final double[] change = new double[NUM_TYPES];
+    
+    /** Create the default mix. */
+    public ProposalMix() {
+        threshold = new double[] { 0.16667, 0.33333, 0.66667 };
+    }
+    
+    /** Create a mix with probability prob[i] of choosing transformation i. */
+    public ProposalMix( double[] prob ) {
+        if ( prob.length != NUM_TYPES ) { 
+            throw new RuntimeException("Expected " + NUM_TYPES + " probabilities"); 
+        }
+        double total = 0;
+        for ( int i = 0; i < prob.length; i++ ) {
+            if ( !(prob[i] > 0) ) { throw new RuntimeException("Probabilities must be > 0"); }
+            total += prob[i];
+        }
+        threshold = new double[NUM_TYPES-1];
+        double sum = 0;
+        for ( int i = 0; i < threshold.length; i++ ) {
+            sum += prob[i];
+            threshold[i] = sum / total;
+        }
+    }
+    
+    /** Return the class of transformation to attempt given a uniform random number rnd. */
+    public int choose( double rnd ) {
+        if ( rnd < threshold[0] ) { return PARENT_SWAP; }
+        else if ( rnd < threshold[1] ) { return DOUBLE_SKELETAL; }
+        else if ( rnd < threshold[2] ) { return SKELETAL; }
+        else { return TEMPORAL; }
+    }
+    
+    /** Return the probability of choosing transformation i */
+    public double getProb( int i ) {
+        double lower = (i == 0) ? 0 : threshold[i-1];
+        double upper = (i == NUM_TYPES-1) ? 1 : threshold[i];
+        return upper - lower;
+    }
+    
+    /** Record an attempt at transformation i reducing the cost by improvement if accepted. */
+    public void record( int i, boolean wasAccepted, double improvement ) {
+        proposed[i]++;
+        if ( wasAccepted ) {
+            accepted[i]++;
+            this.improvement[i] += improvement;
+            change[i] += Math.abs(improvement);
+        }
+    }
+    
+    /** Number of times transformation i was proposed. */
+    public long getProposed( int i ) { return proposed[i]; }
+    
+    /** Proportion of proposals of transformation i accepted. */
+    public double getAcceptRate( int i ) { 
+        return proposed[i] == 0 ? 0 : accepted[i] / (double)proposed[i]; 
+    }
+    
+    /** Mean cost reduction of accepted transformations of class i */
+    public double getMeanImprovement( int i ) {
+        return accepted[i] == 0 ? 0 : improvement[i] / accepted[i];
+    }
+    
+    /** Mean absolute cost change of accepted transformations of class i */
+    public double getMeanChange( int i ) {
+        return accepted[i] == 0 ? 0 : change[i] / accepted[i];
+    }
+    
+    /**
+     * Return a new mix with the default probability of each transformation scaled by its
+     * expected cost change per proposal (acceptance rate * mean absolute cost change) relative
+     * to the average.  Each probability is kept within [MIN_FACTOR,MAX_FACTOR] times its default
+     * after normalising (see {@link #normalise}). Proposals which are almost always 
+     * rejected leave the TOM unchanged, while those accepted with little change in cost (such
+     * as reordering unconnected nodes) move little through the posterior.  Signed improvements
+     * are not used as they mostly reflect how far the adaptation segment has moved from the 
+     * best model found. <br>
+     * The default mix is returned if fewer than MIN_PROPOSALS proposals were recorded.
+     */
+    public ProposalMix tune() {
+        long total = 0;
+        for ( int i = 0; i < NUM_TYPES; i++ ) { total += proposed[i]; }
+        if ( total < MIN_PROPOSALS ) { return new ProposalMix(); }
+        
+        // Expected cost change per proposal of each transformation (using a smoothed acceptance
+        // rate), and their average over the default mix.
+        double[] score = new double[NUM_TYPES];
+        double meanScore = 0;
+        for ( int i = 0; i < NUM_TYPES; i++ ) {
+            score[i] = (accepted[i] + 1.0) / (proposed[i] + 2.0) * getMeanChange(i);
+            meanScore += defaultProb[i] * score[i];
+        }
+        if ( !(meanScore > 0) ) { return new ProposalMix(); }
+        
+        double[] prob = new double[NUM_TYPES];
+        for ( int i = 0; i < NUM_TYPES; i++ ) {
+            double factor = score[i] / meanScore;
+            if ( factor < MIN_FACTOR ) { factor = MIN_FACTOR; }
+            if ( factor > MAX_FACTOR ) { factor = MAX_FACTOR; }
+            prob[i] = defaultProb[i] * factor;
+        }
+        return new ProposalMix( normalise(prob) );
+    }
+    
+    /**
+     * Return weights scaled to sum to one with each within [MIN_FACTOR,MAX_FACTOR] times its
+     * default probability.  weight[i] must already be within these bounds.  Normalising may push
+     * a probability outside them, in which case it is fixed at the bound and the remaining 
+     * probability is shared among the others in proportion to their weights.  As the defaults 
+     * sum to one all probabilities can always be kept within bounds.
+     */
+    protected static double[] normalise( double[] weight ) {
+        double[] prob = new double[NUM_TYPES];
+        boolean[] fixed = new boolean[NUM_TYPES];
+        for ( int round = 0; round < NUM_TYPES; round++ ) {
+            double fixedProb = 0, freeWeight = 0;
+            for ( int i = 0; i < NUM_TYPES; i++ ) {
+                if ( fixed[i] ) { fixedProb += prob[i]; } else { freeWeight += weight[i]; }
+            }
+            
+            boolean changed = false;
+            for ( int i = 0; i < NUM_TYPES; i++ ) {
+                if ( fixed[i] ) { continue; }
+                prob[i] = weight[i] * (1 - fixedProb) / freeWeight;
+                if ( prob[i] < defaultProb[i] * MIN_FACTOR ) { 
+                    prob[i] = defaultProb[i] * MIN_FACTOR; 
+                    fixed[i] = changed = true; 
+                }
+                else if ( prob[i] > defaultProb[i] * MAX_FACTOR ) { 
+                    prob[i] = defaultProb[i] * MAX_FACTOR; 
+                    fixed[i] = changed = true; 
+                }
+            }
+            if ( !changed ) { break; }
+        }
+        return prob;
+    }
+    
+    /** Return probability, acceptance rate, mean improvement and change of each transformation. */
+    public String toString() {
+        StringBuffer s = new StringBuffer();
+        java.text.DecimalFormat f = new java.text.DecimalFormat("0.000");
+        for ( int i = 0; i < NUM_TYPES; i++ ) {
+            if ( i != 0 ) { s.append( "  " ); }
+            s.append( typeName[i] + " = " + f.format(getProb(i)) );
+            if ( proposed[i] != 0 ) {
+                s.append( " (accept " + f.format(getAcceptRate(i)) + 
+                          ", improvement " + f.format(getMeanImprovement(i)) + 
+                          ", change " + f.format(getMeanChange(i)) + ")" );
+            }
+        }
+        return s.toString();
+    }
+}
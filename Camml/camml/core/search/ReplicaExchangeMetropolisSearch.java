@@ -0,0 +1,284 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Metropolis search using replica exchange (parallel tempering).
+//
+
+// File: ReplicaExchangeMetropolisSearch.java
+
+package camml.core.search;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import cdms.core.*;
+
+import camml.core.models.ModelLearner;
+import camml.core.newgui.GUIModel;
+
+/**
+ * ReplicaExchangeMetropolisSearch is a MetropolisSearch which also runs a ladder of heated 
+ * replicas and periodically swaps TOMs between them (parallel tempering). <br>
+ * <br>
+ * This search samples at the normal temperature and is the only replica which adds TOMs to 
+ * secHashtable.  Replica k runs at temperature * temperatureRatio^k in its own thread.  Hot 
+ * replicas cross high cost regions easily, and swaps let the TOMs they find reach the cold 
+ * chain, so it is less likely to remain trapped in a single posterior mode. <br>
+ * <br>
+ * Every swapInterval epochs all replicas stop and swaps between neighbouring temperatures 
+ * are attempted.  A swap between replicas with costs Ci, Cj at temperatures Ti, Tj is accepted 
+ * with probability min(1,exp((Ci-Cj)*(1/Ti-1/Tj))), which leaves the distribution sampled by 
+ * each replica unchanged. <br>
+ * <br>
+ * Replicas share the NodeCache.  They are created after the first epoch (which runs 
+ * AnnealSearch) and all use the arcProb it estimates.
+ */
+public class ReplicaExchangeMetropolisSearch extends MetropolisSearch {
+
+    /** Number of replicas, including this (the coldest) one. */
+    protected int numReplicas = 4;
+    
+    /** Ratio between the temperatures of neighbouring replicas. */
+    protected double temperatureRatio = 1.5;
+    
+    /** Number of epochs run between swap attempts. */
+    protected int swapInterval = 100;
+    
+    /** 
+     * Heated replicas.  replica[0] is this search, replica[k] runs at 
+     * temperature * temperatureRatio^k. null until the first epoch has run. 
+     */
+    protected MetropolisSearch[] replica;
+    
+    /** Threads used to run heated replicas. */
+    protected ExecutorService executor;
+    
+    /** swapsAttempted[k] and swapsAccepted[k] count swaps between replica k and k+1 */
+    protected int[] swapsAttempted, swapsAccepted;
+    
+    /** Number of swap rounds performed, used to alternate between odd and even pairs. */
+    protected int swapRounds = 0;
+    
+    /** Constructor */
+    public ReplicaExchangeMetropolisSearch( java.util.Random rand, Value.Vector data, 
+                                            ModelLearner mlModelLearner, 
+                                            ModelLearner mmlModelLearner ) {
+        super( rand, data, mlModelLearner, mmlModelLearner );
+    }
+    
+    /** 
+     * Options are as for MetropolisSearch with the addition of: <br>
+     *  <b>numReplicas</b>      -- Number of replicas, including the unheated one. (default 4) <br>
+     *  <b>temperatureRatio</b> -- Ratio between neighbouring temperatures. (default 1.5) <br>
+     *  <b>swapInterval</b>     -- Epochs between swap attempts. (default 100) <br>
+     */
+    public boolean setOption( final String option, Value v ) {
+        if ( replica != null && 
+             (option.equals("numReplicas") || option.equals("temperatureRatio") || 
+              option.equals("swapInterval")) ) {
+            throw new RuntimeException( option + " cannot be changed once search has started." );
+        }
+        
+        if ( option.equals("numReplicas") ) {
+            numReplicas = ((Value.Scalar)v).getDiscrete();
+            if ( numReplicas < 1 ) { throw new RuntimeException("numReplicas must be >= 1"); }
+            System.out.println( "Setting numReplicas = " + numReplicas );
+        }
+        else if ( option.equals("temperatureRatio") ) {
+            temperatureRatio = ((Value.Scalar)v).getContinuous();
+            if ( temperatureRatio <= 1 ) { throw new RuntimeException("temperatureRatio must be > 1"); }
+            System.out.println( "Setting temperatureRatio = " + temperatureRatio );
+        }
+        else if ( option.equals("swapInterval") ) {
+            swapInterval = ((Value.Scalar)v).getDiscrete();
+            if ( swapInterval < 1 ) { throw new RuntimeException("swapInterval must be >= 1"); }
+            System.out.println( "Setting swapInterval = " + swapInterval );
+        }
+        else {
+            return super.setOption( option, v );
+        }
+        return true;
+    }
+    
+    /** Return all replicas, coldest first.  null until the first epoch has run. */
+    public MetropolisSearch[] getReplicas() { return replica; }
+    
+    /** Return the proportion of swaps accepted between replica k and k+1 */
+    public double[] getSwapAcceptanceRates() {
+        double[] rate = new double[numReplicas - 1];
+        for ( int k = 0; k < rate.length && swapsAttempted != null; k++ ) {
+            if ( swapsAttempted[k] != 0 ) { rate[k] = swapsAccepted[k] / (double)swapsAttempted[k]; }
+        }
+        return rate;
+    }
+    
+    /** Reset the search.  Replicas are recreated after the next first epoch. */
+    public void reset() {
+        shutdownReplicas();
+        replica = null;
+        super.reset();
+    }
+    
+    /** 
+     * The first call runs a normal first epoch then creates the heated replicas.  Each later 
+     * call runs all replicas for swapInterval epochs in parallel then attempts swaps.
+     */
+    public double doEpoch() {
+        if ( epoch == 0 || numReplicas == 1 ) {
+            super.doEpoch();
+            if ( replica == null && numReplicas > 1 ) { startReplicas(); }
+            return currentCost;
+        }
+        
+        // Start heated replicas running in other threads.
+        Future<?>[] future = new Future<?>[numReplicas];
+        for ( int k = 1; k < numReplicas; k++ ) {
+            final MetropolisSearch r = replica[k];
+            future[k] = executor.submit( new Callable<Object>() { public Object call() {
+                for ( int i = 0; i < swapInterval; i++ ) { r.doEpoch(); }
+                return null;
+            } } );
+        }
+        
+        // Run the unheated chain in this thread.
+        for ( int i = 0; i < swapInterval && !searchDone; i++ ) { super.doEpoch(); }
+        
+        for ( int k = 1; k < numReplicas; k++ ) {
+            try { future[k].get(); }
+            catch ( InterruptedException e ) { 
+                throw new RuntimeException( "Interrupted while waiting for replica " + k, e ); 
+            }
+            catch ( ExecutionException e ) { 
+                throw new RuntimeException( "Exception in replica " + k, e.getCause() ); 
+            }
+        }
+        
+        if ( searchDone ) {
+            shutdownReplicas();
+            if ( GUIModel.searchLatent == false ) { printSwapRates(); }
+        }
+        else {
+            attemptSwaps();
+        }
+        
+        return currentCost;
+    }
+    
+    /** Create heated replicas starting from the current TOM, and threads to run them in. */
+    protected void startReplicas() {
+        replica = new MetropolisSearch[numReplicas];
+        replica[0] = this;
+        for ( int k = 1; k < numReplicas; k++ ) {
+            CaseInfo info = caseInfo.copyForThread( tomCoster );
+            info.updateArcWeights = false;
+            // Each replica already runs in its own thread, so must not start thread pools of
+            // its own.  Replicas never anneal.
+            info.speculativeBatch = 0;
+            info.prefetchThreads = 0;
+            info.annealRestarts = 1;
+            
+            MetropolisSearch r = new MetropolisSearch( makeThreadRandom(), info );
+            r.setArcProb( arcProb );
+            r.fixedArcProb = true;
+            r.setTemperature( temperature * Math.pow( temperatureRatio, k ) );
+            r.fixedTemperature = true;
+            r.doAnnealOnFirstEpoch = false;
+            r.samplePosterior = false;
+            r.printProgress = false;
+            r.tom.setStructure( tom );
+            r.bestTOM.setStructure( bestTOM );
+            r.recalculateCosts();
+            r.caseInfo.referenceWeight = caseInfo.referenceWeight;
+            replica[k] = r;
+        }
+        
+        swapsAttempted = new int[numReplicas - 1];
+        swapsAccepted = new int[numReplicas - 1];
+        executor = Executors.newFixedThreadPool( numReplicas - 1, new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "MetropolisReplica" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+    }
+    
+    /** Stop threads used to run replicas. */
+    protected void shutdownReplicas() {
+        if ( executor != null ) { executor.shutdown(); executor = null; }
+    }
+    
+    /** 
+     * Attempt swaps between neighbouring replicas.  Odd and even pairs are tried in alternate 
+     * rounds so each replica is involved in at most one swap per round.
+     */
+    protected void attemptSwaps() {
+        for ( int k = swapRounds % 2; k < numReplicas - 1; k += 2 ) {
+            MetropolisSearch cold = replica[k];
+            MetropolisSearch hot = replica[k+1];
+            double logP = (cold.currentCost - hot.currentCost) * 
+                (1.0 / cold.temperature - 1.0 / hot.temperature);
+            
+            swapsAttempted[k] ++;
+            if ( logP >= 0 || Math.log( rand.nextDouble() ) < logP ) {
+                swapsAccepted[k] ++;
+                swapTOMs( cold, hot );
+            }
+        }
+        swapRounds ++;
+    }
+    
+    /** Exchange the current TOMs of two replicas. */
+    protected void swapTOMs( MetropolisSearch a, MetropolisSearch b ) {
+        TOM temp = (TOM)a.tom.clone();
+        setTOM( a, b.tom );
+        setTOM( b, temp );
+    }
+    
+    /** Set the current TOM of replica r, keeping arc weights up to date. */
+    protected static void setTOM( MetropolisSearch r, TOM newTOM ) {
+        r.setCurrentTOM( newTOM, null );
+    }
+    
+    /** Print proportion of swaps accepted between each pair of replicas. */
+    protected void printSwapRates() {
+        double[] rate = getSwapAcceptanceRates();
+        for ( int k = 0; k < rate.length; k++ ) {
+            System.out.println( "Swap rate T=" + caseInfo.posteriorFormat.format(replica[k].temperature) + 
+                                " <-> T=" + caseInfo.posteriorFormat.format(replica[k+1].temperature) + 
+                                " : " + caseInfo.posteriorFormat.format(rate[k]) );
+        }
+    }
+}
@@ -42,6 +42,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 
+import camml.core.library.LongHashtable;
 import camml.core.models.ModelLearner;
 import cdms.core.Value;
 import cdms.core.VectorFN;
@@ -59,8 +60,27 @@ public class SEC implements Serializable
     /** A vector of CompactTOMs */
     protected final ArrayList<CompactTOM> tomList;
     
-    /** Layout of undirected edges for this SEC */
-    protected final int[][] edgeList2;
+    /** 
+     * Index of tomList by CompactTOM.hash, used to find previously sampled TOMs.  Most SECs 
+     * only ever hold a few TOMs, so the index is only created once tomList holds more than
+     * indexThreshold TOMs.  Until then tomList is searched directly.
+     */
+    protected LongHashtable<CompactTOM> tomIndex;
+    
+    /** Number of TOMs above which tomIndex is created. */
+    protected static final int indexThreshold = 8;
+    
+    /** Arena storing the undirected edges of this SEC and the orderings of its TOMs */
+    protected final TOMArena arena;
+    
+    /** Handle of the undirected edges of this SEC in arena, see getEdges() */
+    protected final long edgeHandle;
+    
+    /** Number of undirected edges in this SEC */
+    protected final int numEdges;
+    
+    /** Number of nodes in each TOM */
+    protected final int numNodes;
     
     /** total weight of all TOMs in this SEC */
     protected double weight = 0;
@@ -96,10 +116,12 @@ public class SEC implements Serializable
     public SEC( TOM cleanTom, double cleanMLCost, CaseInfo caseInfo )
     {
         this.caseInfo = caseInfo;
+        this.arena = caseInfo.tomArena;
         
         // extract undirected edge listfrom TOM
-        edgeList2 = new int[2][cleanTom.getNumEdges()];
-        int numNodes = cleanTom.node.length;
+        int[][] edgeList2 = new int[2][cleanTom.getNumEdges()];
+        numNodes = cleanTom.node.length;
+        numEdges = edgeList2[0].length;
         
         // NOTE: Previous behaviour "double cleaned" TOMs, this may have cause different behaviour.
         //cleanTom.clean();
@@ -113,12 +135,61 @@ public class SEC implements Serializable
                 edgeNum ++;
             }
         }
+        edgeHandle = arena.addEdges( edgeList2, numNodes );
         
         // Create tomList to store all sampled TOMs
         tomList = new java.util.ArrayList<CompactTOM>();
         this.cleanMLCost = cleanMLCost;
     }
     
+    /** 
+     * Create an empty SEC with the same skeleton as sec, but using caseInfo.  merge() is 
+     * normally called to fill in TOMs and weights.
+     */
+    public SEC( SEC sec, CaseInfo caseInfo )
+    {
+        this.caseInfo = caseInfo;
+        this.arena = caseInfo.tomArena;
+        this.numNodes = sec.numNodes;
+        this.numEdges = sec.numEdges;
+        if ( arena == sec.arena ) { edgeHandle = sec.edgeHandle; }
+        else { edgeHandle = arena.addEdges( sec.getEdges(), numNodes ); }
+        this.cleanMLCost = sec.cleanMLCost;
+        tomList = new java.util.ArrayList<CompactTOM>();
+    }
+    
+    /**
+     * Add the TOMs and weights of sec to this SEC.  sec should have been sampled using the 
+     * same TOM and SEC hash functions as this SEC.  All weights from sec are scaled by 
+     * multiplier (as in updateReferenceWeight) before being added, this allows SECs sampled
+     * with different reference weights to be combined.
+     */
+    public void merge( SEC sec, double multiplier )
+    {
+        if ( sec.bestMML < bestMML ) { bestMML = sec.bestMML; }
+        if ( sec.bestUncleanMML < bestUncleanMML ) { bestUncleanMML = sec.bestUncleanMML; }
+        weight += sec.weight * multiplier;
+        
+        for ( int i = 0; i < sec.tomList.size(); i++ ) {
+            CompactTOM otherTOM = sec.tomList.get(i);
+            CompactTOM currentTOM = findTOM( otherTOM.hash );
+            
+            if ( currentTOM == null ) {
+                if ( arena == sec.arena ) { 
+                    currentTOM = new CompactTOM( otherTOM.orderHandle, otherTOM.hash );
+                }
+                else { currentTOM = new CompactTOM( otherTOM.getOrder(), otherTOM.hash ); }
+                currentTOM.bestMML = otherTOM.bestMML;
+                addCompactTOM( currentTOM );
+            }
+            else if ( otherTOM.bestMML < currentTOM.bestMML ) {
+                currentTOM.bestMML = otherTOM.bestMML;
+            }
+            currentTOM.totalWeight += otherTOM.totalWeight * multiplier;
+            currentTOM.numVisits += otherTOM.numVisits;
+        }
+    }
+    
     /**
      * Record a new visit to this SEC, if this TOM hasn't been visited before, it will be added 
      *  to this list tomVector.  Weight is updated to reflect a visit to the appropriate TOM.
@@ -127,8 +198,7 @@ public class SEC implements Serializable
     {
         // hash a clean version of this TOM
         long hash = caseInfo.tomHash.hash( cleanTom, cleanMLCost );
-        int foundAt = -1;
-        CompactTOM currentTOM = null;
+        CompactTOM currentTOM = findTOM( hash );
         
         
         if ( uncleanMML < bestMML ) { bestMML = uncleanMML; }
@@ -152,20 +222,13 @@ public class SEC implements Serializable
             }
         }
         
-        // Check if this TOM has already been sampled
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            if ( ((CompactTOM)tomList.get(i)).hash == hash ) { foundAt = i; break;}
-        }
-        
         // If TOM not already in the list, add it. 
-        if ( foundAt == -1 ) {
-            tomList.add( new CompactTOM( cleanTom, hash ) );
-            foundAt = tomList.size() - 1;
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
+        if ( currentTOM == null ) {
+            currentTOM = new CompactTOM( cleanTom, hash );
             currentTOM.bestMML = uncleanMML;        
+            addCompactTOM( currentTOM );
         }
         else { // if TOM is already in the list, make sure it's best MML is recorded.
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
             if ( currentTOM.bestMML > uncleanMML ) {
                 currentTOM.bestMML = uncleanMML;
             }
@@ -179,17 +242,34 @@ public class SEC implements Serializable
         caseInfo.totalWeight += tomWeight;  //            and total
         
         if ( caseInfo.logging ) {
-            java.text.DecimalFormat format = caseInfo.weightFormat;
-            try {
-                caseInfo.cammlLog.write( "weight = " + format.format(tomWeight) + 
-                                         "\ttomWeight = " + format.format(this.weight) + 
-                                         "\tdiff = " + format.format(diff) +  
-                                         "\ttotalWeight = " + format.format(caseInfo.totalWeight) + "\n");
-                caseInfo.cammlLog.flush();
-            } catch (IOException e) { /* Ignore Exception */ }
+            caseInfo.getLog().logWeight( tomWeight, this.weight, diff, caseInfo.totalWeight );
         }   
     }
     
+    /** Return the previously sampled TOM with the given hash, or null if none exists. */
+    protected CompactTOM findTOM( long hash )
+    {
+        if ( tomIndex != null ) { return tomIndex.get( hash ); }
+        for ( int i = 0; i < tomList.size(); i++ ) {
+            CompactTOM tom = tomList.get(i);
+            if ( tom.hash == hash ) { return tom; }
+        }
+        return null;
+    }
+    
+    /** Add a TOM which has not been sampled before to tomList and tomIndex. */
+    protected void addCompactTOM( CompactTOM tom )
+    {
+        tomList.add( tom );
+        if ( tomIndex != null ) { tomIndex.put( tom.hash, tom ); }
+        else if ( tomList.size() > indexThreshold ) {
+            tomIndex = new LongHashtable<CompactTOM>();
+            for ( int i = 0; i < tomList.size(); i++ ) {
+                tomIndex.put( tomList.get(i).hash, tomList.get(i) );
+            }
+        }
+    }
+    
     /** Update reference weight for SEC and all DAGs within SEC*/
     public void updateReferenceWeight( double multiplier )
     {
@@ -238,7 +318,10 @@ public class SEC implements Serializable
         }
     };
     
-    /** Sort tomList using tomComparator. */
+    /** 
+     * Sort tomList using tomComparator.  TOMs are only looked up by hash during sampling, 
+     * so this need only be called when results are requested.
+     */
     public void sortTOMs()
     {
         final Comparator<CompactTOM> tomComparator;
@@ -256,8 +339,8 @@ public class SEC implements Serializable
         /** Serial ID required to evolve class while maintaining serialisation compatibility. */
         private static final long serialVersionUID = 4061434832572310885L;
 
-        /** total ordering of TOM */
-        protected final int[] order;
+        /** Handle of the total ordering of TOM in arena, see getOrder() */
+        protected final long orderHandle;
         
         /** Number of times TOM has been samples */
         protected int numVisits;
@@ -271,13 +354,29 @@ public class SEC implements Serializable
         /** best MML cost found for this TOM so far (usually it's clean cost) */
         public double bestMML;
         
-        /** Constructor : store totalOrder.clone() and hash */
+        /** Constructor : store totalOrder in arena and hash */
         public CompactTOM( TOM tom, long hash )
         {
-            this.order = (int[])tom.totalOrder.clone();
-            this.hash = hash;        
+            this( tom.totalOrder, hash );
+        }
+        
+        /** Constructor : store order in arena and hash */
+        public CompactTOM( int[] order, long hash )
+        {
+            this.orderHandle = arena.addOrder( order );
+            this.hash = hash;
         }
         
+        /** Constructor : share an order already stored in arena */
+        protected CompactTOM( long orderHandle, long hash )
+        {
+            this.orderHandle = orderHandle;
+            this.hash = hash;
+        }
+        
+        /** Return a new copy of the total ordering of TOM */
+        public int[] getOrder() { return arena.getOrder( orderHandle, numNodes ); }
+        
         /** Accessor function */
         public int getNumVisits() { return numVisits; }
         
@@ -316,10 +415,12 @@ public class SEC implements Serializable
             
             // set total ordering to match CompactTOM
             // This must be done before adding arcs to avoid having too many parents present.
+            int[] order = getOrder();
             for ( int i = 0; i < order.length; i++ ) {
-                tom.swapOrder( tom.nodeAt(i), this.order[i], false);
+                tom.swapOrder( tom.nodeAt(i), order[i], false);
             }
             
+            int[][] edgeList2 = getEdges();
             for ( int i = 0; i < edgeList2[0].length; i++) {
                 tom.addArc(edgeList2[0][i], edgeList2[1][i]);
             }
@@ -338,8 +439,11 @@ public class SEC implements Serializable
     
     /** returns thenumber of arcs in this SEC */
     public int getNumArcs() { 
-        return edgeList2[0].length;
+        return numEdges;
     }
+    
+    /** Return a new copy of the undirected edges {edge[0][i],edge[1][i]} in this SEC */
+    public int[][] getEdges() { return arena.getEdges( edgeHandle, numNodes, numEdges ); }
     /** Accessor function */
     public int getNumTOMs() { return tomList.size(); }
     
@@ -347,7 +451,7 @@ public class SEC implements Serializable
     public TOM getTOM( int i ) { return ((CompactTOM)tomList.get(i)).makeTOM(); }
     
     /** Accessor function */
-    public int[] getTOMOrdering( int i ) { return ((CompactTOM)tomList.get(i)).order; }
+    public int[] getTOMOrdering( int i ) { return ((CompactTOM)tomList.get(i)).getOrder(); }
     
     /** Accessor function */
     public int getNumVisitsToTOM( int i ) { return ((CompactTOM)tomList.get(i)).numVisits; }
@@ -109,21 +109,12 @@ public class SECHash extends ModelHash {
         return matrix[first][second];
     }
     
-    /** hash = (int)(logL*128) + sum_{undirectedArcs}( matrix[i][j] ) */
+    /** 
+     * hash = (int)(logL*128) + sum_{undirectedArcs}( matrix[i][j] ) <br>
+     * The sum is maintained incrementally by tom as arcs are changed. 
+     */
     public long hash(TOM tom, double logL) {
-        long skelHash = 0L;
-        int numNodes = tom.getNumNodes();
-        
-        // The calculateion of tomHash is now performes locally in nodes (the sum is the tomHash)
-        for (int i = 0; i < numNodes; i++) {
-            int[] parent = tom.node[i].parent;
-            for ( int j = 0; j < parent.length; j++) {
-                skelHash += getRandom(parent[j],i);
-            }
-            //skelHash += caseInfo.nodeCache.getUndirectedHash( tom.node[i], tom );
-        }
-
-        return skelHash + (long)(logL * 128);
+        return tom.getArcHash(this) + (long)(logL * 128);
     }
     
 }
@@ -0,0 +1,246 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Asynchronous buffered log of search steps and sample weights.
+//
+
+// File: SearchLog.java
+
+package camml.core.search;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.DecimalFormat;
+
+/**
+ * SearchLog records search steps and sample weights in a ring buffer of primitive values.
+ * A background thread formats records and writes them to a buffered Writer, so logging does
+ * not format strings or flush the log on every step. <br>
+ * 
+ * Records are written either in the text format used by previous versions of CaMML, or as 
+ * CSV lines ("step,epoch,cost,randCalls" and "weight,weight,tomWeight,diff,totalWeight").
+ * If the buffer is full logging blocks until space is available, so no records are lost.
+ * flush() waits until all records logged so far have been written.
+ */
+public class SearchLog
+{
+    /** Record types */
+    protected static final byte STEP = 0, WEIGHT = 1;
+    
+    /** Number of records held by buffer. */
+    public static final int capacity = 1 << 14;
+    
+    /** type[i] = type of record i */
+    protected final byte[] type = new byte[capacity];
+    
+    /** Integer field of record (STEP : step) */
+    protected final long[] step = new long[capacity];
+    
+    /** Integer field of record (STEP : number of random numbers used) */
+    protected final long[] randCalls = new long[capacity];
+    
+    /** Real fields of record (STEP : cost; WEIGHT : weight,tomWeight,diff,totalWeight) */
+    protected final double[][] value = new double[4][capacity];
+    
+    /** Index of next record to write to log. */
+    protected long head = 0;
+    
+    /** Index of next free record. */
+    protected long tail = 0;
+    
+    /** Index of next record to be written to out. */
+    protected long written = 0;
+    
+    /** Destination of log. */
+    protected final Writer out;
+    
+    /** Write records as CSV instead of text. */
+    protected final boolean csv;
+    
+    /** Formats used for text output. Only used by the writer thread. */
+    protected final DecimalFormat costFormat, weightFormat;
+    
+    /** Exception thrown while writing log, or null */
+    protected IOException exception;
+    
+    /** Has close() been called? */
+    protected boolean closed = false;
+    
+    /** Thread which closes the log when the JVM exits. */
+    protected final Thread shutdownHook;
+    
+    /** Create a log which writes text (or CSV) records to out */
+    public SearchLog( Writer out, boolean csv, DecimalFormat costFormat, DecimalFormat weightFormat )
+    {
+        this.out = new java.io.BufferedWriter( out, 1 << 16 );
+        this.csv = csv;
+        this.costFormat = (DecimalFormat)costFormat.clone();
+        this.weightFormat = (DecimalFormat)weightFormat.clone();
+        
+        Thread writer = new Thread( new Runnable() {
+                public void run() { writeRecords(); }
+            }, "SearchLog" );
+        writer.setDaemon( true );
+        writer.start();
+        
+        // Make sure buffered records reach the log before the JVM exits.
+        shutdownHook = new Thread() {
+                public void run() { close(); }
+            };
+        Runtime.getRuntime().addShutdownHook( shutdownHook );
+    }
+    
+    /** Reserve the next record, waiting if the buffer is full. */
+    protected int reserve() {
+        while ( tail - head >= capacity && !closed ) {
+            try { wait(); } 
+            catch ( InterruptedException e ) { throw new RuntimeException(e); }
+        }
+        if ( tail == head ) { notifyAll(); }
+        return (int)(tail % capacity);
+    }
+    
+    /** Log a search step */
+    public synchronized void logStep( long stepNum, double cost, long numRandCalls ) {
+        if ( exception != null ) { throw new RuntimeException( exception ); }
+        if ( closed ) { return; }
+        int i = reserve();
+        type[i] = STEP;
+        step[i] = stepNum;
+        randCalls[i] = numRandCalls;
+        value[0][i] = cost;
+        tail++;
+    }
+    
+    /** Log the weight of a sample */
+    public synchronized void logWeight( double weight, double tomWeight, double diff, 
+                                        double totalWeight ) {
+        if ( closed || exception != null ) { return; }
+        int i = reserve();
+        type[i] = WEIGHT;
+        value[0][i] = weight;
+        value[1][i] = tomWeight;
+        value[2][i] = diff;
+        value[3][i] = totalWeight;
+        tail++;
+    }
+    
+    /** Format record i of the given arrays */
+    protected String format( int i, byte[] type, long[] step, long[] randCalls, double[][] value ) {
+        if ( type[i] == STEP ) {
+            if ( csv ) { return "step," + step[i] + "," + value[0][i] + "," + randCalls[i] + "\n"; }
+            return "STEP : " + step[i] + "\tMMLCost = " + costFormat.format(value[0][i]) + 
+                "\trand: " + randCalls[i] + "\n";
+        }
+        else {
+            if ( csv ) { 
+                return "weight," + value[0][i] + "," + value[1][i] + "," + value[2][i] + "," + 
+                    value[3][i] + "\n";
+            }
+            return "weight = " + weightFormat.format(value[0][i]) + 
+                "\ttomWeight = " + weightFormat.format(value[1][i]) + 
+                "\tdiff = " + weightFormat.format(value[2][i]) +  
+                "\ttotalWeight = " + weightFormat.format(value[3][i]) + "\n";
+        }
+    }
+    
+    /** 
+     * Body of writer thread.  Batches of records are copied out of the buffer while holding
+     * the lock, then formatted and written without it.  out is flushed when no records remain.
+     */
+    protected void writeRecords() {
+        byte[] batchType = new byte[capacity];
+        long[] batchStep = new long[capacity];
+        long[] batchRandCalls = new long[capacity];
+        double[][] batchValue = new double[value.length][capacity];
+        StringBuilder s = new StringBuilder();
+        while ( true ) {
+            int n = 0;
+            long end;
+            synchronized ( this ) {
+                while ( head == tail && !closed ) {
+                    try { wait(); } catch ( InterruptedException e ) { return; }
+                }
+                if ( head == tail ) { return; }
+                end = tail;
+                for ( long r = head; r < end; r++, n++ ) {
+                    int i = (int)(r % capacity);
+                    batchType[n] = type[i];
+                    batchStep[n] = step[i];
+                    batchRandCalls[n] = randCalls[i];
+                    for ( int j = 0; j < value.length; j++ ) { batchValue[j][n] = value[j][i]; }
+                }
+                head = end;
+                notifyAll();
+            }
+            
+            s.setLength( 0 );
+            for ( int i = 0; i < n; i++ ) { 
+                s.append( format( i, batchType, batchStep, batchRandCalls, batchValue ) ); 
+            }
+            
+            try { 
+                out.write( s.toString() );
+                boolean idle;
+                synchronized ( this ) { idle = (head == tail); }
+                if ( idle ) { out.flush(); }
+            }
+            catch ( IOException e ) { 
+                synchronized ( this ) { exception = e; closed = true; notifyAll(); }
+                return;
+            }
+            synchronized ( this ) { written = end; notifyAll(); }
+        }
+    }
+    
+    /** Wait until all records logged so far have been written, then flush the log. */
+    public synchronized void flush() {
+        long end = tail;
+        while ( written < end && exception == null && !closed ) {
+            try { wait(); } 
+            catch ( InterruptedException e ) { throw new RuntimeException(e); }
+        }
+        try { out.flush(); } catch ( IOException e ) { /* reported by writer thread */ }
+    }
+    
+    /** Write all remaining records and close the log. */
+    public void close() {
+        synchronized ( this ) {
+            if ( closed ) { return; }
+            flush();
+            closed = true;
+            notifyAll();
+        }
+        try { out.close(); } catch ( IOException e ) { /* ignore exception */ }
+        try { Runtime.getRuntime().removeShutdownHook( shutdownHook ); }
+        catch ( IllegalStateException e ) { /* JVM is already shutting down */ }
+    }
+}
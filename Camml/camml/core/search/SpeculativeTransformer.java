@@ -0,0 +1,237 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Batched speculative evaluation of TOM transformations.
+//
+
+// File: SpeculativeTransformer.java
+
+package camml.core.search;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import camml.core.library.WallaceRandom;
+
+/**
+ * SpeculativeTransformer draws a batch of proposals from the current TOM of a MetropolisSearch
+ * and evaluates them in parallel. <br>
+ * <br>
+ * Each proposal is attempted on a private copy of the TOM using its own random number 
+ * generator, TOMTransformations and CaseInfo. Node costs are looked up through the shared 
+ * (thread safe) NodeCache, so the expensive costing of new families is done in parallel. <br>
+ * <br>
+ * Proposals are then used one per epoch in the order drawn.  While proposals are rejected the 
+ * chain remains in the state all proposals were drawn from, so each decision is a valid 
+ * Metropolis step.  Once a proposal is accepted the remaining proposals in the batch were drawn 
+ * from a stale state and are discarded. <br>
+ * <br>
+ * The n'th proposal used by the chain always draws its random numbers from stream n split from
+ * a single generator, so a discarded proposal is redrawn from the new state with the same 
+ * stream.  The chain sampled is therefore the same for any batch size.
+ */
+public class SpeculativeTransformer {
+    
+    /** Search whose TOM proposals are drawn from. */
+    protected final MetropolisSearch search;
+    
+    /** Number of proposals evaluated in each batch. */
+    protected final int batchSize;
+    
+    /** State used to evaluate each proposal in a batch. */
+    protected final Proposal[] proposal;
+    
+    /** Threads used to evaluate proposals. */
+    protected ExecutorService executor;
+    
+    /** Index of the next proposal to use.  batchSize when a new batch is required. */
+    protected int next;
+    
+    /** Number of batches evaluated. */
+    protected long numBatches = 0;
+    
+    /** Number of proposals evaluated but discarded after an earlier proposal was accepted. */
+    protected long numDiscarded = 0;
+    
+    /** Generator the random number stream of each proposal is split from. */
+    protected final WallaceRandom stream;
+    
+    /** Number of proposals used.  The next proposal uses stream.split(numUsed). */
+    protected long numUsed = 0;
+    
+    /** A single speculative proposal and the objects used to evaluate it. */
+    protected static class Proposal {
+        /** Random number generator used only by this proposal. */
+        final WallaceRandom rand;
+        
+        /** CaseInfo used by this proposal's transformations. */
+        final CaseInfo caseInfo;
+        
+        /** Copy of the TOM the proposal is applied to. */
+        final TOM tom;
+        
+        final TOMTransformation skeletalChange, temporalChange, doubleSkeletalChange, parentSwapChange;
+        
+        /** Mix of transformations attempted, shared with the search. */
+        final ProposalMix mix;
+        
+        /** Transformation chosen in the last batch. */
+        TOMTransformation transform;
+        
+        /** Was the last transformation accepted? */
+        boolean accepted;
+        
+        Proposal( WallaceRandom rand, CaseInfo info, TOM tom, double arcProb, double temperature,
+                  ProposalMix mix ) {
+            this.rand = rand;
+            this.mix = mix;
+            this.caseInfo = info;
+            this.tom = tom;
+            skeletalChange = new SkeletalChange( rand, arcProb, info, temperature );
+            temporalChange = new TemporalChange( rand, arcProb, info, temperature );
+            doubleSkeletalChange = new DoubleSkeletalChange( rand, arcProb, info, temperature );
+            parentSwapChange = new ParentSwapChange( rand, arcProb, info, temperature );
+        }
+        
+        /** Choose a transformation (with the same mix as MetropolisSearch) and attempt it. */
+        void run( double currentCost ) {
+            double rnd = rand.nextDouble();
+            switch ( mix.choose(rnd) ) {
+            case ProposalMix.PARENT_SWAP : transform = parentSwapChange; break;
+            case ProposalMix.DOUBLE_SKELETAL : transform = doubleSkeletalChange; break;
+            case ProposalMix.SKELETAL : transform = skeletalChange; break;
+            default : transform = temporalChange;
+            }
+            accepted = transform.transform( tom, currentCost );
+        }
+    }
+    
+    /** 
+     * Create a SpeculativeTransformer evaluating batchSize proposals at a time.  The arcProb,
+     * temperature and proposal mix of search must not change after construction.
+     */
+    public SpeculativeTransformer( MetropolisSearch search, int batchSize ) {
+        if ( batchSize < 1 ) { throw new RuntimeException("batchSize must be >= 1"); }
+        this.search = search;
+        this.batchSize = batchSize;
+        this.next = batchSize;
+        
+        stream = search.makeThreadRandom();
+        proposal = new Proposal[batchSize];
+        for ( int i = 0; i < batchSize; i++ ) {
+            // Each proposal needs its own TOMCoster and must not update the search's arc weights.
+            CaseInfo info = search.caseInfo.copyForThread( search.tomCoster );
+            info.updateArcWeights = false;
+            TOM tom = (TOM)search.tom.clone();
+            proposal[i] = new Proposal( new WallaceRandom( new int[2] ), info, tom, 
+                                        search.arcProb, search.temperature, search.proposalMix );
+        }
+        
+        int numThreads = Math.min( batchSize, Runtime.getRuntime().availableProcessors() );
+        executor = Executors.newFixedThreadPool( numThreads, new ThreadFactory() {
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "SpeculativeTransformer" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+    }
+    
+    /** 
+     * Use the next proposal, evaluating a new batch if required.  If the proposal was accepted 
+     * search.tom is updated.  Return true if the TOM changed.
+     */
+    public boolean doTransform() {
+        if ( next == batchSize ) { runBatch(); }
+        Proposal p = proposal[next++];
+        numUsed++;
+        if ( p.accepted ) {
+            numDiscarded += batchSize - next;
+            // setCurrentTOM calls invalidate()
+            search.setCurrentTOM( p.tom, p.transform.getNodesChanged() );
+        }
+        return p.accepted;
+    }
+    
+    /** Discard any remaining proposals. Required whenever search.tom is changed. */
+    public void invalidate() {
+        next = batchSize;
+    }
+    
+    /** Evaluate all proposals from the current state of search. */
+    protected void runBatch() {
+        if ( executor == null ) { throw new RuntimeException("SpeculativeTransformer shut down"); }
+        
+        final double currentCost = search.currentCost;
+        for ( int i = 0; i < batchSize; i++ ) {
+            proposal[i].rand.setSeed( stream.split( numUsed + i ).getSeed() );
+            proposal[i].tom.setStructure( search.tom );
+            proposal[i].caseInfo.safeMode = search.caseInfo.safeMode;
+        }
+        
+        Future<?>[] future = new Future<?>[batchSize];
+        for ( int i = 0; i < batchSize; i++ ) {
+            final Proposal p = proposal[i];
+            future[i] = executor.submit( new Callable<Object>() { public Object call() {
+                p.run( currentCost );
+                return null;
+            } } );
+        }
+        
+        for ( int i = 0; i < batchSize; i++ ) {
+            try { future[i].get(); }
+            catch ( InterruptedException e ) { 
+                throw new RuntimeException( "Interrupted while evaluating proposal " + i, e ); 
+            }
+            catch ( ExecutionException e ) { 
+                throw new RuntimeException( "Exception evaluating proposal " + i, e.getCause() ); 
+            }
+        }
+        
+        next = 0;
+        numBatches++;
+    }
+    
+    /** Return the number of batches evaluated. */
+    public long getNumBatches() { return numBatches; }
+    
+    /** Return the number of proposals discarded after an earlier acceptance in their batch. */
+    public long getNumDiscarded() { return numDiscarded; }
+    
+    /** Stop threads used to evaluate proposals. */
+    public void shutdown() {
+        if ( executor != null ) { executor.shutdown(); executor = null; }
+    }
+}
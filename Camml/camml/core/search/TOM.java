@@ -95,6 +95,24 @@ public class TOM implements Cloneable
     /**  Keep track of how many edges (links) are present in this TOM   */
     protected int numEdges;
     
+    /** 
+     * ModelHashes for which arcHash is maintained.  Once getArcHash() is called for a hash its 
+     * value is kept up to date as arcs are changed, so the hash need not be recalculated. 
+     */
+    private ModelHash[] arcHasher = new ModelHash[2];
+    
+    /** arcHash[i] = sum_{arcs parent->child}( arcHasher[i].getRandom(parent,child) ) */
+    private long[] arcHash = new long[2];
+    
+    /** 
+     * ancestorBits[i].get(j) is true if node j is an ancestor of node i.  Calculated in full
+     * the first time it is needed, then updated for nodes in ancestorsChanged before use.
+     */
+    private BitSet[] ancestorBits;
+    
+    /** Nodes whose parents have changed since ancestorBits was last updated. */
+    private BitSet ancestorsChanged = new BitSet();
+    
     /** standard CDMS way of representing a dataset */
     protected final Value.Vector data;
     
@@ -225,10 +243,12 @@ public class TOM implements Cloneable
                                                       "MaxParents already reached, cannot add another.");
             }
             node[child].addParent(parent);
+            arcChanged( parent, child, true );
         }
         else if ( oldEdge && !arcValue ) {
             numEdges --; 
             node[child].removeParent(parent);
+            arcChanged( parent, child, false );
         }
         else {
             System.out.println("--- Link already present/absent?? ---");
@@ -263,6 +283,40 @@ public class TOM implements Cloneable
         }
     }
     
+    /** Update arcHash after the arc parent->child has been added or removed. */
+    protected void arcChanged( int parent, int child, boolean added ) {
+        if ( ancestorBits != null ) { ancestorsChanged.set(child); }
+        for ( int i = 0; i < arcHasher.length; i++ ) {
+            if ( arcHasher[i] != null ) {
+                long r = arcHasher[i].getRandom(parent,child);
+                if ( added ) { arcHash[i] += r; } else { arcHash[i] -= r; }
+            }
+        }
+    }
+    
+    /** 
+     * Return sum_{arcs parent->child}( hash.getRandom(parent,child) ).  The sum is calculated 
+     * in full the first time a hash is used, then updated as arcs are changed.
+     */
+    public long getArcHash( ModelHash hash ) {
+        for ( int i = 0; i < arcHasher.length; i++ ) {
+            if ( arcHasher[i] == hash ) { return arcHash[i]; }
+        }
+        
+        long sum = 0;
+        for ( int i = 0; i < node.length; i++ ) {
+            int[] parent = node[i].parent;
+            for ( int j = 0; j < parent.length; j++ ) {
+                sum += hash.getRandom(parent[j],i);
+            }
+        }
+        
+        // Replace the older of the two hashes kept.
+        arcHasher[1] = arcHasher[0];  arcHash[1] = arcHash[0];
+        arcHasher[0] = hash;          arcHash[0] = sum;
+        return sum;
+    }
+    
     /** returns true if variable i is before variable j in the total ordering */
     public boolean before( int nodeI, int nodeJ)
     {
@@ -304,10 +358,14 @@ public class TOM implements Cloneable
                     }
                     
                     node[y].addParent(totalOrder[i]); 
+                    arcChanged( y, totalOrder[i], false );
+                    arcChanged( totalOrder[i], y, true );
                 }
                 if ( isArc( totalOrder[i], x) ) { 
                     node[totalOrder[i]].addParent(x); 
                     node[x].removeParent(totalOrder[i]); 
+                    arcChanged( x, totalOrder[i], true );
+                    arcChanged( totalOrder[i], x, false );
                 }
 
             }        
@@ -453,7 +511,35 @@ public class TOM implements Cloneable
     
     /** Calculate an array of BitSets where (x[i].get(j) = true) implies i <= j exists. */ 
     public BitSet[] getAncestorBits(  ) {
-        return getAncestorBits( -1, new BitSet[node.length]);
+        BitSet[] ancestors = getAncestors();
+        BitSet[] bits = new BitSet[ancestors.length];
+        for ( int i = 0; i < bits.length; i++ ) { bits[i] = (BitSet)ancestors[i].clone(); }
+        return bits;
+    }
+    
+    /** 
+     * Return ancestorBits, bringing it up to date first.  When arcs into a set of nodes C 
+     * change, only ancestors of C and nodes previously descended from C can change. 
+     */
+    private BitSet[] getAncestors() {
+        if ( ancestorBits == null ) {
+            ancestorBits = getAncestorBits( -1, new BitSet[node.length] );
+            ancestorsChanged.clear();
+        }
+        else if ( !ancestorsChanged.isEmpty() ) {
+            // Find all nodes whose ancestors may have changed and recalculate them.
+            BitSet[] bits = new BitSet[node.length];
+            boolean anyChanged = false;
+            for ( int i = 0; i < bits.length; i++ ) {
+                if ( ancestorsChanged.get(i) || ancestorBits[i].intersects(ancestorsChanged) ) {
+                    anyChanged = true;
+                }
+                else { bits[i] = ancestorBits[i]; }
+            }
+            if ( anyChanged ) { ancestorBits = getAncestorBits( -1, bits ); }
+            ancestorsChanged.clear();
+        }
+        return ancestorBits;
     }
 
     /** Get bits for given index, if index == -1 get all bits. */
@@ -709,6 +795,13 @@ public class TOM implements Cloneable
         
         tempTOM.numEdges = numEdges;
         
+        tempTOM.arcHasher = arcHasher.clone();
+        tempTOM.arcHash = arcHash.clone();
+        
+        if ( ancestorBits != null ) {
+            tempTOM.ancestorBits = getAncestorBits();
+        }
+        
         
         return tempTOM;
     }
@@ -781,8 +874,7 @@ public class TOM implements Cloneable
         if( !before(ancestorNode,descendantNode) )
             { return false; }
         
-        boolean[] checked = new boolean[node.length];
-        return isAncestor( ancestorNode, descendantNode, checked );
+        return getAncestors()[descendantNode].get(ancestorNode);
     }
     
     /** returns true if 'a' is an ancestor of 'd' */
@@ -809,14 +901,10 @@ public class TOM implements Cloneable
      *  of the other, or they have a common ancestor.*/
     public boolean isCorrelated(int node1, int node2)
     {
-        boolean a1[] = flagAncestors(node1, new boolean[getNumNodes()]);
-        boolean a2[] = flagAncestors(node2, new boolean[getNumNodes()]);
-        a1[node1] = true;
-        a2[node2] = true;
-        for ( int i = 0; i < a1.length; i++) {
-            if (a1[i] && a2[i]) return true;
-        }
-        return false;
+        if (node1 == node2) return true;
+        BitSet[] ancestors = getAncestors();
+        return ancestors[node1].get(node2) || ancestors[node2].get(node1) || 
+            ancestors[node1].intersects(ancestors[node2]);
     }
     
     /** set flagged[i] = true if node[i] is an ancestor of node[n] */
@@ -0,0 +1,221 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+//
+// Byte arena holding compactly encoded TOM orderings and SEC skeletons.
+//
+
+// File: TOMArena.java
+
+package camml.core.search;
+
+/**
+ * TOMArena stores total orderings and undirected edge sets of sampled TOMs as packed bytes in
+ * large shared blocks.  SEC and SEC.CompactTOM keep only a handle into the arena, so each
+ * sampled TOM costs around numNodes bytes instead of an int[] and an object header. <br>
+ * 
+ * Node indices are packed into 1, 2 or 4 bytes depending on the number of nodes.  An edge set
+ * is stored as a bit-packed lower triangular adjacency matrix, or as a list of packed node 
+ * pairs when that is smaller (ie. for sparse networks with many nodes). <br>
+ * 
+ * Data is only appended, never removed.  All methods are synchronized so an arena may be
+ * shared by chains running in parallel.
+ */
+public class TOMArena implements java.io.Serializable
+{
+    /** Serial ID required to evolve class while maintaining serialisation compatibility. */
+    private static final long serialVersionUID = -4207765314592286120L;
+    
+    /** Size of a standard block.  Larger records are given a block of their own. */
+    public static final int blockSize = 1 << 16;
+    
+    /** Blocks of data, only blocks[0..numBlocks-1] are used. */
+    protected byte[][] blocks = new byte[4][];
+    
+    /** Number of blocks used */
+    protected int numBlocks = 0;
+    
+    /** Position of the next free byte in blocks[numBlocks-1] */
+    protected int pos = 0;
+    
+    /** Total bytes allocated to records. */
+    protected long bytesUsed = 0;
+    
+    /** Number of bytes used to store a node index for networks with numNodes nodes. */
+    public static int bytesPerNode( int numNodes ) {
+        if ( numNodes <= 256 ) { return 1; }
+        else if ( numNodes <= 65536 ) { return 2; }
+        else { return 4; }
+    }
+    
+    /** Number of bytes used to store an edge set as a bit-packed adjacency matrix */
+    protected static long matrixBytes( int numNodes ) {
+        return ((long)numNodes * (numNodes - 1) / 2 + 7) / 8;
+    }
+    
+    /** Number of bytes used to store an edge set as a list of node pairs */
+    protected static long pairBytes( int numNodes, int numEdges ) {
+        return 2L * numEdges * bytesPerNode(numNodes);
+    }
+    
+    /** Should an edge set be stored as an adjacency matrix (true) or a list of pairs (false) */
+    protected static boolean useMatrix( int numNodes, int numEdges ) {
+        return matrixBytes(numNodes) <= pairBytes(numNodes,numEdges);
+    }
+    
+    /** Reserve len bytes and return a handle to them. */
+    protected long alloc( int len ) {
+        if ( numBlocks == 0 || pos + len > blocks[numBlocks-1].length ) {
+            if ( numBlocks == blocks.length ) {
+                byte[][] newBlocks = new byte[blocks.length*2][];
+                System.arraycopy( blocks, 0, newBlocks, 0, numBlocks );
+                blocks = newBlocks;
+            }
+            blocks[numBlocks++] = new byte[Math.max(blockSize,len)];
+            pos = 0;
+        }
+        long handle = ((long)(numBlocks-1) << 32) | pos;
+        pos += len;
+        bytesUsed += len;
+        return handle;
+    }
+    
+    /** Write node index x at block[offset] using width bytes. */
+    protected static void putNode( byte[] block, int offset, int x, int width ) {
+        for ( int i = 0; i < width; i++ ) { block[offset+i] = (byte)(x >>> (8*i)); }
+    }
+    
+    /** Read a node index written by putNode */
+    protected static int getNode( byte[] block, int offset, int width ) {
+        int x = 0;
+        for ( int i = 0; i < width; i++ ) { x |= (block[offset+i] & 0xFF) << (8*i); }
+        return x;
+    }
+    
+    /** Store a total ordering and return a handle to it. */
+    public synchronized long addOrder( int[] order ) {
+        int width = bytesPerNode( order.length );
+        long handle = alloc( order.length * width );
+        byte[] block = blocks[(int)(handle >>> 32)];
+        int offset = (int)handle;
+        for ( int i = 0; i < order.length; i++ ) { putNode( block, offset + i*width, order[i], width ); }
+        return handle;
+    }
+    
+    /** Return a new copy of the total ordering of numNodes nodes stored at handle. */
+    public synchronized int[] getOrder( long handle, int numNodes ) {
+        int width = bytesPerNode( numNodes );
+        byte[] block = blocks[(int)(handle >>> 32)];
+        int offset = (int)handle;
+        int[] order = new int[numNodes];
+        for ( int i = 0; i < numNodes; i++ ) { order[i] = getNode( block, offset + i*width, width ); }
+        return order;
+    }
+    
+    /** 
+     * Store the undirected edges {edge[0][i],edge[1][i]} of a network with numNodes nodes and
+     * return a handle to them.
+     */
+    public synchronized long addEdges( int[][] edge, int numNodes ) {
+        int numEdges = edge[0].length;
+        if ( useMatrix(numNodes,numEdges) ) {
+            long len = matrixBytes( numNodes );
+            if ( len > Integer.MAX_VALUE ) { throw new RuntimeException("Too many nodes to store"); }
+            long handle = alloc( (int)len );
+            byte[] block = blocks[(int)(handle >>> 32)];
+            int offset = (int)handle;
+            for ( int i = 0; i < numEdges; i++ ) {
+                long bit = triangleIndex( edge[0][i], edge[1][i] );
+                block[offset + (int)(bit >>> 3)] |= 1 << (bit & 7);
+            }
+            return handle;
+        }
+        else {
+            int width = bytesPerNode( numNodes );
+            long handle = alloc( (int)pairBytes(numNodes,numEdges) );
+            byte[] block = blocks[(int)(handle >>> 32)];
+            int offset = (int)handle;
+            for ( int i = 0; i < numEdges; i++ ) {
+                putNode( block, offset + 2*i*width, edge[0][i], width );
+                putNode( block, offset + (2*i+1)*width, edge[1][i], width );
+            }
+            return handle;
+        }
+    }
+    
+    /** 
+     * Return the numEdges edges stored at handle as {edge[0][i],edge[1][i]}.  When stored as
+     * an adjacency matrix edge[0][i] > edge[1][i] and edges are sorted, otherwise edges are
+     * returned as they were added.
+     */
+    public synchronized int[][] getEdges( long handle, int numNodes, int numEdges ) {
+        byte[] block = blocks[(int)(handle >>> 32)];
+        int offset = (int)handle;
+        int[][] edge = new int[2][numEdges];
+        if ( useMatrix(numNodes,numEdges) ) {
+            int e = 0;
+            long bit = 0;
+            for ( int i = 1; i < numNodes && e < numEdges; i++ ) {
+                for ( int j = 0; j < i; j++, bit++ ) {
+                    if ( (block[offset + (int)(bit >>> 3)] & (1 << (bit & 7))) != 0 ) {
+                        edge[0][e] = i;
+                        edge[1][e] = j;
+                        e++;
+                    }
+                }
+            }
+            if ( e != numEdges ) { throw new RuntimeException("Edge set corrupted."); }
+        }
+        else {
+            int width = bytesPerNode( numNodes );
+            for ( int i = 0; i < numEdges; i++ ) {
+                edge[0][i] = getNode( block, offset + 2*i*width, width );
+                edge[1][i] = getNode( block, offset + (2*i+1)*width, width );
+            }
+        }
+        return edge;
+    }
+    
+    /** Position of the undirected edge {x,y} in a lower triangular matrix. */
+    protected static long triangleIndex( int x, int y ) {
+        if ( x < y ) { int temp = x; x = y; y = temp; }
+        return (long)x * (x - 1) / 2 + y;
+    }
+    
+    /** Total bytes used by stored records. */
+    public synchronized long getBytesUsed() { return bytesUsed; }
+    
+    /** Total bytes allocated to blocks. */
+    public synchronized long getBytesAllocated() {
+        long total = 0;
+        for ( int i = 0; i < numBlocks; i++ ) { total += blocks[i].length; }
+        return total;
+    }
+}
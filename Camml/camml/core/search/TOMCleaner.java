@@ -40,24 +40,90 @@ public interface TOMCleaner
         {
             // loop through nodes cleaning each in turn.
             for ( int i = 0; i < tom.getNumNodes(); i++ ) {
-                int nodeI = tom.nodeAt(i);
-                int[] dirtyParent = tom.node[nodeI].parent;
-                
-                double oldCost = tom.caseInfo.nodeCache.getMMLCost( tom.node[nodeI] );
-                for (int j = dirtyParent.length-1; j >= 0; j--) {
-                    int nodeJ = dirtyParent[j];
-                    double structureDiff = tom.caseInfo.tomCoster.costToToggleArc(tom,nodeI,nodeJ);                
-                    tom.removeArc(nodeI,nodeJ);
-                    double newCost = tom.caseInfo.nodeCache.getMMLCost(tom.node[nodeI]);
-                    if ( newCost > oldCost - structureDiff) {
-                        tom.addArc(nodeI,nodeJ);
-                    }
-                    else {
-                        oldCost = newCost;
-                    }
-                }
+                cleanNode( tom, tom.nodeAt(i) );
             }            
         }
+        
+        /** Remove arcs into nodeI which do not pay for themselves. */
+        protected void cleanNode(TOM tom, int nodeI)
+        {
+            int[] dirtyParent = tom.node[nodeI].parent;
+            
+            double oldCost = tom.caseInfo.nodeCache.getMMLCost( tom.node[nodeI] );
+            for (int j = dirtyParent.length-1; j >= 0; j--) {
+                int nodeJ = dirtyParent[j];
+                double structureDiff = tom.caseInfo.tomCoster.costToToggleArc(tom,nodeI,nodeJ);                
+                tom.removeArc(nodeI,nodeJ);
+                double newCost = tom.caseInfo.nodeCache.getMMLCost(tom.node[nodeI]);
+                if ( newCost > oldCost - structureDiff) {
+                    tom.addArc(nodeI,nodeJ);
+                }
+                else {
+                    oldCost = newCost;
+                }
+            }
+        }
+        
+        /** 
+         * Can cleanNodes() be used on tom?  Each node may only be cleaned independently when the 
+         * cost of an arc does not depend on the rest of the TOM, as with UniformTOMCoster. 
+         */
+        public boolean canCleanIncrementally(TOM tom)
+        {
+            return tom.caseInfo.tomCleaner == this && 
+                tom.caseInfo.tomCoster instanceof TOMCoster.UniformTOMCoster &&
+                tom.getClass() == TOM.class;
+        }
+        
+        /**
+         * Update cleanTOM, a cleaned copy of a previous version of dirtyTOM, to be a cleaned copy
+         * of dirtyTOM.  Only the parents of the listed nodes (and any nodes changed by reordering)
+         * may differ between the two versions of dirtyTOM. <br>
+         * Returns the nodes of cleanTOM whose parents may have changed.
+         */
+        public int[] cleanNodes(TOM cleanTOM, TOM dirtyTOM, int[] nodes)
+        {
+            int numNodes = cleanTOM.getNumNodes();
+            boolean[] changed = new boolean[numNodes];
+            for ( int x : nodes ) { changed[x] = true; }
+            
+            // Match the total ordering of dirtyTOM. Arcs into nodes between the swapped pair may 
+            // change direction.
+            for ( int pos = 0; pos < numNodes; pos++ ) {
+                int x = cleanTOM.nodeAt(pos);
+                int y = dirtyTOM.nodeAt(pos);
+                if ( x != y ) {
+                    int posY = cleanTOM.getNodePos(y);
+                    for ( int i = pos; i <= posY; i++ ) { changed[cleanTOM.nodeAt(i)] = true; }
+                    cleanTOM.swapOrder( x, y, true );
+                }
+            }
+            
+            // Reset parents of each changed node to its dirty parents, then clean it.
+            int numChanged = 0;
+            for ( int x = 0; x < numNodes; x++ ) {
+                if ( !changed[x] ) { continue; }
+                numChanged++;
+                for ( int p : cleanTOM.node[x].getParentCopy() ) {
+                    if ( !dirtyTOM.isDirectedArc(p,x) ) { cleanTOM.removeArc(x,p); }
+                }
+                for ( int p : dirtyTOM.node[x].parent ) {
+                    cleanTOM.addArc(x,p);
+                }
+            }
+            
+            // Clean in total order, as cleanTOM() does.
+            int[] changedNodes = new int[numChanged];
+            numChanged = 0;
+            for ( int pos = 0; pos < numNodes; pos++ ) {
+                int x = cleanTOM.nodeAt(pos);
+                if ( changed[x] ) {
+                    cleanNode( cleanTOM, x );
+                    changedNodes[numChanged++] = x;
+                }
+            }
+            return changedNodes;
+        }
     }
 
     /** Don't perform any cleaning  */
@@ -41,6 +41,7 @@ import java.io.Serializable;
 
 import camml.core.library.extensionCounter.BitSetBasedUnlabelledGraph;
 import camml.core.library.extensionCounter.DynamicCounter;
+import camml.core.library.extensionCounter.ExtensionCountCache;
 import camml.core.library.extensionCounter.ExtensionCounter;
 import camml.core.library.extensionCounter.UnlabelledGraph;
 import cdms.core.FN;
@@ -330,29 +331,76 @@ public interface TOMCoster extends Serializable {
         // Linear extension caounter.
         final static DynamicCounter counter = DynamicCounter.dCounter;
         
-        /** Cache of last N tom hashes counted. */
-        private static final double[] countCache = new double[16];
-
-        /** Cache of last N tom hashes counted. */
-        private static final long[] countCacheKey = new long[16];
-
-        /** Cache of last N tom hashes counted. */
-        private static int countCacheIndex = 0;
+        /** Approximate maximum memory used by countCache */
+        public static final long maxCountCacheBytes = 16L << 20;
+        
+        /** Cache of extension counts of recently costed DAGs, shared by all searches. */
+        private static final ExtensionCountCache countCache = 
+            new ExtensionCountCache( maxCountCacheBytes );
+        
+        /** Number of entries in memo, must be a power of 2. */
+        protected static final int memoSize = 256;
+        
+        /** Extension count of a DAG, along with its packed arcs used to verify matches. */
+        protected static final class MemoEntry {
+            final long arcHash;
+            final int numNodes;
+            final long[] arcs;
+            final double count;
+            MemoEntry( long arcHash, int numNodes, long[] arcs, double count ) {
+                this.arcHash = arcHash; this.numNodes = numNodes; 
+                this.arcs = arcs; this.count = count;
+            }
+        }
+        
+        /** 
+         * Direct mapped memo of recent extension counts keyed by the incrementally updated 
+         * TOM.getArcHash(), checked before the DAG is put into canonical form.  Entries are 
+         * immutable so the memo may be shared by searches in parallel without locking.
+         */
+        private static final MemoEntry[] memo = new MemoEntry[memoSize];
+        
+        /** Return child * numNodes + parent for each arc in tom, in ascending order. */
+        protected static long[] packArcs( TOM tom ) {
+            int n = tom.node.length;
+            int numArcs = 0;
+            for (int i = 0; i < n; i++) { numArcs += tom.node[i].parent.length; }
+            long[] arcs = new long[numArcs];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                int[] parent = tom.node[i].parent;
+                for (int j = 0; j < parent.length; j++) {
+                    arcs[k++] = (long)i * n + parent[j];
+                }
+            }
+            java.util.Arrays.sort(arcs);
+            return arcs;
+        }
         
         /** Count the number of linear extensins for the supplied TOM */
         public static double countExtensions(TOM tom) {
-            
-            // Check if TOM perms is already in cache.
-            int tomHash = tom.hashCode();
-            if (tomHash != 0) {
-                for (int i = 0; i < countCache.length; i++) {
-                    int index =  (i+countCacheIndex)&0x0F;
-                    if ( countCacheKey[index] == tomHash ) {
-                        return countCache[index];
-                    }
-                }
+            if (tom.node.length <= 1) { return 1; }
+            
+            // Without a hash the DAG must be canonicalised every time.
+            if (tom.caseInfo.tomHash == null) { return countCanonicalExtensions(tom); }
+            
+            // Check the memo of recent DAGs first, this avoids canonicalising the DAG.
+            long arcHash = tom.getArcHash(tom.caseInfo.tomHash);
+            int index = (int)((arcHash * 0x9E3779B97F4A7C15L) >>> 56) & (memoSize-1);
+            long[] arcs = packArcs(tom);
+            MemoEntry entry = memo[index];
+            if (entry != null && entry.arcHash == arcHash && entry.numNodes == tom.node.length &&
+                java.util.Arrays.equals(entry.arcs, arcs)) {
+                return entry.count;
             }
             
+            double perms = countCanonicalExtensions(tom);
+            memo[index] = new MemoEntry(arcHash, tom.node.length, arcs, perms);
+            return perms;
+        }
+        
+        /** Count the number of linear extensions of tom using the cache of canonical DAGs. */
+        protected static double countCanonicalExtensions(TOM tom) {
             // Create UnlabelledGraph of TOM
             UnlabelledGraph g = new BitSetBasedUnlabelledGraph(tom.node.length);
             for (int i = 0; i < tom.node.length; i++) {
@@ -362,13 +410,18 @@ public interface TOMCoster extends Serializable {
                 }
             }
             
+            // Check if DAG perms is already in cache.
+            int[] order = g.getCanonicalOrder();
+            long hash = g.getCanonicalHash(order);
+            long[] form = g.getCanonicalForm(order);
+            double cached = countCache.get(hash, form);
+            if (cached != -1) { return cached; }
+            
             // Count permutations.
             double perms = counter.countPerms(g);
             
-            // add TOM perms to cache.
-            countCacheIndex = (countCacheIndex+1) & 0x0F;
-            countCache[countCacheIndex] = perms;
-            countCacheKey[countCacheIndex] = tomHash;
+            // add DAG perms to cache.
+            countCache.put(hash, form, perms);
             
             return perms;
         }
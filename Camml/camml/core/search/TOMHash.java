@@ -75,20 +75,12 @@ public class TOMHash extends ModelHash {
         return matrix[x][y];
     }   
     
-    /** hash = sum_{directedArcs}( matrix[i][j] ) */
+    /** 
+     * hash = sum_{directedArcs}( matrix[i][j] ) <br>
+     * The sum is maintained incrementally by tom as arcs are changed. 
+     */
     public long hash(TOM tom, double logL) {
-        long skelHash = 0L;
-        int numNodes = tom.getNumNodes();
-        
-        // The calculateion of tomHash is now performes locally in nodes (the sum is the tomHash)
-        for (int i = 0; i < numNodes; i++) {
-            int[] parent = tom.node[i].parent;
-            for ( int j = 0; j < parent.length; j++) {
-                skelHash += getRandom(parent[j],i);
-            }
-        }
-        
-        return skelHash;
+        return tom.getArcHash(this);
     }
     
     
@@ -175,15 +175,7 @@ public class AnnealSearchDBN extends AnnealSearch{
         
         //Code below: As per AnnealSearch.
         if ( caseInfo.annealLogging ) {
-            try {
-                caseInfo.cammlLog.write( "STEP : " + stepNum +
-                                         "\tMMLCost = " + caseInfo.costFormat.format(currentCost) +
-                                         "\trand: " + ((WallaceRandom)rand).numCalls + "\n");
-                caseInfo.cammlLog.flush();
-            } catch (Exception e) {
-                for ( int ii = 0; ii < 100; ii++ ) { System.out.println(e); }
-                throw new RuntimeException(e);
-            }
+            caseInfo.getLog().logStep( stepNum, currentCost, ((WallaceRandom)rand).numCalls );
         }
         
         // if new model is accepted, update currentCost
@@ -1,7 +1,5 @@
 package camml.core.searchDBN;
 
-import java.io.IOException;
-
 import camml.core.models.ModelLearner;
 import camml.core.search.CaseInfo;
 import camml.core.search.SEC;
@@ -60,8 +58,7 @@ public class DBNSEC extends SEC {
 	public void addTOM( TOM cleanTom, double uncleanMML, double temperature ){
 		// hash a clean version of this TOM
         long hash = caseInfo.tomHash.hash( cleanTom, cleanMLCost );
-        int foundAt = -1;
-        CompactTOM currentTOM = null;
+        CompactTOM currentTOM = findTOM( hash );
         
         
         if ( uncleanMML < bestMML ) { bestMML = uncleanMML; }
@@ -85,20 +82,13 @@ public class DBNSEC extends SEC {
             }
         }
         
-        // Check if this TOM has already been sampled
-        for ( int i = 0; i < tomList.size(); i++ ) {
-            if ( ((CompactTOM)tomList.get(i)).hash == hash ) { foundAt = i; break;}
-        }
-        
         // If TOM not already in the list, add it. 
-        if ( foundAt == -1 ) {
-            tomList.add( new CompactDTOM( cleanTom, hash ) );		//Only change in this method vs. SEC.addTOM(...)
-            foundAt = tomList.size() - 1;
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
+        if ( currentTOM == null ) {
+            currentTOM = new CompactDTOM( cleanTom, hash );		//Only change in this method vs. SEC.addTOM(...)
             currentTOM.bestMML = uncleanMML;        
+            addCompactTOM( currentTOM );
         }
         else { // if TOM is already in the list, make sure it's best MML is recorded.
-            currentTOM = ((CompactTOM)tomList.get(foundAt));
             if ( currentTOM.bestMML > uncleanMML ) {
                 currentTOM.bestMML = uncleanMML;
             }
@@ -112,14 +102,7 @@ public class DBNSEC extends SEC {
         caseInfo.totalWeight += tomWeight;  //            and total
         
         if ( caseInfo.logging ) {
-            java.text.DecimalFormat format = caseInfo.weightFormat;
-            try {
-                caseInfo.cammlLog.write( "weight = " + format.format(tomWeight) + 
-                                         "\ttomWeight = " + format.format(this.weight) + 
-                                         "\tdiff = " + format.format(diff) +  
-                                         "\ttotalWeight = " + format.format(caseInfo.totalWeight) + "\n");
-                caseInfo.cammlLog.flush();
-            } catch (IOException e) { /* Ignore Exception */ }
+            caseInfo.getLog().logWeight( tomWeight, this.weight, diff, caseInfo.totalWeight );
         }   
 	}
 	
@@ -148,10 +131,12 @@ public class DBNSEC extends SEC {
 			//Following code taken from SEC.CompactTOM.makeTOM()
 			// set total ordering to match CompactTOM
             // This must be done before adding arcs to avoid having too many parents present.
+            int[] order = getOrder();
             for ( int i = 0; i < order.length; i++ ) {
-                tom.swapOrder( tom.nodeAt(i), this.order[i], false);
+                tom.swapOrder( tom.nodeAt(i), order[i], false);
             }
             
+            int[][] edgeList2 = getEdges();
             for ( int i = 0; i < edgeList2[0].length; i++) {
                 tom.addArc(edgeList2[0][i], edgeList2[1][i]);
             }
@@ -189,7 +174,7 @@ public class DBNSEC extends SEC {
             //Calculate the various pieces required, as per BNet.logP(...)
             Value.Model[] subModel = DBNStaticMethods.makeSubModelListDBN(params);		//BNet.makeSubModelList( (Value.Vector)y )
             Value[] subParam = DBNStaticMethods.makeSubParamListDBN(params);			//BNet.makeSubParamList( (Value.Vector)y )
-            int[] order = this.order.clone();
+            int[] order = getOrder();
             int[][] parentList = new int[numNodes][0];
             int[][] temporalParentList = new int[numNodes][0];
             
@@ -8,7 +8,7 @@ import camml.core.search.TOM;
 /**Extends SECHash, but for learning DBNs.
  * See SECHash for details.
  */
-public class DBNSECHash extends SECHash {
+public class DBNSECHash extends SECHash implements DTOM.TemporalHash {
 	private static final long serialVersionUID = 6878978332304068417L;
 
 	java.util.Random rand;
@@ -44,16 +44,9 @@ public class DBNSECHash extends SECHash {
 	 */
 	public long hash(TOM tom, double logL) {
 		long skelHash = super.hash(tom, logL);		//Get (logL*128) + sum_{intrasliceArcs}( matrix[i][j] ) 
-        int numNodes = tom.getNumNodes();
+        // Temporal arc components of the hash are maintained by the DTOM as arcs change.
+        skelHash += ((DTOM)tom).getTemporalArcHash( this );
         
-        //Temporal arc components of the hash function:
-        for( int i = 0; i < numNodes; i++ ){
-        	int[] temporalParent = ((DNode)tom.getNode(i)).temporalParent;
-        	for( int p : temporalParent ){
-        		skelHash += getTemporalRandom( p, i );
-        	}
-        }
-
         return skelHash;
 	}
 }
@@ -37,6 +37,21 @@ public class DTOM extends TOM {
     /** Getter for number of temporal edges in this DTOM */
     public int getNumTemporalEdges(){ return numTemporalEdges; }
     
+    /** Hash function with a component for each temporal arc, see DTOMHash and DBNSECHash */
+    public interface TemporalHash {
+    	/** Hash component for the temporal arc x -> y */
+    	public long getTemporalRandom( int x, int y );
+    }
+    
+    /** 
+     * TemporalHashes for which temporalArcHash is maintained.  As with TOM.getArcHash() the
+     * sum is kept up to date as temporal arcs change once a hash has been used.
+     */
+    private TemporalHash[] temporalHasher = new TemporalHash[2];
+    
+    /** temporalArcHash[i] = sum_{temporal arcs x->y}( temporalHasher[i].getTemporalRandom(x,y) ) */
+    private long[] temporalArcHash = new long[2];
+    
 	public DTOM(CaseInfo caseInfo) {
 		super(caseInfo);
 		
@@ -90,10 +105,12 @@ public class DTOM extends TOM {
                 throw new Node.ExcessiveArcsException("MaxParents already reached, cannot add another. (" + node[child].getNumParents() + ")");
             }
             node[child].addParent(parent);
+            arcChanged( parent, child, true );
         }
         else if ( oldEdge && !arcValue ) {
             numEdges --; 
             node[child].removeParent(parent);
+            arcChanged( parent, child, false );
         }
         else {
             System.out.println("--- Link already present/absent?? ---");
@@ -118,17 +135,51 @@ public class DTOM extends TOM {
 			}
 			((DNode)node[y]).addTemporalParent(x);		//i.e. node[child].addTemporalParent(parent)
 			numTemporalEdges++;
+			temporalArcChanged( x, y, true );
 			return;
 		}
 		//If temporal arc changed from true to false:
 		if( oldEdge && !arcValue ){
 			((DNode)node[y]).removeTemporalParent(x);
 			numTemporalEdges--;
+			temporalArcChanged( x, y, false );
 			return;
 		}
 		System.out.println("Error: Tried to add (remove) arc that was already present (absent)");
 	}
 	
+	/** Update temporalArcHash after the temporal arc x->y has been added or removed. */
+	protected void temporalArcChanged( int x, int y, boolean added ) {
+		for ( int i = 0; i < temporalHasher.length; i++ ) {
+			if ( temporalHasher[i] != null ) {
+				long r = temporalHasher[i].getTemporalRandom(x,y);
+				if ( added ) { temporalArcHash[i] += r; } else { temporalArcHash[i] -= r; }
+			}
+		}
+	}
+	
+	/** 
+	 * Return sum_{temporal arcs x->y}( hash.getTemporalRandom(x,y) ).  The sum is calculated 
+	 * in full the first time a hash is used, then updated as temporal arcs are changed.
+	 */
+	public long getTemporalArcHash( TemporalHash hash ) {
+		for ( int i = 0; i < temporalHasher.length; i++ ) {
+			if ( temporalHasher[i] == hash ) { return temporalArcHash[i]; }
+		}
+		
+		long sum = 0;
+		for ( int i = 0; i < node.length; i++ ) {
+			for ( int p : ((DNode)node[i]).temporalParent ) {
+				sum += hash.getTemporalRandom( p, i );
+			}
+		}
+		
+		// Replace the older of the two hashes kept.
+		temporalHasher[1] = temporalHasher[0];  temporalArcHash[1] = temporalArcHash[0];
+		temporalHasher[0] = hash;               temporalArcHash[0] = sum;
+		return sum;
+	}
+	
 	/**	Add a TEMPORAL arc by index. x -> y
 	*   Returns true if an operation was performed.
 	*/
@@ -387,6 +438,8 @@ public class DTOM extends TOM {
         for( int i=0; i< temporalEdge.length; i++ ){
         	tempTOM.temporalEdge[i] = (BitSet)temporalEdge[i].clone();
         }
+        tempTOM.temporalHasher = temporalHasher.clone();
+        tempTOM.temporalArcHash = temporalArcHash.clone();
         
         return tempTOM;
     }
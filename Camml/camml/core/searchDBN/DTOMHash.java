@@ -4,7 +4,7 @@ import camml.core.search.TOM;
 import camml.core.search.TOMHash;
 
 /** Extends TOMHash. Same as TOMHash, but for hashing DTOMs instead of TOMs. */
-public class DTOMHash extends TOMHash {
+public class DTOMHash extends TOMHash implements DTOM.TemporalHash {
 	private static final long serialVersionUID = -1983585885890421801L;
 
 	java.util.Random rand;
@@ -43,14 +43,8 @@ public class DTOMHash extends TOMHash {
 		if( !(tom instanceof DTOM) ) throw new RuntimeException("Cannot hash TOM with DTOMHash!");
 		
 		long skelHash = super.hash( tom, logL);		//Get the hash component for the intraslice arcs
-        int numNodes = tom.getNumNodes();
-		
-        for( int i = 0; i < numNodes; i++ ){
-        	int[] temporalParent = ((DNode)tom.getNode(i)).temporalParent;
-        	for( int p : temporalParent ){
-        		skelHash += getTemporalRandom( p, i );
-        	}
-        }
+		// Temporal arc components of the hash are maintained by the DTOM as arcs change.
+		skelHash += ((DTOM)tom).getTemporalArcHash( this );
 		return skelHash;
 	}
 }
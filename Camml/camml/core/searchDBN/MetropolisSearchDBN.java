@@ -14,7 +14,6 @@ import camml.core.search.SkeletalChange;
 import camml.core.search.TOM;
 import camml.core.search.TOMTransformation;
 import camml.core.search.TemporalChange;
-//import camml.core.search.MetropolisSearch.SECHashKey;
 import cdms.core.Value;
 import cdms.core.VectorFN;
 import cdms.core.Value.Model;
@@ -77,7 +76,7 @@ public class MetropolisSearchDBN extends MetropolisSearch {
 	 * Overrides MetropolisSearch.runAnnealSearch()
 	 * Code here adapted from MetropolisSearch.runAnnealSearch()
 	 */
-	private void runAnnealSearch(){
+	protected void runAnnealSearch(){
 		//Create AnnealSearchDBN object:
 		AnnealSearchDBN AS = new AnnealSearchDBN( rand, caseInfo );
 		Search blockingSearch = new camml.core.library.BlockingSearch( AS );
@@ -239,15 +238,8 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         
         // debug logging.
         if ( caseInfo.logging ) {
-            try {
-                caseInfo.cammlLog.write( "STEP : " + epoch + 
-                                         "\tMMLCost = " + caseInfo.costFormat.format(currentCost) + 
-                                         "\trand: " + ((WallaceRandom)rand).numCalls + "\n");
-                caseInfo.cammlLog.flush();
-            } catch (Exception e) { 
-                for ( int ii = 0; ii < 100; ii++ ) { System.out.println(e); }
-                throw new RuntimeException(e);
-            }
+            caseInfo.getLog().logStep( epoch, currentCost, ((WallaceRandom)rand).numCalls );
+            if ( searchDone ) { caseInfo.getLog().flush(); }
         }    
         
         // currentCost is required by search interface to draw "pretty graphs", etc.  with.
@@ -269,15 +261,14 @@ public class MetropolisSearchDBN extends MetropolisSearch {
         }
         
         // Check if current SEC is in secHashtable
-        tempKey.set( hashValue );
-        SEC sec = (SEC)secHashtable.get( tempKey );
+        SEC sec = secHashtable.get( hashValue );
         
         
         // If SEC not found and current TOM has a reasonable posterior, add SEC to the list of SECs.
         if ( sec == null && currentCost < bestCost + ignoreCap ) {
             //sec = new SEC( cleantom, currentMLCost, caseInfo);
         	sec = new DBNSEC( cleantom, currentMLCost, caseInfo);
-            secHashtable.put( new SECHashKey(hashValue), sec );        
+            secHashtable.put( hashValue, sec );        
         }
         return sec;
     }
@@ -47,6 +47,7 @@ package camml.test.core.library;
 
 import camml.core.library.extensionCounter.BruteForceExtensionCounter;
 import camml.core.library.extensionCounter.DynamicCounter;
+import camml.core.library.extensionCounter.ExtensionCountCache;
 import camml.core.library.extensionCounter.ExtensionCounterLib;
 import camml.core.library.extensionCounter.UnlabelledGraph;
 import camml.core.library.extensionCounter.UnlabelledGraph64;
@@ -277,4 +278,42 @@ public class TestExtensionCounter extends TestCase {
             assertTrue("Exception not properly thrown",false);
         } catch (Exception e) {/* Correct behaviour. >64 bits needed to pass this test.*/}
     }    
+
+    /** Relabelled copies of a DAG should share a cache entry, other DAGs should not. */
+    public final void testExtensionCountCache() {
+        ExtensionCountCache cache = new ExtensionCountCache(1 << 20);
+        
+        UnlabelledGraph g = new UnlabelledGraph64(5);
+        g.addArc(0,3,true);
+        g.addArc(1,3,true);
+        g.addArc(2,4,true);
+        assertEquals( -1.0, cache.get(g) );
+        cache.put( g, new DynamicCounter().countPerms(g) );
+        
+        // Same DAG with nodes relabelled.
+        UnlabelledGraph g2 = new UnlabelledGraph64(5);
+        g2.addArc(4,1,true);
+        g2.addArc(2,1,true);
+        g2.addArc(3,0,true);
+        assertEquals( new DynamicCounter().countPerms(g2), cache.get(g2) );
+        
+        // Different DAG
+        UnlabelledGraph g3 = new UnlabelledGraph64(5);
+        g3.addArc(0,3,true);
+        g3.addArc(3,1,true);
+        g3.addArc(2,4,true);
+        assertEquals( -1.0, cache.get(g3) );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 1, cache.size() );
+        
+        // Cache memory is bounded.
+        ExtensionCountCache small = new ExtensionCountCache(1 << 12);
+        for ( int i = 0; i < 1000; i++ ) {
+            small.put( i, new long[] {i}, i );
+        }
+        assertTrue( small.getBytes() <= 1 << 12 );
+        assertEquals( 999.0, small.get(999, new long[] {999}) );
+        assertEquals( -1.0, small.get(999, new long[] {998}) );
+        assertEquals( 1, small.getCollisions() );
+    }
 }
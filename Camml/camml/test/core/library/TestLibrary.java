@@ -37,9 +37,19 @@
 
 package camml.test.core.library;
 
+import camml.core.library.ConcurrentLongHashtable;
+import camml.core.library.IndexedHeap;
 import camml.core.library.Library;
+import camml.core.library.LongHashtable;
+import camml.core.library.LogGamma;
+import camml.core.library.PackedDiscreteVector;
+import camml.core.library.WallaceRandom;
 import camml.plugin.rodoCamml.RodoCammlIO;
+import cdms.core.FN;
+import cdms.core.Type;
 import cdms.core.Value;
+import cdms.core.ValueStatus;
+import cdms.core.VectorFN;
 import junit.framework.*;
 
 
@@ -71,4 +81,179 @@ public class TestLibrary extends TestCase {
         System.out.println("join.t = " + join.t);
     }
 
+    /** Test LogGamma.logGamma against known values. */
+    public final void testLogGamma() throws Exception {
+        // Integer values (both inside and outside the lookup table)
+        for ( int i = 1; i < 3000; i += 7 ) {
+            double expected = FN.LogFactorial.logFactorial(i-1);
+            assertEquals( expected, LogGamma.logGamma(i), 1e-14 * Math.max(1,expected) );
+        }
+        
+        // Gamma(0.5) = sqrt(pi), Gamma(x+1) = x*Gamma(x)
+        double x = 0.5;
+        double expected = 0.5 * Math.log( Math.PI );
+        while ( x < 100 ) {
+            assertEquals( expected, LogGamma.logGamma(x), 1e-13 * Math.max(1,expected) );
+            expected += Math.log(x);
+            x += 1;
+        }
+        
+        // Values calculated to 20 digits covering the shifted (x < 10), table (integer x < 1024)
+        // and Stirling series ranges.  Error is within 1e-14 * max(1,|logGamma(x)|)
+        double[][] known = new double[][] {
+            { 0.001, 6.90717888538385368251e+0 },
+            { 0.5, 5.72364942924700087072e-1 },
+            { 1.5, -1.20782237635245222346e-1 },
+            { 2.5, 2.84682870472919159632e-1 },
+            { 3.7, 1.42807232666538792187e+0 },
+            { 9.99, 1.27793152143501928805e+1 },
+            { 10, 1.28018274800814696112e+1 },
+            { 100, 3.59134205369575398776e+2 },
+            { 1023, 6.06434991817849903447e+3 },
+            { 1024, 6.07128041294445066095e+3 },
+            { 100.25, 3.60284559637764234968e+2 },
+            { 1000.5, 5.90867417584867748868e+3 },
+            { 12345.678, 1.03959919905546060921e+5 },
+            { 1000000.5, 1.28155114769027656421e+7 }
+        };
+        for ( int i = 0; i < known.length; i++ ) {
+            assertEquals( known[i][1], LogGamma.logGamma(known[i][0]), 
+                          1e-14 * Math.max(1,Math.abs(known[i][1])) );
+        }
+        
+        // Compare fractional values with cdms implementation (accurate to around 1e-10)
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 1000; i++ ) {
+            x = rand.nextDouble() * 50;
+            assertEquals( cdms.plugin.model.Gamma.logGamma(x), LogGamma.logGamma(x), 1e-8 );
+        }
+    }
+
+    /** Test PackedDiscreteVector returns the same values as the original data. */
+    public final void testPackedDiscreteVector() throws Exception {
+        Value.Vector data = RodoCammlIO.load("camml/test/AsiaCases.1000.cas");
+        Value.Vector packed = PackedDiscreteVector.pack(data);
+        
+        assertTrue( packed instanceof PackedDiscreteVector );
+        assertEquals( data.length(), packed.length() );
+        for ( int j = 0; j < 8; j++ ) {
+            assertTrue( packed.cmpnt(j) instanceof PackedDiscreteVector.Column );
+            int[] values = new int[data.length()];
+            ((PackedDiscreteVector.Column)packed.cmpnt(j)).getValues( values );
+            for ( int i = 0; i < data.length(); i++ ) {
+                assertEquals( data.cmpnt(j).intAt(i), packed.cmpnt(j).intAt(i) );
+                assertEquals( data.cmpnt(j).intAt(i), values[i] );
+            }
+        }
+        assertEquals( data.elt(17).toString(), packed.elt(17).toString() );
+    }
+
+    /** Data with missing values must not be packed, as packed columns cannot store status. */
+    public final void testPackedDiscreteVectorMissing() throws Exception {
+        Type.Discrete type = new Type.Discrete(0,1,false,false,false,false);
+        int[] x = new int[] { 0, 1, 1, 0, 1, 0 };
+        ValueStatus[] status = new ValueStatus[x.length];
+        java.util.Arrays.fill( status, Value.S_PROPER );
+        status[3] = Value.S_UNOBSERVED;
+        Value.Vector missing = new RodoCammlIO.FastStatusDiscreteVector( x, status, type );
+        Value.Vector proper = new VectorFN.FastDiscreteVector( x.clone(), type );
+        Value.Vector data = 
+            new VectorFN.MultiCol( new Value.DefStructured(new Value.Vector[] {proper,missing}) );
+        
+        assertSame( data, PackedDiscreteVector.pack(data) );
+        try {
+            new PackedDiscreteVector.Column( missing );
+            fail( "Column with missing values packed" );
+        } catch ( IllegalArgumentException e ) { }
+        
+        // Constructing directly only packs the proper column.
+        Value.Vector packed = new PackedDiscreteVector( data );
+        assertTrue( packed.cmpnt(0) instanceof PackedDiscreteVector.Column );
+        assertSame( missing, packed.cmpnt(1) );
+        assertEquals( Value.S_UNOBSERVED, packed.cmpnt(1).elt(3).status() );
+        assertEquals( Value.S_UNOBSERVED, ((Value.Structured)packed.elt(3)).cmpnt(1).status() );
+    }
+    
+    /** Compare LongHashtable and ConcurrentLongHashtable against java.util.HashMap */
+    public final void testLongHashtable() {
+        LongHashtable<Long> table = new LongHashtable<Long>();
+        LongHashtable<Long> concurrent = new ConcurrentLongHashtable<Long>();
+        java.util.HashMap<Long,Long> map = new java.util.HashMap<Long,Long>();
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 5000; i++ ) {
+            // Small keys (including 0) ensure some keys are repeated.
+            long key = (i % 2 == 0) ? rand.nextInt(1000) : rand.nextLong();
+            Long value = new Long(i);
+            assertEquals( map.put(key,value), table.put(key,value) );
+            concurrent.put(key,value);
+        }
+        
+        assertEquals( map.size(), table.size() );
+        assertEquals( map.size(), concurrent.size() );
+        assertEquals( map.size(), table.keys().length );
+        assertEquals( map.size(), concurrent.values().size() );
+        for ( long key : table.keys() ) {
+            assertEquals( map.get(key), table.get(key) );
+            assertEquals( map.get(key), concurrent.get(key) );
+        }
+        assertNull( table.get(-1) );
+        assertFalse( concurrent.containsKey(-1) );
+        assertTrue( table.getMeanProbes() >= 1 );
+        
+        table.clear();
+        assertEquals( 0, table.size() );
+        assertNull( table.get(0) );
+    }
+
+    /** Compare IndexedHeap against a linear scan keeping the first maximum found. */
+    public final void testIndexedHeap() {
+        int n = 50;
+        IndexedHeap heap = new IndexedHeap(n);
+        double[] priority = new double[n];
+        boolean[] present = new boolean[n];
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 2000; i++ ) {
+            int id = rand.nextInt(n);
+            if ( rand.nextDouble() < 0.3 ) {
+                heap.remove(id);
+                present[id] = false;
+            }
+            else {
+                // Few distinct values so ties are common.
+                priority[id] = rand.nextInt(10);
+                heap.set(id, priority[id]);
+                present[id] = true;
+            }
+            
+            int best = -1;
+            for ( int j = 0; j < n; j++ ) {
+                if ( present[j] && (best == -1 || priority[j] > priority[best]) ) { best = j; }
+            }
+            assertEquals( best, heap.top() );
+            assertEquals( present[id], heap.contains(id) );
+        }
+    }
+
+    /** Bulk generation, jumps and split streams must be consistent with nextDouble(). */
+    public final void testWallaceRandomStreams() {
+        WallaceRandom a = new WallaceRandom( new int[] {123, 456} );
+        WallaceRandom b = new WallaceRandom( new int[] {123, 456} );
+        
+        double[] x = new double[1000];
+        a.nextDoubles( x );
+        for ( int i = 0; i < x.length; i++ ) { assertEquals( b.nextDouble(), x[i], 0 ); }
+        assertEquals( b.numCalls, a.numCalls );
+        
+        a.jump( 500 );
+        for ( int i = 0; i < 500; i++ ) { b.nextDouble(); }
+        assertEquals( b.nextDouble(), a.nextDouble(), 0 );
+        
+        // Splitting is repeatable, does not disturb the parent and gives distinct streams.
+        WallaceRandom s0 = a.split( 0 ), s1 = a.split( 1 ), t0 = b.split( 0 );
+        assertEquals( b.nextDouble(), a.nextDouble(), 0 );
+        double v0 = s0.nextDouble(), v1 = s1.nextDouble();
+        assertEquals( v0, t0.nextDouble(), 0 );
+        assertTrue( v0 != v1 );
+        assertTrue( a.split().nextDouble() != a.split().nextDouble() );
+    }
 }
@@ -40,7 +40,9 @@ import java.util.Random;
 
 import camml.core.library.StructureFN;
 import camml.core.library.WallaceRandom;
+import camml.core.library.SelectedVector;
 import camml.core.models.cpt.CPT;
+import camml.core.models.cpt.CountTableCache;
 import camml.core.models.multinomial.MultinomialLearner;
 import cdms.core.Type;
 import cdms.core.Value;
@@ -141,4 +143,47 @@ public class TestCPT extends TestCase {
         }
         
     }
+
+    /** Test tables found by marginalising cached tables match tables tallied from data. */
+    public final void testMarginalise() throws Exception {
+        Random rand = new Random(123);
+        int n = 1000;
+        int[][] col = new int[4][n];
+        Type.Discrete[] type = new Type.Discrete[] {binary, ternary, binary, ternary};
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < col.length; j++ ) { col[j][i] = rand.nextInt((int)type[j].UPB+1); }
+        }
+        Value.Vector[] vecArray = new Value.Vector[col.length];
+        for ( int j = 0; j < col.length; j++ ) { 
+            vecArray[j] = new VectorFN.FastDiscreteVector(col[j],type[j]); 
+        }
+        Value.Vector data = new VectorFN.MultiCol(new Value.DefStructured(vecArray));
+        Value.Model model2 = MultinomialLearner.getMultinomialModel(binary);
+        
+        // Tally child 0 with parents {1,2,3} so it is stored in the cache.
+        CountTableCache cache = CountTableCache.getCache(data);
+        CPT cpt3 = new CPT(model2, new int[]{0,0,0}, new int[]{2,1,2});
+        cpt3.getSufficientArray1( data.cmpnt(0), new SelectedVector(data,null,new int[]{1,2,3}) );
+        
+        // Remove each parent in turn, and compare to a table counted by hand.
+        int[][] parents = new int[][] { {2,3}, {1,3}, {1,2} };
+        for ( int p = 0; p < parents.length; p++ ) {
+            int[] upb = new int[] { (int)type[parents[p][0]].UPB, (int)type[parents[p][1]].UPB };
+            CPT cpt = new CPT(model2, new int[]{0,0}, upb);
+            int marginalised = cache.marginalised;
+            double[][] tally = 
+                cpt.getSufficientArray1( data.cmpnt(0), new SelectedVector(data,null,parents[p]) );
+            assertEquals( marginalised+1, cache.marginalised );
+            
+            double[][] expected = new double[2][tally[0].length];
+            for ( int i = 0; i < n; i++ ) {
+                expected[col[0][i]][col[parents[p][0]][i] + (upb[0]+1)*col[parents[p][1]][i]]++;
+            }
+            for ( int i = 0; i < expected.length; i++ ) {
+                for ( int j = 0; j < expected[i].length; j++ ) {
+                    assertEquals( expected[i][j], tally[i][j], 0.0 );
+                }
+            }
+        }
+    }
 }
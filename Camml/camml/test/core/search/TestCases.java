@@ -64,6 +64,7 @@ public class TestCases extends TestCase
         
         tSuite.addTest( TestGreedyLookaheadSearch.suite() );
         tSuite.addTest( TestAnnealSearch.suite() );
+        tSuite.addTest( TestExactPosteriorSearch.suite() );
         
         
         tSuite.addTest( TestTOM.suite() );
@@ -0,0 +1,137 @@
+/*
+ *  [The "BSD license"]
+ *  Copyright (c) 2002-2011, Rodney O'Donnell, Lucas Hope, Lloyd Allison, Kevin Korb
+ *  Copyright (c) 2002-2011, Monash University
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *    1. Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *    2. Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *    3. The name of the author may not be used to endorse or promote products
+ *       derived from this software without specific prior written permission.*
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ *  IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ *  IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ *  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ *  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ *  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ *  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+//
+// Test exact posterior search for CaMML
+//
+
+// File: TestExactPosteriorSearch.java
+
+
+package camml.test.core.search;
+
+import junit.framework.*;
+
+import cdms.core.*;
+import camml.core.search.*;
+import camml.core.models.bNet.*;
+import camml.core.library.BlockingSearch;
+
+public class TestExactPosteriorSearch extends TestCase
+{
+    public TestExactPosteriorSearch(String name) 
+    {
+        super(name);
+    }
+    
+    public static Test suite() 
+    {
+        return new TestSuite(TestExactPosteriorSearch.class);
+    }
+    
+    /** Compare the normaliser, arc posteriors and MAP TOM with a sum over every TOM. */
+    public void testAgainstEnumeration()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),100,1,2,2);
+        ExactPosteriorSearch search = 
+            new ExactPosteriorSearch( new java.util.Random(12345), dataset,
+                                      SearchPackage.mlCPTLearner, SearchPackage.mmlCPTLearner );
+        search.printProgress = false;
+        search.setOption( "arcProb", new Value.Continuous(0.3) );
+        search.setOption( "exactMaxParents", new Value.Discrete(3) );
+        search.setOption( "exactSamples", new Value.Discrete(500) );
+        new BlockingSearch( search ).start();
+        
+        // Enumerate all total orderings of 4 nodes and all arcs consistent with each.
+        int n = 4;
+        TOM tom = new TOM( search.caseInfo );
+        int[][] orders = new int[24][];
+        int numOrders = 0;
+        for ( int a = 0; a < n; a++ ) {
+            for ( int b = 0; b < n; b++ ) {
+                for ( int c = 0; c < n; c++ ) {
+                    int d = 6 - a - b - c;
+                    if ( a == b || a == c || b == c || d == a || d == b || d == c ) { continue; }
+                    orders[numOrders++] = new int[] { a, b, c, d };
+                }
+            }
+        }
+        assertEquals( 24, numOrders );
+        
+        double[] cost = new double[24 * 64];
+        double minCost = Double.POSITIVE_INFINITY;
+        for ( int o = 0; o < 24; o++ ) {
+            for ( int arcs = 0; arcs < 64; arcs++ ) {
+                setTOM( tom, orders[o], arcs );
+                cost[o*64+arcs] = tom.getCost();
+                minCost = Math.min( minCost, cost[o*64+arcs] );
+            }
+        }
+        
+        double total = 0;
+        double[][] arcWeight = new double[n][n];
+        for ( int o = 0; o < 24; o++ ) {
+            for ( int arcs = 0; arcs < 64; arcs++ ) {
+                double w = Math.exp( minCost - cost[o*64+arcs] );
+                total += w;
+                setTOM( tom, orders[o], arcs );
+                for ( int i = 0; i < n; i++ ) {
+                    for ( int j = 0; j < n; j++ ) {
+                        if ( tom.isDirectedArc(j,i) ) { arcWeight[i][j] += w; }
+                    }
+                }
+            }
+        }
+        
+        assertEquals( Math.log(total) - minCost, search.getLogNormaliser(), 1e-6 );
+        assertEquals( minCost, search.getBestTOM().getCost(), 1e-6 );
+        double[][] arcPortions = search.getArcPortions();
+        for ( int i = 0; i < n; i++ ) {
+            for ( int j = 0; j < n; j++ ) {
+                assertEquals( arcWeight[i][j] / total, arcPortions[i][j], 1e-6 );
+            }
+        }
+        assertTrue( search.getResults().length() > 0 );
+    }
+    
+    /** Set tom to order with arcs chosen by the bits of arcs, one for each ordered pair. */
+    private static void setTOM( TOM tom, int[] order, int arcs )
+    {
+        tom.clearArcs();
+        tom.setOrder( order );
+        int bit = 0;
+        for ( int i = 0; i < order.length; i++ ) {
+            for ( int j = i + 1; j < order.length; j++ ) {
+                if ( (arcs & (1 << bit)) != 0 ) { tom.addArc( order[i], order[j] ); }
+                bit++;
+            }
+        }
+    }
+}
@@ -110,6 +110,446 @@ public class TestMetropolisSearch extends TestCase
         s.start();
     }
     
+    /** Return a Wallace/Korb style dataset of 12 correlated variables. */
+    protected static Value.Vector makeDataset( int numCases )
+    {
+        return SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),
+                                                                 numCases,2,2,3);
+    }
+    
+    /** Return a MetropolisSearch of data, always using the same seed and learners. */
+    protected static MetropolisSearch makeSearch( Value.Vector data )
+    {
+        return new MetropolisSearch( new java.util.Random(12345), data,
+                                     SearchPackage.mlCPTLearner, SearchPackage.mmlCPTLearner );
+    }
+    
+    /** Run met to completion, sampling fewer TOMs than usual (searchFactor = 0.2). */
+    protected static void runShortSearch( MetropolisSearch met )
+    {
+        met.setOption( "searchFactor", new Value.Continuous(0.2) );
+        new BlockingSearch( met ).start();
+    }
+    
+    /** Resetting a search must release the TOMs it sampled. */
+    public void testResetReleasesArena()
+    {
+        MetropolisSearch met = makeSearch( makeDataset(100) );
+        runShortSearch( met );
+        TOMArena arena = met.caseInfo.tomArena;
+        assertTrue( arena.getBytesUsed() > 0 );
+        
+        met.reset();
+        assertNotSame( arena, met.caseInfo.tomArena );
+        assertEquals( 0, met.caseInfo.tomArena.getBytesUsed() );
+        runShortSearch( met );
+        assertTrue( met.getResults().length() > 0 );
+    }
+    
+    /** Chains sampling a well determined posterior should agree on it. */
+    public void testMultiChainSearch()
+    {
+        MultiChainMetropolisSearch met = 
+            new MultiChainMetropolisSearch( new java.util.Random(12345), makeDataset(1000),
+                                            SearchPackage.mlCPTLearner, 
+                                            SearchPackage.mmlCPTLearner );
+        met.setNumChains( 3 );
+        runShortSearch( met );
+        
+        assertEquals( 3, met.getChains().length );
+        for ( int i = 0; i < 3; i++ ) {
+            assertSame( met.caseInfo.nodeCache, met.getChains()[i].caseInfo.nodeCache );
+            // Every chain must sample the posterior given the single arcProb estimated.
+            assertEquals( met.getArcProb(), met.getChains()[i].getArcProb(), 0 );
+            assertEquals( met.caseInfo.referenceWeight, 
+                          met.getChains()[i].caseInfo.referenceWeight, 0 );
+        }
+        
+        // With 1000 cases the SEC posteriors of the chains differ by about 0.1 to 0.3 
+        // (compared to 0.3 to 0.9 with 100 cases).
+        double distance = met.getMaxChainDistance();
+        assertTrue( "distance = " + distance, distance < 0.3 );
+    }
+    
+    /** Merged SEC weights must be the sum of each chain's weights, rescaled to one reference. */
+    public void testMultiChainMerge()
+    {
+        MultiChainMetropolisSearch met = 
+            new MultiChainMetropolisSearch( new java.util.Random(12345), makeDataset(100),
+                                            SearchPackage.mlCPTLearner, 
+                                            SearchPackage.mmlCPTLearner );
+        met.setNumChains( 3 );
+        // Sample at a known temperature so the rescaling of weights can be recalculated here.
+        double temperature = 1.5;
+        met.setOption( "temperature", new Value.Continuous(temperature) );
+        runShortSearch( met );
+        
+        MetropolisSearch[] chain = met.getChains();
+        double referenceWeight = Double.POSITIVE_INFINITY;
+        for ( int i = 0; i < chain.length; i++ ) {
+            referenceWeight = Math.min( referenceWeight, chain[i].caseInfo.referenceWeight );
+        }
+        assertEquals( referenceWeight, met.caseInfo.referenceWeight, 0 );
+        
+        double[] multiplier = new double[chain.length];
+        double totalWeight = 0;
+        for ( int i = 0; i < chain.length; i++ ) {
+            multiplier[i] = Math.exp( (referenceWeight - chain[i].caseInfo.referenceWeight) * 
+                                      (1.0 - 1.0 / temperature) );
+            totalWeight += chain[i].caseInfo.totalWeight * multiplier[i];
+        }
+        assertEquals( totalWeight, met.caseInfo.totalWeight, 1e-9 * totalWeight );
+        
+        long[] keys = met.getSECHashTable().keys();
+        for ( int j = 0; j < keys.length; j++ ) {
+            double weight = 0;
+            for ( int i = 0; i < chain.length; i++ ) {
+                SEC sec = chain[i].getSECHashTable().get( keys[j] );
+                if ( sec != null ) { weight += sec.getWeight() * multiplier[i]; }
+            }
+            assertEquals( weight, met.getSECHashTable().get( keys[j] ).getWeight(), 
+                          1e-9 * weight );
+        }
+        // Every SEC sampled by a chain is in the merged table.
+        for ( int i = 0; i < chain.length; i++ ) {
+            long[] chainKeys = chain[i].getSECHashTable().keys();
+            for ( int j = 0; j < chainKeys.length; j++ ) {
+                assertNotNull( met.getSECHashTable().get( chainKeys[j] ) );
+            }
+        }
+    }
+    
+    /** Neighbouring replicas on the default temperature ladder should swap often, but not always. */
+    public void testReplicaExchangeSearch()
+    {
+        ReplicaExchangeMetropolisSearch met = 
+            new ReplicaExchangeMetropolisSearch( new java.util.Random(12345), makeDataset(100),
+                                                 SearchPackage.mlCPTLearner, 
+                                                 SearchPackage.mmlCPTLearner );
+        met.setOption( "numReplicas", new Value.Discrete(3) );
+        runShortSearch( met );
+        
+        assertEquals( 3, met.getReplicas().length );
+        // With temperatures 1.8, 2.7 and 4.05 between 40% and 75% of swaps are accepted.  A rate
+        // near 0 would mean replicas never exchange states, near 1 that the ladder is too fine.
+        double[] rate = met.getSwapAcceptanceRates();
+        assertEquals( 2, rate.length );
+        for ( int i = 0; i < rate.length; i++ ) {
+            assertTrue( "rate = " + rate[i], rate[i] > 0.2 && rate[i] < 0.9 );
+        }
+        // Swaps between hotter replicas are accepted more often.
+        assertTrue( rate[1] > rate[0] );
+        
+        // Heated replicas do not record samples.
+        assertEquals( 0, met.getReplicas()[1].getSECHashTable().size() );
+        assertEquals( 0, met.getReplicas()[2].getSECHashTable().size() );
+        assertTrue( met.getSECHashTable().size() > 0 );
+    }
+    
+    /** Only the unheated chain may start threads to speculate or prefetch. */
+    public void testReplicaThreads()
+    {
+        ReplicaExchangeMetropolisSearch met = 
+            new ReplicaExchangeMetropolisSearch( new java.util.Random(12345), makeDataset(100),
+                                                 SearchPackage.mlCPTLearner, 
+                                                 SearchPackage.mmlCPTLearner );
+        met.setOption( "numReplicas", new Value.Discrete(2) );
+        met.setOption( "speculativeBatch", new Value.Discrete(2) );
+        met.setOption( "prefetchThreads", new Value.Discrete(1) );
+        runShortSearch( met );
+        
+        assertNotNull( met.getNodePrefetcher() );
+        MetropolisSearch hot = met.getReplicas()[1];
+        assertEquals( 0, hot.caseInfo.speculativeBatch );
+        assertEquals( 0, hot.caseInfo.prefetchThreads );
+        assertNull( hot.getNodePrefetcher() );
+    }
+    
+    /** Initialise a MetropolisSearch from the best of several parallel AnnealSearches. */
+    public void testAnnealRestarts()
+    {
+        MetropolisSearch met = makeSearch( makeDataset(100) );
+        met.setOption( "annealRestarts", new Value.Discrete(3) );
+        runShortSearch( met );
+        
+        double[] costs = met.getAnnealCosts();
+        double[] arcProbs = met.getAnnealArcProbs();
+        assertEquals( 3, costs.length );
+        assertEquals( 3, arcProbs.length );
+        // Restarts use different random number streams, so their estimates should differ.
+        assertFalse( arcProbs[0] == arcProbs[1] && arcProbs[1] == arcProbs[2] );
+        
+        // arcProb must come from the restart finding the lowest cost.
+        int best = 0;
+        for ( int i = 1; i < costs.length; i++ ) { if ( costs[i] < costs[best] ) { best = i; } }
+        assertEquals( arcProbs[best], met.getArcProb(), 0 );
+        
+        // Sampling starts from the best anneal result, so can only improve on it.
+        assertTrue( met.getBestCost() <= costs[best] + 0.001 );
+    }
+    
+    /** Evaluating proposals in parallel batches must sample the same chain as one at a time. */
+    public void testSpeculativeSearch()
+    {
+        Value.Vector dataset = makeDataset(100);
+        MetropolisSearch[] met = new MetropolisSearch[2];
+        for ( int i = 0; i < met.length; i++ ) {
+            met[i] = makeSearch( dataset );
+            met[i].setOption( "speculativeBatch", new Value.Discrete(i == 0 ? 1 : 4) );
+            runShortSearch( met[i] );
+        }
+        
+        // Batches of 4 must have evaluated (and discarded) proposals after an acceptance.
+        assertTrue( met[1].getSpeculativeTransformer().getNumDiscarded() > 0 );
+        assertEquals( 0, met[0].getSpeculativeTransformer().getNumDiscarded() );
+        
+        assertEquals( met[0].getBestTOM().toString(), met[1].getBestTOM().toString() );
+        assertEquals( met[0].getSECHashTable().size(), met[1].getSECHashTable().size() );
+        Value.Vector[] results = new Value.Vector[] { met[0].getResults(), met[1].getResults() };
+        assertEquals( results[0].length(), results[1].length() );
+        for ( int i = 0; i < results[0].length(); i++ ) {
+            assertEquals( results[0].elt(i).toString(), results[1].elt(i).toString() );
+        }
+    }
+    
+    /** Sampling should stop early once the posterior has converged. */
+    public void testConvergenceStop()
+    {
+        Value.Vector dataset = makeDataset(1000);
+        MetropolisSearch met = makeSearch( dataset );
+        met.setOption( "convergenceTolerance", new Value.Continuous(0.2) );
+        met.setOption( "convergenceCheck", new Value.Discrete(200) );
+        new BlockingSearch( met ).start();
+        
+        // 12 nodes sampled for 12^3 * 200 epochs without a stopping rule.
+        long converged = met.getConvergedEpoch();
+        assertTrue( converged > 0 && converged < 12*12*12*200 );
+        assertTrue( met.getConvergenceDistance() < 0.2 );
+        assertTrue( met.getScheduleCompleted() < 1.0 );
+        
+        // An unreachable tolerance never stops sampling before the usual number of epochs.
+        met = makeSearch( dataset );
+        met.setOption( "convergenceTolerance", new Value.Continuous(1e-6) );
+        met.setOption( "convergenceCheck", new Value.Discrete(200) );
+        runShortSearch( met );
+        assertEquals( -1, met.getConvergedEpoch() );
+        assertTrue( met.getConvergenceDistance() >= 1e-6 );
+        assertEquals( 1.0, met.getScheduleCompleted(), 1e-9 );
+    }
+    
+    /** Costing nodes from a weighted summary of the data must not change costs or results. */
+    public void testCompressCostingData()
+    {
+        // Unit weights are integers, so repeated rows may be merged.
+        Value.Vector dataset = makeDataset(1000);
+        Value.Vector summary = BNetSearch.makeCostingData( dataset, SearchPackage.mlCPTLearner, 
+                                                           SearchPackage.mmlCPTLearner );
+        assertTrue( summary.length() < dataset.length() );
+        
+        MetropolisSearch[] met = new MetropolisSearch[2];
+        for ( int i = 0; i < met.length; i++ ) {
+            met[i] = makeSearch( dataset );
+            met[i].setOption( "compressCostingData", new Value.Discrete(i == 0 ? 1 : 0) );
+        }
+        assertEquals( summary.length(), met[0].caseInfo.nodeCache.getData().length() );
+        assertEquals( dataset.length(), met[1].caseInfo.nodeCache.getData().length() );
+        
+        // Identical costs give identical sampling, SECs and MML models.
+        for ( int i = 0; i < met.length; i++ ) { runShortSearch( met[i] ); }
+        assertEquals( met[0].getBestTOM().getCost(), met[1].getBestTOM().getCost(), 0.0 );
+        assertEquals( met[0].getBestTOM().toString(), met[1].getBestTOM().toString() );
+        Value.Vector[] results = new Value.Vector[] { met[0].getResults(), met[1].getResults() };
+        assertEquals( results[0].length(), results[1].length() );
+        for ( int i = 0; i < results[0].length(); i++ ) {
+            assertEquals( results[0].elt(i).toString(), results[1].elt(i).toString() );
+        }
+    }
+    
+    /** A search with a time limit should stop early and return the results found so far. */
+    public void testTimeLimit()
+    {
+        Value.Vector dataset = 
+            SearchDataCreator.generateWallaceKorbStyleDataset(new java.util.Random(123),1000,2,2,4);
+        MetropolisSearch met = makeSearch( dataset );
+        double limit = 1.0;
+        met.setOption( "timeLimit", new Value.Continuous(limit) );
+        long start = System.currentTimeMillis();
+        new BlockingSearch( met ).start();
+        long elapsed = System.currentTimeMillis() - start;
+        
+        // The deadline is only checked between epochs, so allow some leeway after it.
+        assertTrue( "elapsed = " + elapsed, elapsed < 5 * limit * 1000 );
+        // A search stopped by the deadline must have run for at least the limit without
+        // finishing its schedule, otherwise the whole schedule must have been completed.
+        if ( met.isOutOfTime() ) {
+            assertTrue( "elapsed = " + elapsed, elapsed >= limit * 1000 );
+            assertTrue( met.getScheduleCompleted() < 0.99 );
+        }
+        else {
+            assertTrue( met.getScheduleCompleted() > 0.99 );
+        }
+        assertTrue( met.getAnnealScheduleCompleted() <= 1.0 );
+        assertTrue( met.getResults().length() > 0 );
+    }
+    
+    /** 
+     * Every logged step and weight should reach the log, in order and in the original text 
+     * format, once the search is done.  The CSV format should hold the same records.
+     */
+    public void testSearchLog()
+    {
+        Value.Vector dataset = makeDataset(100);
+        String[][] line = new String[2][];
+        for ( int i = 0; i < line.length; i++ ) {
+            // Logging records the number of random numbers used, which requires WallaceRandom.
+            MetropolisSearch met = 
+                new MetropolisSearch( new WallaceRandom(new int[] {123,456}), dataset,
+                                      SearchPackage.mlCPTLearner, SearchPackage.mmlCPTLearner );
+            java.io.StringWriter log = new java.io.StringWriter();
+            met.caseInfo.logging = true;
+            met.caseInfo.cammlLog = new SearchLog( log, i == 1, met.caseInfo.costFormat, 
+                                                   met.caseInfo.weightFormat );
+            runShortSearch( met );
+            line[i] = log.toString().split("\n");
+        }
+        
+        // Each epoch logs the weight of its sample then the step, starting from epoch 1.
+        String[] text = line[0], csv = line[1];
+        assertEquals( text.length, csv.length );
+        assertTrue( text.length > 2 * SearchLog.capacity );
+        for ( int i = 0; i < text.length; i++ ) {
+            String[] field = csv[i].split(",");
+            if ( i % 2 == 0 ) {
+                assertTrue( text[i], text[i].matches(
+                    "weight = \\S+\ttomWeight = \\S+\tdiff = \\S+\ttotalWeight = \\S+") );
+                assertEquals( "weight", field[0] );
+                assertEquals( 5, field.length );
+            }
+            else {
+                long step = i / 2 + 1;
+                assertTrue( text[i], text[i].matches( 
+                    "STEP : " + step + "\tMMLCost = \\S+\trand: \\d+" ) );
+                assertEquals( "step", field[0] );
+                assertEquals( step, Long.parseLong(field[1]) );
+                assertTrue( text[i].endsWith( "rand: " + field[3] ) );
+            }
+        }
+    }
+    
+    /** KL rows are calculated in parallel, but results must still be repeatable. */
+    public void testParallelKLRepeatable()
+    {
+        Value.Vector dataset = makeDataset(100);
+        Value.Vector[] results = new Value.Vector[2];
+        for ( int i = 0; i < results.length; i++ ) {
+            MetropolisSearch met = makeSearch( dataset );
+            runShortSearch( met );
+            results[i] = met.getResults();
+        }
+        
+        // SECs are joined into MMLECs using the KL matrix, so the groups found and their
+        // posteriors must be identical.
+        assertTrue( results[0].length() > 1 );
+        assertEquals( results[0].length(), results[1].length() );
+        for ( int i = 0; i < results[0].length(); i++ ) {
+            assertEquals( results[0].elt(i).toString(), results[1].elt(i).toString() );
+        }
+    }
+    
+    /** Check each probability of mix is within [MIN_FACTOR,MAX_FACTOR] times its default. */
+    protected static void assertMixInBounds( ProposalMix mix )
+    {
+        double total = 0;
+        for ( int i = 0; i < ProposalMix.NUM_TYPES; i++ ) {
+            double p = mix.getProb(i);
+            assertTrue( mix.toString(), p >= ProposalMix.defaultProb[i] * ProposalMix.MIN_FACTOR - 1e-12 );
+            assertTrue( mix.toString(), p <= ProposalMix.defaultProb[i] * ProposalMix.MAX_FACTOR + 1e-12 );
+            total += p;
+        }
+        assertEquals( 1.0, total, 1e-9 );
+    }
+    
+    /** A tuned proposal mix should keep every transformation within [0.5,2] times its default. */
+    public void testAdaptiveProposals()
+    {
+        MetropolisSearch met = makeSearch( makeDataset(100) );
+        met.setOption( "adaptiveProposals", new Value.Discrete(1) );
+        runShortSearch( met );
+        assertMixInBounds( met.getProposalMix() );
+        
+        // Statistics come from the adaptation segment run at the sampling temperature.
+        ProposalMix adaptation = met.getProposalStats();
+        long proposed = 0;
+        for ( int i = 0; i < ProposalMix.NUM_TYPES; i++ ) { proposed += adaptation.getProposed(i); }
+        assertTrue( "proposed = " + proposed, proposed >= ProposalMix.MIN_PROPOSALS );
+        
+        // Transformations never accepted during adaptation are proposed as little as allowed.  
+        // The others share the remaining probability in proportion to their defaults.
+        ProposalMix stats = new ProposalMix();
+        for ( int i = 0; i < 2000; i++ ) { 
+            stats.record( i % ProposalMix.NUM_TYPES, (i % ProposalMix.NUM_TYPES) != 0, 1.0 ); 
+        }
+        ProposalMix mix = stats.tune();
+        assertMixInBounds( mix );
+        double minProb = ProposalMix.defaultProb[0] * ProposalMix.MIN_FACTOR;
+        assertEquals( minProb, mix.getProb(ProposalMix.PARENT_SWAP), 1e-12 );
+        for ( int i = 1; i < ProposalMix.NUM_TYPES; i++ ) {
+            assertEquals( ProposalMix.defaultProb[i] * (1 - minProb) / (1 - ProposalMix.defaultProb[0]),
+                          mix.getProb(i), 1e-12 );
+        }
+        
+        // A transformation with a much larger cost change than the others is limited to 
+        // MAX_FACTOR times its default.
+        stats = new ProposalMix();
+        for ( int i = 0; i < 2000; i++ ) { 
+            stats.record( i % ProposalMix.NUM_TYPES, true, (i % ProposalMix.NUM_TYPES) == 0 ? 100 : 1 );
+        }
+        mix = stats.tune();
+        assertMixInBounds( mix );
+        assertEquals( ProposalMix.defaultProb[0] * ProposalMix.MAX_FACTOR, 
+                      mix.getProb(ProposalMix.PARENT_SWAP), 1e-12 );
+    }
+    
+    /** Prefetching node costs in the background must not change costs or search results. */
+    public void testNodePrefetch()
+    {
+        Value.Vector dataset = makeDataset(100);
+        MetropolisSearch[] met = new MetropolisSearch[2];
+        for ( int i = 0; i < met.length; i++ ) {
+            met[i] = makeSearch( dataset );
+            met[i].setOption( "prefetchThreads", new Value.Discrete(i) );
+            runShortSearch( met[i] );
+        }
+        assertTrue( met[1].getNodePrefetcher().getNumCosted() > 0 );
+        assertTrue( met[1].caseInfo.nodeCache.prefetched > 0 );
+        
+        assertEquals( met[0].getBestTOM().getCost(), met[1].getBestTOM().getCost(), 0 );
+        Value.Vector[] results = new Value.Vector[] { met[0].getResults(), met[1].getResults() };
+        assertEquals( results[0].length(), results[1].length() );
+        for ( int i = 0; i < results[0].length(); i++ ) {
+            assertEquals( results[0].elt(i).toString(), results[1].elt(i).toString() );
+        }
+        
+        // A prefetched cost is the cost the search would have calculated, and is then found in
+        // the cache.  Prefetching is not counted in the cache statistics.
+        NodeCache cache = new NodeCache( dataset, SearchPackage.mmlCPTLearner, 
+                                         SearchPackage.mlCPTLearner );
+        NodeCache reference = new NodeCache( dataset, SearchPackage.mmlCPTLearner, 
+                                             SearchPackage.mlCPTLearner );
+        for ( int i = 0; i < 12; i++ ) {
+            assertTrue( cache.prefetchMMLCost( new Node(i) ) );
+            assertFalse( cache.prefetchMMLCost( new Node(i) ) );
+        }
+        assertEquals( 0, cache.getIndexCalled );
+        assertEquals( 0, cache.newHash + cache.hashFailed + cache.hashSucceed );
+        assertEquals( 12, cache.getNumCacheEntries() );
+        for ( int i = 0; i < 12; i++ ) {
+            assertEquals( reference.getMMLCost( new Node(i) ), cache.getMMLCost( new Node(i) ), 0 );
+        }
+        assertEquals( 0, cache.newHash );
+        assertEquals( 12, cache.hashSucceed );
+    }
+    
     
     /** 
      * Test main function. <br>
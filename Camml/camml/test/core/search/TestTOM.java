@@ -41,6 +41,7 @@ import junit.framework.*;
 
 import cdms.core.*;
 import camml.core.search.*;
+import camml.core.searchDBN.*;
 
 // import camml.core.models.*;
 // import camml.ModelPackage.*;
@@ -254,7 +255,239 @@ public class TestTOM extends TestCase
     public void testOrder()
     {
     }
+    
+    /** Check incremental cleaning gives the same TOM as cleaning from scratch. */
+    public void testCleanNodes()
+    {
+        MetropolisSearch met = new MetropolisSearch( new java.util.Random(1), data, 
+                                                     SearchPackage.mlCPTLearner, 
+                                                     SearchPackage.mmlCPTLearner );
+        TOMCleaner.StandardTOMCleaner cleaner = TOMCleaner.StandardTOMCleaner.tomCleaner;
+        TOM dirtyTOM = (TOM)met.getTOM().clone();
+        TOM cleanTOM = (TOM)dirtyTOM.clone();
+        assertTrue( cleaner.canCleanIncrementally(cleanTOM) );
+        int n = dirtyTOM.getNumNodes();
+        
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 200; i++ ) {
+            int x = rand.nextInt(n);
+            int y = rand.nextInt(n);
+            int[] changed;
+            if ( rand.nextDouble() < 0.7 ) {
+                if ( dirtyTOM.isArc(x,y) ) { dirtyTOM.removeArc(x,y); } 
+                else { dirtyTOM.addArc(x,y); }
+                changed = new int[] { dirtyTOM.before(x,y) ? y : x };
+            }
+            else {
+                // Swap adjacent nodes, as TemporalChange does.
+                int pos = rand.nextInt(n-1);
+                x = dirtyTOM.nodeAt(pos);
+                y = dirtyTOM.nodeAt(pos+1);
+                changed = dirtyTOM.isArc(x,y) ? new int[] {x,y} : new int[0];
+                dirtyTOM.swapOrder(x,y,true);
+            }
+            
+            cleaner.cleanNodes( cleanTOM, dirtyTOM, changed );
+            TOM fullTOM = (TOM)dirtyTOM.clone();
+            fullTOM.clean();
+            assertEquals( fullTOM, cleanTOM );
+            for ( int j = 0; j < n; j++ ) { assertEquals( fullTOM.nodeAt(j), cleanTOM.nodeAt(j) ); }
+        }
+    }
+    
+    /** Sum hash.getRandom(parent,child) over all arcs in tom */
+    private static long arcHash( TOM tom, ModelHash hash ) {
+        long sum = 0;
+        for ( int i = 0; i < tom.getNumNodes(); i++ ) {
+            for ( int j : tom.getNode(i).getParentCopy() ) { sum += hash.getRandom(j,i); }
+        }
+        return sum;
+    }
+    
+    /** Check TOMHash and SECHash values are correctly maintained as the TOM is changed. */
+    public void testIncrementalHash()
+    {
+        TOM tom = new TOM(data);
+        int n = tom.getNumNodes();
+        TOMHash tomHash = new TOMHash( new java.util.Random(1), n );
+        SECHash secHash = new SECHash( new java.util.Random(2), n );
+        assertEquals( 0, tomHash.hash(tom,0) );
+        
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 1000; i++ ) {
+            int x = rand.nextInt(n);
+            int y = rand.nextInt(n);
+            double r = rand.nextDouble();
+            if ( r < 0.4 ) { tom.addArc(x,y); }
+            else if ( r < 0.7 ) { tom.removeArc(x,y); }
+            else { tom.swapOrder(x,y,true); }
+            
+            assertEquals( arcHash(tom,tomHash), tomHash.hash(tom,0) );
+            assertEquals( arcHash(tom,secHash) + 128, secHash.hash(tom,1.0) );
+        }
+        
+        // Cached values are copied by clone() and kept by setStructure()
+        TOM clonedTOM = (TOM)tom.clone();
+        clonedTOM.swapOrder(0,n-1,true);
+        assertEquals( arcHash(clonedTOM,tomHash), tomHash.hash(clonedTOM,0) );
+        tom.setStructure( clonedTOM );
+        assertEquals( tomHash.hash(clonedTOM,0), tomHash.hash(tom,0) );
+        assertEquals( secHash.hash(clonedTOM,0), secHash.hash(tom,0) );
+    }
 
+    /** Extension counts memoised by arc hash must match counts of the canonical DAG. */
+    public void testCountExtensionsMemo()
+    {
+        TOM tom = new TOM(data);
+        int n = tom.getNumNodes();
+        tom.caseInfo.tomHash = new TOMHash( new java.util.Random(1), n );
+        // With no TOMHash every count is found through the canonical form.
+        TOM reference = new TOM(data);
+        assertEquals( 40320.0, TOMCoster.DAGCoster.countExtensions(tom), 0 );
+        
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 1000; i++ ) {
+            int x = rand.nextInt(n);
+            int y = rand.nextInt(n);
+            double r = rand.nextDouble();
+            if ( r < 0.4 ) { tom.addArc(x,y); }
+            else if ( r < 0.8 ) { tom.removeArc(x,y); }
+            else { tom.swapOrder(x,y,true); }
+            
+            reference.setStructure( tom );
+            assertEquals( TOMCoster.DAGCoster.countExtensions(reference), 
+                          TOMCoster.DAGCoster.countExtensions(tom), 0 );
+        }
+    }
+    
+    /** Check DBN hashes, including temporal arcs, are correctly maintained as the DTOM is changed. */
+    public void testIncrementalDBNHash()
+    {
+        DTOM tom = new DTOM( new CaseInfo(null, null, data, null, null, -1, null) );
+        int n = tom.getNumNodes();
+        DTOMHash tomHash = new DTOMHash( new java.util.Random(1), n );
+        DBNSECHash secHash = new DBNSECHash( new java.util.Random(2), n );
+        assertEquals( 0, tomHash.hash(tom,0) );
+        
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 1000; i++ ) {
+            int x = rand.nextInt(n);
+            int y = rand.nextInt(n);
+            double r = rand.nextDouble();
+            // The child of an intraslice arc depends on the ordering, so check both nodes.
+            boolean full = tom.getNode(y).getNumParents() >= tom.getMaxNumParents();
+            boolean xFull = tom.getNode(x).getNumParents() >= tom.getMaxNumParents();
+            if ( r < 0.2 ) { if ( !full && !xFull ) { tom.addArc(x,y); } }
+            else if ( r < 0.4 ) { tom.removeArc(x,y); }
+            else if ( r < 0.6 ) { if ( !full ) { tom.addTemporalArc(x,y); } }
+            else if ( r < 0.8 ) { tom.removeTemporalArc(x,y); }
+            else { tom.swapOrder(x,y,true); }
+            
+            assertEquals( arcHash(tom,tomHash) + temporalArcHash(tom,tomHash), tomHash.hash(tom,0) );
+            assertEquals( arcHash(tom,secHash) + temporalArcHash(tom,secHash) + 128, 
+                          secHash.hash(tom,1.0) );
+        }
+        assertTrue( tom.getNumTemporalEdges() > 0 );
+        
+        // Cached values are copied by clone() and kept by setStructure()
+        DTOM clonedTOM = (DTOM)tom.clone();
+        clonedTOM.removeTemporalArc( 0, 0 );
+        clonedTOM.addTemporalArc( 0, 0 );
+        clonedTOM.removeTemporalArc( 0, 0 );
+        assertEquals( arcHash(clonedTOM,tomHash) + temporalArcHash(clonedTOM,tomHash), 
+                      tomHash.hash(clonedTOM,0) );
+        tom.setStructure( clonedTOM );
+        assertEquals( tomHash.hash(clonedTOM,0), tomHash.hash(tom,0) );
+        assertEquals( secHash.hash(clonedTOM,0), secHash.hash(tom,0) );
+    }
+    
+    /** Return the sum of hash.getTemporalRandom() over all temporal arcs in tom */
+    private static long temporalArcHash( DTOM tom, DTOM.TemporalHash hash ) {
+        long sum = 0;
+        for ( int i = 0; i < tom.getNumNodes(); i++ ) {
+            for ( int j : ((DNode)tom.getNode(i)).getTemporalParentCopy() ) { 
+                sum += hash.getTemporalRandom(j,i); 
+            }
+        }
+        return sum;
+    }
+    
+    /** Return true if a is an ancestor of d, found by searching parents of d. */
+    private static boolean searchAncestors( TOM tom, int a, int d ) {
+        for ( int p : tom.getNode(d).getParentCopy() ) {
+            if ( p == a || searchAncestors(tom,a,p) ) { return true; }
+        }
+        return false;
+    }
+    
+    /** Check ancestor queries remain correct as arcs and ordering are changed. */
+    public void testIncrementalAncestors()
+    {
+        TOM tom = new TOM(data);
+        int n = tom.getNumNodes();
+        java.util.Random rand = new java.util.Random(123);
+        for ( int i = 0; i < 500; i++ ) {
+            int x = rand.nextInt(n);
+            int y = rand.nextInt(n);
+            double r = rand.nextDouble();
+            if ( r < 0.4 ) { tom.addArc(x,y); }
+            else if ( r < 0.7 ) { tom.removeArc(x,y); }
+            else { tom.swapOrder(x,y,true); }
+            
+            if ( i % 50 == 0 ) { tom = (TOM)tom.clone(); }
+            
+            for ( int a = 0; a < n; a++ ) {
+                for ( int d = 0; d < n; d++ ) {
+                    boolean anc = searchAncestors(tom,a,d);
+                    assertEquals( anc, tom.isAncestor(a,d) );
+                    assertEquals( anc, tom.getAncestorBits()[d].get(a) );
+                }
+            }
+        }
+    }
+    
+    /** Check orderings and edge sets survive a round trip through TOMArena. */
+    public void testTOMArena()
+    {
+        TOMArena arena = new TOMArena();
+        java.util.Random rand = new java.util.Random(123);
+        // Dense and sparse networks are stored as adjacency matrices and node pairs.
+        int[][] sizes = { {5,6}, {300,10}, {20,0} };
+        long[] orderHandle = new long[sizes.length];
+        long[] edgeHandle = new long[sizes.length];
+        int[][] order = new int[sizes.length][];
+        java.util.List<java.util.Set<String>> edges = new java.util.ArrayList<java.util.Set<String>>();
+        for ( int i = 0; i < sizes.length; i++ ) {
+            int n = sizes[i][0];
+            order[i] = new int[n];
+            for ( int j = 0; j < n; j++ ) { order[i][j] = n - 1 - j; }
+            
+            int[][] edge = new int[2][sizes[i][1]];
+            edges.add( new java.util.HashSet<String>() );
+            for ( int j = 0; j < edge[0].length; j++ ) {
+                do {
+                    edge[0][j] = rand.nextInt(n);
+                    edge[1][j] = rand.nextInt(n);
+                } while ( edge[0][j] == edge[1][j] || 
+                          !edges.get(i).add( Math.max(edge[0][j],edge[1][j]) + "-" + 
+                                         Math.min(edge[0][j],edge[1][j]) ) );
+            }
+            orderHandle[i] = arena.addOrder( order[i] );
+            edgeHandle[i] = arena.addEdges( edge, n );
+        }
+        
+        for ( int i = 0; i < sizes.length; i++ ) {
+            int n = sizes[i][0];
+            assertTrue( java.util.Arrays.equals( order[i], arena.getOrder(orderHandle[i],n) ) );
+            int[][] edge = arena.getEdges( edgeHandle[i], n, sizes[i][1] );
+            java.util.Set<String> found = new java.util.HashSet<String>();
+            for ( int j = 0; j < edge[0].length; j++ ) {
+                found.add( Math.max(edge[0][j],edge[1][j]) + "-" + Math.min(edge[0][j],edge[1][j]) );
+            }
+            assertEquals( edges.get(i), found );
+        }
+    }
+    
     
     /**
      *  test TOM.clone() function <br>